@@ -0,0 +1,240 @@
+package io.virgo.geoWeb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+import org.json.JSONObject;
+
+import io.virgo.geoWeb.codec.BinaryCodec;
+import io.virgo.geoWeb.codec.JsonCodec;
+import io.virgo.geoWeb.codec.MessageCodec;
+import io.virgo.geoWeb.exceptions.PortUnavailableException;
+
+/**
+ * GeoWeb instance used by benchmarks, with peers connected over loopback to a local server
+ * that either discards what it receives or answers sync messages
+ *
+ * Each node uses it's own peers file in the working directory, removed on shutdown
+ */
+class BenchmarkNode {
+
+	private static final BinaryCodec BINARY = new BinaryCodec();
+
+	private GeoWeb geoWeb;
+	private File peersFile;
+	private ServerSocketChannel server;
+	private ArrayList<Socket> sockets = new ArrayList<Socket>();
+	private ArrayList<Peer> peers = new ArrayList<Peer>();
+	private boolean echo;
+
+	/**
+	 * @param echo if true remote side answers each message carrying a reqUid, otherwise it discards everything
+	 */
+	BenchmarkNode(boolean echo) throws IOException {
+		this.echo = echo;
+
+		int port = freePort();
+		peersFile = new File("benchmark-peers-" + port + ".dat");
+
+		try {
+			geoWeb = new GeoWeb.Builder()
+					.netID(1)
+					.port(port)
+					.peersFile(peersFile.getPath())
+					.jmx(false)
+					.peerSwapPeriod(0)
+					.addressBookSize(65536)
+					.build();
+		} catch (PortUnavailableException e) {
+			throw new IOException(e);
+		}
+
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+		Thread acceptThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						Socket socket = server.accept().socket();
+						sockets.add(socket);
+
+						Thread remote = new Thread(BenchmarkNode.this.echo ? new Echo(socket) : new Drain(socket));
+						remote.setDaemon(true);
+						remote.start();
+					}
+				} catch (IOException e) {}
+			}
+
+		});
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	GeoWeb getGeoWeb() {
+		return geoWeb;
+	}
+
+	/**
+	 * Connect a handshaked peer to the local server, it's writer is running and so is it's reader if remote echoes
+	 */
+	Peer connectPeer(MessageCodec codec) throws IOException {
+		SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+
+		Peer peer = new Peer(geoWeb, channel.socket(), false);
+		peer.codec = codec;
+		peer.handshaked = true;
+		peer.startOutputWriter();
+
+		if(echo)
+			geoWeb.newConnectionThread(peer).start();
+
+		peers.add(peer);
+
+		return peer;
+	}
+
+	void shutdown() {
+		//benchmark peers aren't registered as connected ones, so GeoWeb doesn't end them
+		for(Peer peer : peers)
+			peer.end();
+
+		geoWeb.shutdown();
+
+		try {
+			server.close();
+		} catch (IOException e) {}
+
+		for(Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+
+		peersFile.delete();
+	}
+
+	/**
+	 * @return the codec benchmarks parameters refer to, the same instance for all peers as after negotiation
+	 */
+	static MessageCodec codec(String name) {
+		return name.equals(BinaryCodec.NAME) ? BINARY : JsonCodec.INSTANCE;
+	}
+
+	/**
+	 * @return a typical application message
+	 */
+	static JSONObject sampleMessage() {
+		JSONObject message = new JSONObject();
+		message.put("command", "inv");
+		message.put("id", 123456789L);
+		message.put("ids", new String[] {
+				"6a09e667f3bcc908b2f3c6ef372fe94f",
+				"bb67ae8584caa73b3c6ef372fe94f82b",
+				"3c6ef372fe94f82ba54ff53a5f1d36f1"});
+		message.put("final", true);
+
+		return message;
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+
+		return port;
+	}
+
+	/**
+	 * Read and discard everything
+	 */
+	private static class Drain implements Runnable {
+
+		private Socket socket;
+
+		private Drain(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = new byte[65536];
+
+			try {
+				InputStream in = socket.getInputStream();
+				while(in.read(buffer) >= 0);
+			} catch (IOException e) {}
+		}
+
+	}
+
+	/**
+	 * Answer each message carrying a reqUid with a message carrying the matching respUid, in the same codec
+	 */
+	private static class Echo implements Runnable {
+
+		private Socket socket;
+
+		private Echo(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			try {
+				InputStream in = socket.getInputStream();
+				OutputStream out = socket.getOutputStream();
+				byte[] header = new byte[FrameDecoder.HEADER_LENGTH];
+
+				while(readFully(in, header)) {
+					byte[] body = new byte[ByteBuffer.wrap(header, 1, 4).getInt()];
+					if(!readFully(in, body))
+						break;
+
+					MessageCodec codec = header[0] == BinaryCodec.MESSAGE_TYPE ? new BinaryCodec() : JsonCodec.INSTANCE;
+					JSONObject message = codec.decode(body);
+
+					if(!message.has("reqUid"))
+						continue;
+
+					JSONObject response = new JSONObject();
+					response.put("command", "echo");
+					response.put("respUid", message.get("reqUid"));
+
+					byte[] responseBody = codec.encode(response);
+					ByteBuffer frame = ByteBuffer.allocate(FrameDecoder.HEADER_LENGTH + responseBody.length);
+					frame.put(codec.getMessageType()).putInt(responseBody.length).put(responseBody);
+
+					out.write(frame.array());
+				}
+			} catch (IOException e) {}
+		}
+
+		private static boolean readFully(InputStream in, byte[] target) throws IOException {
+			int read = 0;
+
+			while(read < target.length) {
+				int count = in.read(target, read, target.length - read);
+				if(count < 0)
+					return false;
+
+				read += count;
+			}
+
+			return true;
+		}
+
+	}
+
+}
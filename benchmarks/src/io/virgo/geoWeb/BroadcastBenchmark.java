@@ -0,0 +1,72 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fan-out of {@link GeoWeb#broadCast(JSONObject, java.util.Collection)} to peers connected over loopback
+ * Waits when a peer's queue gets long so writers keep up, measuring sustained broadcasting
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+	private static final int MAX_QUEUED = 1024;
+
+	@Param({"1", "10", "100"})
+	public int peersCount;
+
+	@Param({"json", "binary"})
+	public String codecName;
+
+	private BenchmarkNode node;
+	//not a List, broadCast(JSONObject, List) takes peers to ignore
+	private Collection<Peer> peers = new ArrayList<Peer>();
+	private JSONObject message;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		node = new BenchmarkNode(false);
+
+		for(int i = 0; i < peersCount; i++)
+			peers.add(node.connectPeer(BenchmarkNode.codec(codecName)));
+
+		message = BenchmarkNode.sampleMessage();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		node.shutdown();
+	}
+
+	@Benchmark
+	public void broadCast() {
+		node.getGeoWeb().broadCast(message, peers);
+
+		for(Peer peer : peers)
+			while(peer.getQueuedMessages() > MAX_QUEUED)
+				Thread.yield();
+	}
+
+}
@@ -0,0 +1,193 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.virgo.geoWeb.codec.MessageCodec;
+import io.virgo.geoWeb.data.DataSink;
+import io.virgo.virgoCryptoLib.Sha256Hash;
+
+/**
+ * Read loop of {@link Peer#run()}, an in memory stream of frames read through a buffer and fed to a {@link FrameDecoder}
+ *
+ * Decoded messages are dispatched to the message thread pool as usual,
+ * the pool is given time to catch up after each invocation, outside of measurement
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+	private static final int FRAMES = 1000;
+	private static final int CHUNK_SIZE = 4096;
+
+	@Param({"json", "binary"})
+	public String codecName;
+
+	@Param({"16384"})
+	public int dataSize;
+
+	private BenchmarkNode node;
+	private Peer peer;
+	private byte[] messagesStream;
+	private byte[] dataFrame;
+	private byte[] dataStream;
+	private Sha256Hash dataHash;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+	private DataSink discard = new DataSink() {
+
+		@Override
+		public void open(long size) {}
+
+		@Override
+		public void write(ByteBuffer data) {
+			data.position(data.limit());
+		}
+
+		@Override
+		public void close(boolean success) {}
+
+	};
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, NoSuchAlgorithmException {
+		node = new BenchmarkNode(false);
+		MessageCodec codec = BenchmarkNode.codec(codecName);
+		peer = node.connectPeer(codec);
+
+		byte[] body = codec.encode(BenchmarkNode.sampleMessage());
+		ByteBuffer stream = ByteBuffer.allocate(FRAMES * (FrameDecoder.HEADER_LENGTH + body.length));
+		for(int i = 0; i < FRAMES; i++)
+			stream.put(codec.getMessageType()).putInt(body.length).put(body);
+		messagesStream = stream.array();
+
+		byte[] data = new byte[dataSize];
+		for(int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+		dataHash = new Sha256Hash(hash);
+
+		dataFrame = ByteBuffer.allocate(FrameDecoder.HEADER_LENGTH + FrameDecoder.HASH_LENGTH + dataSize)
+				.put(FrameDecoder.DATA_MSG_TYPE).putInt(dataSize).put(hash).put(data).array();
+
+		int chunks = (dataSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		ByteBuffer streamBuffer = ByteBuffer.allocate(FrameDecoder.STREAM_OPEN_HEADER_LENGTH + FrameDecoder.HASH_LENGTH
+				+ chunks * FrameDecoder.STREAM_CHUNK_HEADER_LENGTH + dataSize);
+		streamBuffer.put(FrameDecoder.STREAM_OPEN_MSG_TYPE).putInt(0).putLong(dataSize).put(hash);
+		for(int position = 0; position < dataSize; position += CHUNK_SIZE) {
+			int length = Math.min(CHUNK_SIZE, dataSize - position);
+			streamBuffer.put(FrameDecoder.STREAM_CHUNK_MSG_TYPE).putInt(0).putInt(length).put(data, position, length);
+		}
+		dataStream = streamBuffer.array();
+	}
+
+	@TearDown(Level.Invocation)
+	public void waitForMessages() {
+		while(node.getGeoWeb().metrics.messagesInFlight.get() > 0)
+			Thread.yield();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		node.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public void messages() throws IOException {
+		readLoop(new FrameDecoder(peer), new ByteStream(messagesStream));
+	}
+
+	/**
+	 * Data frame hashed and streamed to a sink discarding it
+	 */
+	@Benchmark
+	public void data() throws IOException {
+		peer.requestedData.put(dataHash, new DataRequest(dataHash, discard));
+		readLoop(new FrameDecoder(peer), new ByteStream(dataFrame));
+	}
+
+	/**
+	 * Same data as {@link #data()}, received as a stream of chunks
+	 */
+	@Benchmark
+	public void streamedData() throws IOException {
+		peer.requestedData.put(dataHash, new DataRequest(dataHash, discard));
+		readLoop(new FrameDecoder(peer), new ByteStream(dataStream));
+	}
+
+	/**
+	 * Same loop as {@link Peer#run()}
+	 */
+	private void readLoop(FrameDecoder decoder, InputStream in) throws IOException {
+		ByteBuffer buffer = readBuffer;
+		buffer.clear();
+
+		while(true) {
+			int readBytes = in.read(buffer.array(), buffer.position(), buffer.remaining());
+
+			if(readBytes < 0)
+				break;
+
+			buffer.position(buffer.position() + readBytes);
+			buffer.flip();
+			decoder.decode(buffer);
+			buffer.compact();
+		}
+	}
+
+	/**
+	 * Unsynchronized stream over an array, unlike ByteArrayInputStream
+	 */
+	private static class ByteStream extends InputStream {
+
+		private byte[] bytes;
+		private int position = 0;
+
+		private ByteStream(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int read() {
+			return position < bytes.length ? bytes[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] target, int offset, int length) {
+			if(position >= bytes.length)
+				return -1;
+
+			int count = Math.min(length, bytes.length - position);
+			System.arraycopy(bytes, position, target, offset, count);
+			position += count;
+
+			return count;
+		}
+
+	}
+
+}
@@ -0,0 +1,100 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.virgo.geoWeb.codec.MessageCodec;
+import io.virgo.geoWeb.utils.Miscellaneous;
+
+/**
+ * Cost of turning a message into a frame ready to be written
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+	private static final int MAX_QUEUED = 4096;
+
+	@Param({"json", "binary"})
+	public String codecName;
+
+	private BenchmarkNode node;
+	private Peer peer;
+	private MessageCodec codec;
+	private JSONObject message;
+	private byte[] body;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		node = new BenchmarkNode(false);
+		codec = BenchmarkNode.codec(codecName);
+		peer = node.connectPeer(codec);
+		message = BenchmarkNode.sampleMessage();
+		body = codec.encode(message);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		node.shutdown();
+	}
+
+	/**
+	 * Encoding only, shared by all framing paths
+	 */
+	@Benchmark
+	public byte[] encode() {
+		return codec.encode(message);
+	}
+
+	/**
+	 * Copying framing, type and length prepended to the body in a new array
+	 */
+	@Benchmark
+	public byte[] concatBytesArrays() {
+		return Miscellaneous.concatBytesArrays(new byte[] {codec.getMessageType()}, Miscellaneous.intToBytes(body.length), body);
+	}
+
+	/**
+	 * Zero copy framing, pooled header and wrapped body
+	 */
+	@Benchmark
+	public long outboundFrame() {
+		OutboundFrame frame = OutboundFrame.message(codec.getMessageType(), body);
+		long size = frame.size();
+		frame.release();
+
+		return size;
+	}
+
+	/**
+	 * Encoding, framing and queuing, the frame is then written by the peer's writer thread to a loopback socket
+	 * Waits when the queue gets long so the writer keeps up, measuring sustained sending
+	 */
+	@Benchmark
+	public void sendMessage() {
+		peer.sendMessage(message);
+
+		while(peer.getQueuedMessages() > MAX_QUEUED)
+			Thread.yield();
+	}
+
+}
@@ -0,0 +1,61 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.virgo.geoWeb.codec.MessageCodec;
+
+/**
+ * Parsing and dispatching of a received message by {@link MessageHandler#superOnMessage}, on the calling thread
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageHandlerBenchmark {
+
+	@Param({"json", "binary"})
+	public String codecName;
+
+	private BenchmarkNode node;
+	private Peer peer;
+	private MessageHandler handler;
+	private MessageCodec codec;
+	private byte[] body;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		node = new BenchmarkNode(false);
+		codec = BenchmarkNode.codec(codecName);
+		peer = node.connectPeer(codec);
+		handler = node.getGeoWeb().getMessageHandler();
+		body = codec.encode(BenchmarkNode.sampleMessage());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		node.shutdown();
+	}
+
+	@Benchmark
+	public void superOnMessage() {
+		handler.superOnMessage(body, codec, peer);
+	}
+
+}
@@ -0,0 +1,74 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ordering of known addresses by {@link PeersCountWatchdog#getPeersByScore()}, and reindexing one of them
+ *
+ * Addresses are in TEST-NET-1, which isn't routed, so watchdog connection attempts running meanwhile just time out
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeersByScoreBenchmark {
+
+	@Param({"10000", "50000"})
+	public int addresses;
+
+	private BenchmarkNode node;
+	private PeersCountWatchdog watchdog;
+	private String[] known;
+	private int updated = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		node = new BenchmarkNode(false);
+		watchdog = node.getGeoWeb().getPeersCountWatchDog();
+
+		known = new String[addresses];
+		for(int i = 0; i < addresses; i++) {
+			String address = "192.0.2." + (i % 256) + ":" + (1024 + i / 256);
+			known[i] = address;
+			watchdog.addPossiblePeer(address, i % 21 - 10);
+
+			if(i % 3 == 0)
+				watchdog.updatePeerRtt(address, i % 500);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		node.shutdown();
+	}
+
+	@Benchmark
+	public ArrayList<String> getPeersByScore() {
+		return watchdog.getPeersByScore();
+	}
+
+	@Benchmark
+	public void updatePeerRtt() {
+		updated++;
+		watchdog.updatePeerRtt(known[updated % addresses], updated % 500);
+	}
+
+}
@@ -0,0 +1,63 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trip of {@link Peer#sendSyncMessage(JSONObject)} to a loopback peer answering right away
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyncMessageBenchmark {
+
+	@Param({"json", "binary"})
+	public String codecName;
+
+	private BenchmarkNode node;
+	private Peer peer;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		node = new BenchmarkNode(true);
+		peer = node.connectPeer(BenchmarkNode.codec(codecName));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		node.shutdown();
+	}
+
+	@Benchmark
+	public SyncMessageResponse sendSyncMessage() {
+		//reqUid is added to the message, so a new one is needed each time
+		JSONObject message = new JSONObject();
+		message.put("command", "hello");
+
+		SyncMessageResponse response = peer.sendSyncMessage(message);
+
+		if(response.getResponse() == null)
+			throw new IllegalStateException("unexpected response " + response.getResponseCode());
+
+		return response;
+	}
+
+}
@@ -0,0 +1,385 @@
+package io.virgo.geoWeb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiFunction;
+
+/**
+ * Known peers addresses, indexed by score and by last time they were seen so both orders can be walked
+ * and updated in logarithmic time from any thread
+ *
+ * Entries are immutable, an update replaces the entry of an address in both indexes. Once capacity is reached
+ * the least recently seen address is forgotten to make room, addresses not seen for ttl are evicted by {@link #evictStale()}
+ *
+ * A {@link Listener} can be told of each change of an address's score or last seen time, to persist them
+ */
+class AddressBook {
+
+	//minimal time between two score updates of an address
+	static final long SCORE_UPDATE_INTERVAL = 600000L;
+
+	private static final Comparator<Entry> BY_SCORE = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry a, Entry b) {
+			if(a.score != b.score)
+				return Integer.compare(b.score, a.score);
+
+			if(a.rtt != b.rtt)
+				return Double.compare(a.rtt, b.rtt);
+
+			return a.address.compareTo(b.address);
+		}
+
+	};
+
+	private static final Comparator<Entry> BY_LAST_SEEN = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry a, Entry b) {
+			if(a.lastSeen != b.lastSeen)
+				return Long.compare(a.lastSeen, b.lastSeen);
+
+			return a.address.compareTo(b.address);
+		}
+
+	};
+
+	private ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private ConcurrentSkipListSet<Entry> byScore = new ConcurrentSkipListSet<Entry>(BY_SCORE);
+	private ConcurrentSkipListSet<Entry> byLastSeen = new ConcurrentSkipListSet<Entry>(BY_LAST_SEEN);
+	private int capacity;
+	private long ttl;
+	private volatile Listener listener;
+
+	/**
+	 * @param capacity the maximum number of addresses remembered
+	 * @param ttl how long an address not seen again is remembered, in milliseconds
+	 */
+	AddressBook(int capacity, long ttl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Add an address with given score, or mark it as seen now if already known
+	 *
+	 * @return true if address wasn't known
+	 */
+	boolean add(String address, int score) {
+		return add(address, score, System.currentTimeMillis());
+	}
+
+	/**
+	 * Add an address with given score and last seen time, or mark it as seen at that time if already known
+	 *
+	 * @return true if address wasn't known
+	 */
+	boolean add(String address, int score, long lastSeen) {
+		boolean[] added = new boolean[1];
+
+		update(address, new BiFunction<String, Entry, Entry>() {
+
+			@Override
+			public Entry apply(String address, Entry entry) {
+				if(entry == null) {
+					added[0] = true;
+					return new Entry(address, score, Double.MAX_VALUE, lastSeen, 0);
+				}
+
+				if(lastSeen <= entry.lastSeen)
+					return entry;
+
+				return new Entry(address, entry.score, entry.rtt, lastSeen, entry.lastScoreUpdate);
+			}
+
+		});
+
+		if(added[0])
+			evictOverflow();
+
+		return added[0];
+	}
+
+	/**
+	 * Add an address as it was before a restart, unless it has been seen since. Listener isn't told
+	 */
+	void restore(String address, int score, long lastSeen) {
+		boolean[] added = new boolean[1];
+
+		update(address, new BiFunction<String, Entry, Entry>() {
+
+			@Override
+			public Entry apply(String address, Entry entry) {
+				if(entry != null)
+					return entry;
+
+				added[0] = true;
+				return new Entry(address, score, Double.MAX_VALUE, lastSeen, 0);
+			}
+
+		}, false);
+
+		if(added[0])
+			evictOverflow();
+	}
+
+	/**
+	 * Add modifier to an address's score, at most once per {@link #SCORE_UPDATE_INTERVAL}, address is added if unknown
+	 */
+	void updateScore(String address, int modifier) {
+		long now = System.currentTimeMillis();
+		boolean[] added = new boolean[1];
+
+		update(address, new BiFunction<String, Entry, Entry>() {
+
+			@Override
+			public Entry apply(String address, Entry entry) {
+				if(entry == null) {
+					added[0] = true;
+					return new Entry(address, modifier, Double.MAX_VALUE, now, now);
+				}
+
+				if(entry.lastScoreUpdate > now - SCORE_UPDATE_INTERVAL)
+					return entry;
+
+				//reaching an address counts as seeing it
+				return new Entry(address, entry.score + modifier, entry.rtt, modifier > 0 ? now : entry.lastSeen, now);
+			}
+
+		});
+
+		if(added[0])
+			evictOverflow();
+	}
+
+	/**
+	 * Set the round trip time of a known address, Double.MAX_VALUE to forget it
+	 */
+	void updateRtt(String address, double rtt) {
+		update(address, new BiFunction<String, Entry, Entry>() {
+
+			@Override
+			public Entry apply(String address, Entry entry) {
+				if(entry == null || entry.rtt == rtt)
+					return entry;
+
+				return new Entry(address, entry.score, rtt, entry.lastSeen, entry.lastScoreUpdate);
+			}
+
+		});
+	}
+
+	void remove(String address) {
+		update(address, new BiFunction<String, Entry, Entry>() {
+
+			@Override
+			public Entry apply(String address, Entry entry) {
+				return null;
+			}
+
+		});
+	}
+
+	/**
+	 * @return given address's entry, null if unknown
+	 */
+	Entry get(String address) {
+		return entries.get(address);
+	}
+
+	/**
+	 * @return the entry with highest score, lowest round trip time first among equal scores, null if empty
+	 */
+	Entry first() {
+		try {
+			return byScore.first();
+		}catch(NoSuchElementException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the entry coming after given one in score order, null if none
+	 * Given entry may have been updated or removed since
+	 */
+	Entry next(Entry entry) {
+		return byScore.higher(entry);
+	}
+
+	/**
+	 * @return all entries in score order
+	 */
+	ArrayList<Entry> byScore() {
+		return new ArrayList<Entry>(byScore);
+	}
+
+	/**
+	 * Forget addresses not seen for longer than ttl
+	 *
+	 * @return the number of addresses forgotten
+	 */
+	int evictStale() {
+		long limit = System.currentTimeMillis() - ttl;
+		int evicted = 0;
+
+		while(true) {
+			Entry oldest = oldest();
+			if(oldest == null || oldest.lastSeen >= limit)
+				return evicted;
+
+			if(evict(oldest))
+				evicted++;
+		}
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Forget least recently seen addresses until capacity is respected
+	 */
+	private void evictOverflow() {
+		while(entries.size() > capacity) {
+			Entry oldest = oldest();
+			if(oldest == null)
+				return;
+
+			evict(oldest);
+		}
+	}
+
+	private Entry oldest() {
+		try {
+			return byLastSeen.first();
+		}catch(NoSuchElementException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Remove given entry if it is still the current one of it's address, an updated one is already out of indexes
+	 */
+	private boolean evict(Entry oldest) {
+		boolean[] evicted = new boolean[1];
+
+		update(oldest.address, new BiFunction<String, Entry, Entry>() {
+
+			@Override
+			public Entry apply(String address, Entry entry) {
+				if(entry != oldest)
+					return entry;
+
+				evicted[0] = true;
+				return null;
+			}
+
+		});
+
+		return evicted[0];
+	}
+
+	/**
+	 * Tell given listener of changes from now on
+	 */
+	void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	private void update(String address, BiFunction<String, Entry, Entry> function) {
+		update(address, function, true);
+	}
+
+	/**
+	 * Replace an address's entry atomically, keeping indexes in sync, then tell listener while still holding the address's lock
+	 * so changes of an address reach it in order
+	 */
+	private void update(String address, BiFunction<String, Entry, Entry> function, boolean notify) {
+		entries.compute(address, new BiFunction<String, Entry, Entry>() {
+
+			@Override
+			public Entry apply(String address, Entry entry) {
+				Entry updated = function.apply(address, entry);
+				if(updated == entry)
+					return entry;
+
+				if(entry != null) {
+					byScore.remove(entry);
+					byLastSeen.remove(entry);
+				}
+
+				if(updated != null) {
+					byScore.add(updated);
+					byLastSeen.add(updated);
+				}
+
+				Listener listener = AddressBook.this.listener;
+				if(notify && listener != null) {
+					if(updated == null)
+						listener.removed(address);
+					else if(entry == null || entry.score != updated.score || entry.lastSeen != updated.lastSeen)
+						listener.changed(updated);
+				}
+
+				return updated;
+			}
+
+		});
+	}
+
+	/**
+	 * Told of changes of addresses scores and last seen times, must not block nor use the address book
+	 */
+	interface Listener {
+
+		void changed(Entry entry);
+
+		void removed(String address);
+
+	}
+
+	/**
+	 * A known address's state at some point
+	 */
+	static class Entry {
+
+		private String address;
+		private int score;
+		private double rtt;
+		private long lastSeen;
+		private long lastScoreUpdate;
+
+		private Entry(String address, int score, double rtt, long lastSeen, long lastScoreUpdate) {
+			this.address = address;
+			this.score = score;
+			this.rtt = rtt;
+			this.lastSeen = lastSeen;
+			this.lastScoreUpdate = lastScoreUpdate;
+		}
+
+		String getAddress() {
+			return address;
+		}
+
+		int getScore() {
+			return score;
+		}
+
+		/**
+		 * @return the last known round trip time in milliseconds, -1 if unknown
+		 */
+		double getRtt() {
+			return rtt == Double.MAX_VALUE ? -1 : rtt;
+		}
+
+		long getLastSeen() {
+			return lastSeen;
+		}
+
+	}
+
+}
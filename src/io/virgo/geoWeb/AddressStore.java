@@ -0,0 +1,368 @@
+package io.virgo.geoWeb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import io.virgo.geoWeb.utils.AddressUtils;
+import io.virgo.geoWeb.utils.Miscellaneous;
+
+/**
+ * Binary file keeping an {@link AddressBook} across restarts
+ *
+ * Changes of the address book are appended to a log, buffered in memory until {@link #flush()} so
+ * a crash loses changes made since the last flush only. Once the log holds more than twice as many records
+ * as the address book has entries, it is compacted into a snapshot of current entries
+ *
+ * {@link #load()} maps the file in memory and restores entries into the address book, it may run on another
+ * thread while the address book is already in use. Files in the former JSON format are imported and rewritten,
+ * as is the former default peers.json next to a store that doesn't exist yet, which is then deleted
+ *
+ * Format: magic number and version, then records made of a type byte, the address as length prefixed UTF-8,
+ * and for puts the score and last seen time. The last record of an address wins, an incomplete one ends the log
+ */
+class AddressStore implements AddressBook.Listener {
+
+	private static final int MAGIC = 0x47574142;//GWAB
+	private static final byte VERSION = 1;
+	private static final int HEADER_LENGTH = 5;
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	//logs smaller than this many records aren't compacted
+	private static final int MIN_COMPACTION_RECORDS = 1024;
+	//peers file of former versions
+	private static final String LEGACY_FILE_NAME = "peers.json";
+
+	private File file;
+	private AddressBook addressBook;
+	private FileChannel channel;
+
+	//records not written yet
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private DataOutputStream pendingOut = new DataOutputStream(pending);
+	private int records = 0;
+
+	private AtomicBoolean loadStarted = new AtomicBoolean(false);
+	private CountDownLatch loaded = new CountDownLatch(1);
+	private boolean closed = false;
+
+	AddressStore(File file, AddressBook addressBook) {
+		this.file = file;
+		this.addressBook = addressBook;
+	}
+
+	/**
+	 * Restore saved addresses into the address book then start writing changes, does nothing if already called
+	 */
+	void load() {
+		if(!loadStarted.compareAndSet(false, true))
+			return;
+
+		LinkedHashMap<String, Record> saved = new LinkedHashMap<String, Record>();
+		int[] count = new int[1];
+		long validLength = HEADER_LENGTH;
+		boolean rewrite = false;
+		File legacy = null;
+
+		try {
+			if(file.length() >= HEADER_LENGTH) {
+				validLength = read(saved, count);
+				if(validLength < 0) {
+					//not our format, may be a peers file saved as JSON
+					readJson(file, saved);
+					rewrite = true;
+				}
+			}else {
+				legacy = legacyFile();
+				if(legacy != null)
+					readJson(legacy, saved);
+
+				rewrite = true;
+			}
+		} catch (IOException e) {
+			System.out.println("Couldn't read " + file.getPath() + ": " + e.getMessage());
+			rewrite = true;
+		}
+
+		for(Map.Entry<String, Record> entry : saved.entrySet())
+			addressBook.restore(entry.getKey(), entry.getValue().score, entry.getValue().lastSeen);
+
+		synchronized(this) {
+			records += count[0];
+
+			try {
+				if(rewrite) {
+					compact();
+
+					//addresses are now saved in the store
+					if(legacy != null)
+						legacy.delete();
+				}else {
+					channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+
+					//drop a record cut by a crash
+					channel.truncate(validLength);
+					channel.position(validLength);
+				}
+			} catch (IOException e) {
+				System.out.println("Couldn't write " + file.getPath() + ": " + e.getMessage());
+			}
+
+			loaded.countDown();
+		}
+
+		flush();
+	}
+
+	/**
+	 * Write changes made since last call, then compact the log if it grew too large
+	 */
+	synchronized void flush() {
+		if(loaded.getCount() > 0 || closed || pending.size() == 0)
+			return;
+
+		try {
+			//last compaction failed, retry
+			if(channel == null) {
+				compact();
+				return;
+			}
+
+			ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+
+			pending.reset();
+
+			if(records > Math.max(MIN_COMPACTION_RECORDS, 2 * addressBook.size()))
+				compact();
+		} catch (IOException e) {
+			System.out.println("Couldn't write " + file.getPath() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Write remaining changes and close the file, waits for loading to end
+	 */
+	void close() {
+		load();
+
+		try {
+			loaded.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		flush();
+
+		synchronized(this) {
+			closed = true;
+
+			if(channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void changed(AddressBook.Entry entry) {
+		if(closed)
+			return;
+
+		try {
+			writePut(pendingOut, entry);
+			records++;
+		} catch (IOException e) {
+			//written to memory
+		}
+	}
+
+	@Override
+	public synchronized void removed(String address) {
+		if(closed)
+			return;
+
+		try {
+			pendingOut.writeByte(REMOVE);
+			writeAddress(pendingOut, address);
+			records++;
+		} catch (IOException e) {
+			//written to memory
+		}
+	}
+
+	/**
+	 * Replace the file by a snapshot of the address book, pending records are already part of it
+	 */
+	private void compact() throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(snapshot);
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+
+		int count = 0;
+		for(AddressBook.Entry entry : addressBook.byScore()) {
+			writePut(out, entry);
+			count++;
+		}
+
+		FileChannel temporaryChannel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(snapshot.toByteArray());
+			while(buffer.hasRemaining())
+				temporaryChannel.write(buffer);
+
+			temporaryChannel.force(false);
+		} finally {
+			temporaryChannel.close();
+		}
+
+		if(channel != null) {
+			channel.close();
+			channel = null;
+		}
+
+		try {
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(AtomicMoveNotSupportedException e) {
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		channel.position(channel.size());
+
+		pending.reset();
+		records = count;
+	}
+
+	private static void writePut(DataOutputStream out, AddressBook.Entry entry) throws IOException {
+		out.writeByte(PUT);
+		writeAddress(out, entry.getAddress());
+		out.writeInt(entry.getScore());
+		out.writeLong(entry.getLastSeen());
+	}
+
+	private static void writeAddress(DataOutputStream out, String address) throws IOException {
+		byte[] addressBytes = address.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(addressBytes.length);
+		out.write(addressBytes);
+	}
+
+	/**
+	 * Read the log through a memory mapping into given map
+	 *
+	 * @param count set to the number of records read
+	 * @return the length of the log up to it's last complete record, -1 if file isn't in this format
+	 */
+	private long read(Map<String, Record> saved, int[] count) throws IOException {
+		FileChannel readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		try {
+			MappedByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(readChannel.size(), Integer.MAX_VALUE));
+
+			if(buffer.getInt() != MAGIC || buffer.get() != VERSION)
+				return -1;
+
+			long validLength = buffer.position();
+
+			while(buffer.remaining() >= 3) {
+				byte type = buffer.get();
+				int length = buffer.getShort() & 0xFFFF;
+
+				if((type != PUT && type != REMOVE) || buffer.remaining() < length + (type == PUT ? 12 : 0))
+					break;
+
+				byte[] addressBytes = new byte[length];
+				buffer.get(addressBytes);
+				String address = new String(addressBytes, StandardCharsets.UTF_8);
+
+				//keep addresses in the order they were last written
+				saved.remove(address);
+				if(type == PUT)
+					saved.put(address, new Record(buffer.getInt(), buffer.getLong()));
+
+				count[0]++;
+				validLength = buffer.position();
+			}
+
+			return validLength;
+		} finally {
+			readChannel.close();
+		}
+	}
+
+	/**
+	 * @return the peers file of a former version in the same directory, if store has never been created
+	 */
+	private File legacyFile() {
+		if(file.exists())
+			return null;
+
+		File legacy = new File(file.getAbsoluteFile().getParentFile(), LEGACY_FILE_NAME);
+		if(!legacy.isFile() || legacy.getAbsoluteFile().equals(file.getAbsoluteFile()))
+			return null;
+
+		return legacy;
+	}
+
+	/**
+	 * Read a peers file saved as a JSON array of host and score objects
+	 */
+	private void readJson(File jsonFile, Map<String, Record> saved) {
+		try {
+			JSONArray peersArray = new JSONArray(Miscellaneous.fileToString(jsonFile.getPath()));
+			long now = System.currentTimeMillis();
+
+			for(int i = 0; i < peersArray.length(); i++) {
+				try {
+					JSONObject possiblePeer = peersArray.getJSONObject(i);
+					String address = possiblePeer.getString("host");
+
+					if(AddressUtils.isValidHostnameAndPort(address))
+						saved.put(address, new Record(possiblePeer.getInt("score"), possiblePeer.optLong("lastSeen", now)));
+				}catch(JSONException e) {
+					//continue reading through array and maybe get valid peers
+				}
+			}
+		}catch(JSONException e) {
+			//neither format, file is replaced by an empty log
+		}
+	}
+
+	private static class Record {
+
+		private int score;
+		private long lastSeen;
+
+		private Record(int score, long lastSeen) {
+			this.score = score;
+			this.lastSeen = lastSeen;
+		}
+
+	}
+
+}
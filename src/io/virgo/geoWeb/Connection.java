@@ -0,0 +1,32 @@
+package io.virgo.geoWeb;
+
+/**
+ * Link to a peer carrying it's frames, established by a {@link Transport}
+ */
+abstract class Connection {
+
+	/**
+	 * @return the address of the remote end, an IP for TCP connections
+	 */
+	abstract String getRemoteAddress();
+
+	/**
+	 * @return the hostname of the remote end, used until peer tells it's own
+	 */
+	abstract String getRemoteHostname();
+
+	abstract int getRemotePort();
+
+	/**
+	 * Apply given instance's options to the underlying link, before anything is sent
+	 */
+	void configure(GeoWeb geoWeb) {}
+
+	abstract boolean isClosed();
+
+	/**
+	 * Close the link, without notifying the peer
+	 */
+	abstract void close();
+
+}
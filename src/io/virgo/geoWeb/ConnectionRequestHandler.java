@@ -9,16 +9,22 @@ import java.net.Socket;
  */
 class ConnectionRequestHandler implements Runnable{
 	
+	private GeoWeb geoWeb;
+	
+	ConnectionRequestHandler(GeoWeb geoWeb) {
+		this.geoWeb = geoWeb;
+	}
+	
 	@Override
 	public void run() {
 		
 		while(!Thread.currentThread().isInterrupted()) {
 			
 			try {
-				Socket socket = GeoWeb.getInstance().getServer().accept();
+				Socket socket = geoWeb.getServer().accept();
 				String address = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
-				if(!GeoWeb.getInstance().peers.containsKey(address) && !GeoWeb.getInstance().pendingPeers.containsKey(address)) {
-					new Thread(new Peer(socket, false)).start();
+				if(!geoWeb.peers.containsKey(address) && !geoWeb.pendingPeers.containsKey(address)) {
+					geoWeb.newConnectionThread(new Peer(geoWeb, socket, false)).start();
 				}
 			} catch (IOException e) {
 			}
@@ -1,56 +1,137 @@
 package io.virgo.geoWeb;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
-import io.virgo.virgoCryptoLib.Sha256;
+import io.virgo.geoWeb.data.ContentCache;
+import io.virgo.geoWeb.data.DataSink;
+import io.virgo.geoWeb.data.MemoryDataSink;
+import io.virgo.geoWeb.utils.HashedWheelTimer;
 import io.virgo.virgoCryptoLib.Sha256Hash;
 
 /**
  * Object representing a data request
+ *
+ * Data is hashed as it arrives and streamed to a {@link DataSink}, in memory by default
  */
 public class DataRequest {
 
 	private ResponseCode status = ResponseCode.UNKNOWN_CODE;
 	private Sha256Hash dataHash;
-	
-	byte[] data;
-	
-	int received = 0;
-	int dataSize = 0;
-	
+
+	private DataSink sink;
+	private MessageDigest digest;
+	private boolean sinkFailed = false;
+
+	long received = 0;
+	long dataSize = 0;
+	//sent as part of a batch, counted in peer's pipeline until answered
+	boolean pipelined = false;
+	//fails the request if peer doesn't start answering a batched request in time
+	HashedWheelTimer.Timeout pipelineTimeout;
+
 	/**
+	 * Request data to be kept in memory
+	 *
 	 * @param dataHash the hash of the data requested
 	 */
 	public DataRequest(Sha256Hash dataHash) {
+		this(dataHash, new MemoryDataSink());
+	}
+
+	/**
+	 * @param dataHash the hash of the data requested
+	 * @param sink where to write data as it is received
+	 */
+	public DataRequest(Sha256Hash dataHash, DataSink sink) {
 		this.dataHash = dataHash;
+		this.sink = sink;
 	}
 
 
 	/**
-	 * Called when peer accepted to give data,
-	 * initiate an array of given size to receive data 
-	 * 
+	 * Called when peer accepted to give data, open the sink to receive data
+	 *
 	 * @param dataSize the expected size of data
 	 */
-	void prepare(int dataSize) {
-		data = new byte[dataSize];
-		
+	void prepare(long dataSize) {
 		this.dataSize = dataSize;
-		
+		received = 0;
+		sinkFailed = false;
+
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 unavailable", e);
+		}
+
+		try {
+			sink.open(dataSize);
+		} catch (IOException e) {
+			sinkFailed = true;
+		}
+
 		status = ResponseCode.ACCEPTED;
-		
+
 		onDownloadStarted();
 	}
 
+	/**
+	 * Called for each chunk of data received, hash it and give it to the sink
+	 * If the sink failed, data is still consumed but ignored
+	 */
+	void write(ByteBuffer chunk) {
+		int length = chunk.remaining();
+
+		digest.update(chunk.duplicate());
+
+		if(!sinkFailed) {
+			try {
+				sink.write(chunk);
+			} catch (IOException e) {
+				sinkFailed = true;
+			}
+		}
+
+		chunk.position(chunk.limit());
+		received += length;
+
+		onDownloadProgress(received, dataSize);
+	}
+
 
 	/**
 	 * Called when download finished, check if received data correspond to
 	 * expectations and trigger onDownloadFinished event
 	 * or onDownloadError if data is bad
+	 * 
+	 * @param cache the cache to keep received data in, or null if disabled
 	 */
-	void finish() {
-		if(Sha256.getHash(data).equals(dataHash)) {
+	void finish(ContentCache cache) {
+		boolean success = !sinkFailed && digest != null && received == dataSize
+				&& new Sha256Hash(digest.digest()).equals(dataHash);
+
+		try {
+			sink.close(success);
+		} catch (IOException e) {
+			success = false;
+		}
+
+		if(success) {
 			status = ResponseCode.OK;
+			
+			byte[] data = null;
+			if(sink instanceof MemoryDataSink) {
+				data = ((MemoryDataSink) sink).getData();
+				
+				//cached apart from the array given to onDownloadFinished, which may modify it
+				if(cache != null)
+					cache.put(dataHash, data.clone());
+			}
+			
 			onDownloadFinished(data);
 		}else {
 			status = ResponseCode.ERROR;
@@ -58,58 +139,96 @@ public class DataRequest {
 		}
 	}
 
+	/**
+	 * Called when peer told it doesn't have the data
+	 */
+	void notFound() {
+		status = ResponseCode.NOT_FOUND;
+		onDownloadError();
+	}
+
+	/**
+	 * Called when peer didn't answer in time, disconnected or will never answer
+	 */
+	void failed() {
+		status = ResponseCode.ERROR;
+		onDownloadError();
+	}
+
 	/**
 	 * @return Expected data hash
 	 */
 	public Sha256Hash getHash() {
 		return dataHash;
 	}
-	
-	
+
+	/**
+	 * @return the sink data is written to
+	 */
+	public DataSink getSink() {
+		return sink;
+	}
+
 	public long getDataSize() {
 		return dataSize;
 	}
-	
+
+	/**
+	 * @return a stream over received data
+	 * @throws IllegalStateException if data is not kept in memory
+	 */
 	public ByteArrayInputStream getDataInputStream() {
-		return new ByteArrayInputStream(data);
+		if(!(sink instanceof MemoryDataSink))
+			throw new IllegalStateException("data is not kept in memory");
+
+		return new ByteArrayInputStream(((MemoryDataSink) sink).getData());
 	}
-	
+
 	/**
 	 * @return Request status
 	 */
 	public ResponseCode getStatus() {
 		return status;
 	}
-	
+
 	/**
 	 * @return downloaded data size in bytes
 	 */
-	public int getDownloadedSize() {
+	public long getDownloadedSize() {
 		return received;
 	}
-	
+
 	/**
 	 * Overridable event called when data download starts
 	 */
 	public void onDownloadStarted() {
-		
+
+	}
+
+	/**
+	 * Overridable event called each time a part of the data has been received
+	 * @param downloaded the number of bytes received so far
+	 * @param total the size of the data
+	 */
+	public void onDownloadProgress(long downloaded, long total) {
+
 	}
-	
+
 	/**
 	 * Overridable event called when download finished
-	 * @param data the requested data
+	 * @param data the requested data, or null if it has not been kept in memory
 	 * @return the requested data
 	 */
 	public byte[] onDownloadFinished(byte[] data) {
 		return data;
 	}
-	
+
 	/**
 	 * Overridable event called when an error occur during download,
 	 * Most probably wrong data received
 	 */
 	public void onDownloadError() {
-		
+
 	}
-	
+
 }
@@ -0,0 +1,124 @@
+package io.virgo.geoWeb;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves hostnames on a given executor so slow name servers don't stall connection threads,
+ * results are cached for a time, failures for a shorter one
+ *
+ * Concurrent lookups of the same hostname share a single query, at most capacity hostnames are remembered, oldest first out
+ */
+class DnsResolver {
+
+	private static final Pattern IPV4 = Pattern.compile("([0-9]{1,3}\\.){3}[0-9]{1,3}");
+
+	private LinkedHashMap<String, Resolution> cache = new LinkedHashMap<String, Resolution>();
+	private int capacity;
+	private long ttl;
+	private long negativeTtl;
+	private Executor executor;
+
+	/**
+	 * @param capacity the maximum number of hostnames remembered
+	 * @param ttl how long a resolved address is remembered, in milliseconds
+	 * @param negativeTtl how long a failed lookup is remembered, in milliseconds
+	 * @param executor runs lookups, may block
+	 */
+	DnsResolver(int capacity, long ttl, long negativeTtl, Executor executor) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.executor = executor;
+	}
+
+	/**
+	 * @return a future completed with the IP address of given hostname, or exceptionally with an
+	 * {@link UnknownHostException} if it couldn't be resolved
+	 */
+	CompletableFuture<String> resolve(String hostname) {
+		//literal addresses don't need a query
+		if(IPV4.matcher(hostname).matches() || hostname.indexOf(':') >= 0) {
+			try {
+				return CompletableFuture.completedFuture(InetAddress.getByName(hostname).getHostAddress());
+			} catch (UnknownHostException e) {
+				CompletableFuture<String> failed = new CompletableFuture<String>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+		}
+
+		Resolution resolution;
+
+		synchronized(this) {
+			resolution = cache.get(hostname);
+			if(resolution != null && !resolution.isExpired())
+				return resolution.future;
+
+			resolution = new Resolution();
+			cache.remove(hostname);
+			cache.put(hostname, resolution);
+
+			if(cache.size() > capacity) {
+				Iterator<Map.Entry<String, Resolution>> iterator = cache.entrySet().iterator();
+				iterator.next();
+				iterator.remove();
+			}
+		}
+
+		lookup(hostname, resolution);
+
+		return resolution.future;
+	}
+
+	private void lookup(String hostname, Resolution resolution) {
+		Runnable lookup = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					String address = InetAddress.getByName(hostname).getHostAddress();
+					resolution.expires = System.currentTimeMillis() + ttl;
+					resolution.future.complete(address);
+				} catch (UnknownHostException | SecurityException e) {
+					resolution.expires = System.currentTimeMillis() + negativeTtl;
+					resolution.future.completeExceptionally(e);
+				}
+			}
+
+		};
+
+		try {
+			executor.execute(lookup);
+		}catch(RejectedExecutionException e) {
+			//shutting down
+			resolution.expires = 0;
+			resolution.future.completeExceptionally(e);
+		}
+	}
+
+	synchronized int size() {
+		return cache.size();
+	}
+
+	private static class Resolution {
+
+		private CompletableFuture<String> future = new CompletableFuture<String>();
+
+		//set before future completes, lookups in progress never expire
+		private volatile long expires = Long.MAX_VALUE;
+
+		private boolean isExpired() {
+			return System.currentTimeMillis() >= expires;
+		}
+
+	}
+
+}
@@ -0,0 +1,109 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Frames coalesced to be sent with a single gathering write
+ *
+ * A frame streamed from a file is always sent alone
+ */
+class FrameBatch {
+
+	private ArrayList<OutboundFrame> frames = new ArrayList<OutboundFrame>();
+	private ByteBuffer[] buffers = new ByteBuffer[16];
+	private int buffersCount = 0;
+	private int offset = 0;
+	private long size = 0;
+
+	/**
+	 * @return true if given frame can be added to the batch
+	 */
+	boolean canAdd(OutboundFrame frame) {
+		return frames.isEmpty() || (!frame.isStreamed() && !frames.get(0).isStreamed());
+	}
+
+	void add(OutboundFrame frame) {
+		frames.add(frame);
+		size += frame.size();
+
+		if(frame.isStreamed())
+			return;
+
+		ByteBuffer[] frameBuffers = frame.buffers();
+		if(buffersCount + frameBuffers.length > buffers.length)
+			buffers = Arrays.copyOf(buffers, Math.max(buffers.length * 2, buffersCount + frameBuffers.length));
+
+		System.arraycopy(frameBuffers, 0, buffers, buffersCount, frameBuffers.length);
+		buffersCount += frameBuffers.length;
+	}
+
+	/**
+	 * Write as much of the batch as the channel accepts, releasing frames once all of the batch is written
+	 *
+	 * @return true if the whole batch has been written
+	 */
+	boolean writeTo(GatheringByteChannel channel) throws IOException {
+		if(frames.isEmpty())
+			return true;
+
+		if(frames.get(0).isStreamed()) {
+			if(!frames.get(0).writeTo(channel))
+				return false;
+		}else {
+			channel.write(buffers, offset, buffersCount - offset);
+
+			while(offset < buffersCount && !buffers[offset].hasRemaining())
+				offset++;
+
+			if(offset < buffersCount)
+				return false;
+		}
+
+		clear();
+		return true;
+	}
+
+	/**
+	 * Release all frames and empty the batch
+	 */
+	void clear() {
+		for(OutboundFrame frame : frames)
+			frame.release();
+
+		frames.clear();
+		Arrays.fill(buffers, 0, buffersCount, null);
+		buffersCount = 0;
+		offset = 0;
+		size = 0;
+	}
+
+	boolean isEmpty() {
+		return frames.isEmpty();
+	}
+
+	/**
+	 * @return true if nothing else can be added to the batch
+	 */
+	boolean isStreamed() {
+		return !frames.isEmpty() && frames.get(0).isStreamed();
+	}
+
+	/**
+	 * @return number of batched frames
+	 */
+	int count() {
+		return frames.size();
+	}
+
+	/**
+	 * @return total size of batched frames, in bytes
+	 */
+	long size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,329 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import io.virgo.geoWeb.codec.JsonCodec;
+import io.virgo.geoWeb.codec.MessageCodec;
+import io.virgo.virgoCryptoLib.Sha256Hash;
+
+/**
+ * Incremental parser of the peer wire format, fed with whatever bytes are available
+ *
+ * First Byte of a message is it's type, either Data or the {@link MessageCodec} the message is encoded with
+ * Four next bytes are the body length, data messages then carry the 32 bytes hash of the data
+ * Large data messages use an eight bytes length instead
+ *
+ * Data can also come as a stream: an open message carrying a stream id, the data size and hash, then chunks
+ * carrying the stream id and their length, interleaved with other messages. Remote may only send as many bytes
+ * of a stream as we granted it, starting with {@link GeoWeb#getDataStreamWindow()}, credit is granted back
+ * as chunks are consumed
+ */
+class FrameDecoder {
+
+	static final byte JSON_MSG_TYPE = JsonCodec.MESSAGE_TYPE;
+	static final byte DATA_MSG_TYPE = 0x02;
+	static final byte LARGE_DATA_MSG_TYPE = 0x03;
+	static final byte STREAM_OPEN_MSG_TYPE = 0x04;
+	static final byte STREAM_CHUNK_MSG_TYPE = 0x01;
+
+	static final int HEADER_LENGTH = 5;
+	static final int LARGE_HEADER_LENGTH = 9;
+	static final int HASH_LENGTH = 32;
+	static final int STREAM_OPEN_HEADER_LENGTH = 13;
+	static final int STREAM_CHUNK_HEADER_LENGTH = 9;
+
+	private enum State { TYPE, LENGTH, MESSAGE_BODY, DATA_HASH, DATA_BODY, STREAM_HEADER, STREAM_HASH, STREAM_BODY }
+
+	private Peer peer;
+	private State state = State.TYPE;
+
+	private ByteBuffer lengthBuffer = ByteBuffer.allocate(12);
+	private ByteBuffer hash = ByteBuffer.allocate(HASH_LENGTH);
+	private byte msgType;
+	private long msgLength;
+
+	private byte[] body;
+	private MessageCodec codec;
+	private int received;
+	private DataRequest recipient;
+
+	private HashMap<Integer, InboundStream> streams = new HashMap<Integer, InboundStream>();
+	private int streamId;
+	private InboundStream stream;
+	private int chunkReceived;
+
+	FrameDecoder(Peer peer) {
+		this.peer = peer;
+	}
+
+	/**
+	 * @return true if given message type is used by the wire format itself, so can't be a codec's
+	 */
+	static boolean isReservedType(byte type) {
+		return type == JSON_MSG_TYPE || type == DATA_MSG_TYPE || type == LARGE_DATA_MSG_TYPE
+				|| type == STREAM_OPEN_MSG_TYPE || type == STREAM_CHUNK_MSG_TYPE;
+	}
+
+	/**
+	 * Consume available bytes from buffer, dispatching every completed message
+	 *
+	 * @param buffer the buffer to read from, in read mode
+	 * @throws IOException if remote sent something we can't make sense of
+	 */
+	void decode(ByteBuffer buffer) throws IOException {
+
+		while(buffer.hasRemaining()) {
+
+			switch(state) {
+
+			case TYPE:
+				msgType = buffer.get();
+
+				lengthBuffer.clear();
+
+				if(msgType == STREAM_OPEN_MSG_TYPE || msgType == STREAM_CHUNK_MSG_TYPE) {
+					lengthBuffer.limit(msgType == STREAM_OPEN_MSG_TYPE ? 12 : 8);
+					state = State.STREAM_HEADER;
+				}else {
+					lengthBuffer.limit(msgType == LARGE_DATA_MSG_TYPE ? 8 : 4);
+					state = State.LENGTH;
+				}
+				break;
+
+			case LENGTH:
+				if(!fill(lengthBuffer, buffer))
+					return;
+
+				lengthBuffer.flip();
+				msgLength = lengthBuffer.limit() == 8 ? lengthBuffer.getLong() : lengthBuffer.getInt();
+
+				if(msgLength < 0)
+					throw new IOException("negative message length");
+
+				if(msgType == DATA_MSG_TYPE || msgType == LARGE_DATA_MSG_TYPE) {
+					state = State.DATA_HASH;
+				}else {
+					codec = peer.getGeoWeb().getCodec(msgType);
+					if(codec == null)
+						throw new IOException("unknown message type " + msgType);
+
+					body = new byte[(int) msgLength];
+					received = 0;
+					state = State.MESSAGE_BODY;
+
+					if(msgLength == 0)
+						finishMessage();
+				}
+				break;
+
+			case MESSAGE_BODY:
+				int length = (int) Math.min(buffer.remaining(), msgLength - received);
+				buffer.get(body, received, length);
+				received += length;
+
+				if(received >= msgLength)
+					finishMessage();
+				break;
+
+			/*
+			 * if the hash doesn't correspond to any requested data throw an Exception and terminate connection
+			 * Otherwise stream the rest of the message to corresponding DataRequest
+			 */
+			case DATA_HASH:
+				if(!fill(hash, buffer))
+					return;
+
+				Sha256Hash dataHash = new Sha256Hash(hash.array().clone());
+				hash.clear();
+
+				recipient = peer.takeDataRequest(dataHash);
+				if(recipient == null)
+					throw new IOException("remote sent non requested data");
+
+				recipient.prepare(msgLength);
+				state = State.DATA_BODY;
+
+				if(msgLength == 0)
+					finishData();
+				break;
+
+			case DATA_BODY:
+				int chunkLength = (int) Math.min(buffer.remaining(), msgLength - recipient.received);
+
+				ByteBuffer chunk = buffer.duplicate();
+				chunk.limit(chunk.position() + chunkLength);
+				buffer.position(buffer.position() + chunkLength);
+
+				recipient.write(chunk);
+
+				if(recipient.received >= msgLength)
+					finishData();
+				break;
+
+			case STREAM_HEADER:
+				if(!fill(lengthBuffer, buffer))
+					return;
+
+				lengthBuffer.flip();
+				streamId = lengthBuffer.getInt();
+				msgLength = msgType == STREAM_OPEN_MSG_TYPE ? lengthBuffer.getLong() : lengthBuffer.getInt();
+
+				if(msgLength < 0)
+					throw new IOException("negative message length");
+
+				if(msgType == STREAM_OPEN_MSG_TYPE) {
+					if(streams.containsKey(streamId))
+						throw new IOException("stream " + streamId + " already open");
+
+					state = State.STREAM_HASH;
+				}else {
+					stream = streams.get(streamId);
+					if(stream == null)
+						throw new IOException("remote sent a chunk of unknown stream " + streamId);
+
+					//remote must respect the window we granted
+					if(msgLength > stream.credit || msgLength > stream.recipient.dataSize - stream.recipient.received)
+						throw new IOException("remote overflowed stream " + streamId);
+
+					stream.credit -= msgLength;
+					chunkReceived = 0;
+					state = State.STREAM_BODY;
+
+					if(msgLength == 0)
+						finishChunk();
+				}
+				break;
+
+			case STREAM_HASH:
+				if(!fill(hash, buffer))
+					return;
+
+				Sha256Hash streamHash = new Sha256Hash(hash.array().clone());
+				hash.clear();
+
+				DataRequest streamRecipient = peer.takeDataRequest(streamHash);
+				if(streamRecipient == null)
+					throw new IOException("remote sent non requested data");
+
+				peer.frameReceived();
+				streamRecipient.prepare(msgLength);
+				state = State.TYPE;
+
+				if(msgLength == 0) {
+					streamRecipient.finish(peer.getGeoWeb().getContentCache());
+					peer.dataRequestDone(streamRecipient);
+				}else
+					streams.put(streamId, new InboundStream(streamRecipient, peer.getGeoWeb().getDataStreamWindow()));
+				break;
+
+			case STREAM_BODY:
+				int streamChunkLength = (int) Math.min(buffer.remaining(), msgLength - chunkReceived);
+
+				ByteBuffer streamChunk = buffer.duplicate();
+				streamChunk.limit(streamChunk.position() + streamChunkLength);
+				buffer.position(buffer.position() + streamChunkLength);
+
+				stream.recipient.write(streamChunk);
+				chunkReceived += streamChunkLength;
+
+				if(chunkReceived >= msgLength)
+					finishChunk();
+				break;
+			}
+
+		}
+
+	}
+
+	private void finishMessage() {
+		peer.frameReceived();
+		peer.getGeoWeb().dispatchMessageTask(new MessageTask(body, codec, peer));
+		body = null;
+		codec = null;
+		state = State.TYPE;
+	}
+
+	private void finishData() {
+		peer.frameReceived();
+		recipient.finish(peer.getGeoWeb().getContentCache());
+		peer.dataRequestDone(recipient);
+		recipient = null;
+		state = State.TYPE;
+	}
+
+	/**
+	 * Finish stream once all it's data is received, grant credit back otherwise
+	 * once half the window has been consumed
+	 */
+	private void finishChunk() {
+		peer.frameReceived();
+
+		DataRequest streamRecipient = stream.recipient;
+		if(streamRecipient.received >= streamRecipient.dataSize) {
+			streams.remove(streamId);
+			streamRecipient.finish(peer.getGeoWeb().getContentCache());
+			peer.dataRequestDone(streamRecipient);
+		}else {
+			stream.consumed += msgLength;
+
+			if(stream.consumed >= stream.window / 2) {
+				stream.credit += stream.consumed;
+				peer.grantStreamCredit(streamId, stream.consumed);
+				stream.consumed = 0;
+			}
+		}
+
+		stream = null;
+		state = State.TYPE;
+	}
+
+	/**
+	 * Abort any partially received data, called when connection is lost
+	 * Those requests already left peer's requested data, their place in the pipeline is released here
+	 */
+	void abort() {
+		if(recipient != null) {
+			recipient.finish(peer.getGeoWeb().getContentCache());
+			peer.dataRequestDone(recipient);
+			recipient = null;
+		}
+
+		for(InboundStream openStream : streams.values()) {
+			openStream.recipient.finish(peer.getGeoWeb().getContentCache());
+			peer.dataRequestDone(openStream.recipient);
+		}
+		streams.clear();
+	}
+
+	/**
+	 * A stream being received, with the credit remote has left
+	 */
+	private static class InboundStream {
+
+		private DataRequest recipient;
+		private long window;
+		private long credit;
+		//bytes consumed since credit was last granted
+		private long consumed = 0;
+
+		private InboundStream(DataRequest recipient, long window) {
+			this.recipient = recipient;
+			this.window = window;
+			this.credit = window;
+		}
+
+	}
+
+	/**
+	 * @return true if target is full
+	 */
+	private static boolean fill(ByteBuffer target, ByteBuffer source) {
+		while(target.hasRemaining() && source.hasRemaining())
+			target.put(source.get());
+
+		return !target.hasRemaining();
+	}
+
+}
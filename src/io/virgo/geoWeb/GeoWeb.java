@@ -1,143 +1,222 @@
 package io.virgo.geoWeb;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import io.virgo.geoWeb.codec.BinaryCodec;
+import io.virgo.geoWeb.codec.JsonCodec;
+import io.virgo.geoWeb.codec.MessageCodec;
+import io.virgo.geoWeb.data.ContentCache;
+import io.virgo.geoWeb.data.ManifestCache;
 import io.virgo.geoWeb.events.EventListener;
 import io.virgo.geoWeb.events.SetupCompleteEvent;
 import io.virgo.geoWeb.exceptions.PortUnavailableException;
+import io.virgo.geoWeb.metrics.Gauge;
+import io.virgo.geoWeb.metrics.MetricsMBean;
+import io.virgo.geoWeb.metrics.MetricsRegistry;
 import io.virgo.geoWeb.utils.AddressUtils;
+import io.virgo.geoWeb.utils.HashedWheelTimer;
+import io.virgo.geoWeb.utils.VirtualThreads;
 
 /**
  * Virgo's Peer to Peer communication library
  * Main class
+ * 
+ * Each instance is a self-contained node, a process can run many of them, on different ports,
+ * optionally sharing their threads with {@link Builder#threads(GeoWebThreads)}
  */
 public class GeoWeb {
 	
-	private static GeoWeb instance;
-	
 	private int port;
 	private long netId;
 	private long keepAlivePeriod;
 	private long keepAliveTimeout;
 	private long syncMessageTimeout;
+	private int maxPendingSyncRequests;
 	private long messageThreadKeepAliveTime;
 	private int maxMessageThreadPoolSize;
 	private int socketConnectionTimeout;
+	private long dnsCacheTtl;
+	private long dnsNegativeCacheTtl;
+	private boolean reverseDnsLookup;
 	private String hostname;
 	private boolean debug;
+	private boolean nonBlockingIO;
+	private int socketReceiveBufferSize;
+	private int socketSendBufferSize;
+	private boolean tcpNoDelay;
+	private long writeBatchMaxBytes;
+	private long writeLingerMicros;
+	private long outboundQueueHighWatermark;
+	private long outboundQueueLowWatermark;
+	private OverflowPolicy overflowPolicy;
+	private int requestLaneWeight;
+	private int bulkLaneWeight;
+	private int dataChunkSize;
+	private int dataStreamWindow;
+	private int dataRequestPipelineDepth;
+	private long dataRequestTimeout;
 	
 	private String id;
 	
-	private ServerSocket server;
+	private Transport transport;
 	private MessageHandler messageHandler;
+	private List<MessageCodec> codecs;
+	private MessageCodec[] codecsByType = new MessageCodec[256];
+	private List<String> codecNames = new ArrayList<String>();
 	protected ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
 	protected ConcurrentHashMap<String, Peer> peersById = new ConcurrentHashMap<String, Peer>();
 	protected ConcurrentHashMap<String, Peer> pendingPeers = new ConcurrentHashMap<String, Peer>();
 	protected ArrayList<String> blockedPeers = new ArrayList<String>();
 	private int peerCountTarget;
+	private int maxParallelConnections;
+	private int addressBookSize;
+	private long addressTtl;
+	private long peerSwapPeriod;
 	private EventListener eventsListener;
+	private ContentCache contentCache;
+	private ManifestCache manifestCache = new ManifestCache(128);
+	private SeenMessageCache seenGossip;
+	private int gossipMaxHops;
 	private PeersCountWatchdog peersCountWatchDog;
 	
-	private ThreadPoolExecutor messageThreadPool;
+	private GeoWebThreads sharedThreads;
+	private boolean ownThreads;
+	private ExecutorService messageThreadPool;
+	private HashedWheelTimer timer;
+	private MetricsRegistry metricsRegistry = new MetricsRegistry();
+	GeoWebMetrics metrics = new GeoWebMetrics(metricsRegistry);
+	private ObjectName mbeanName;
 	public ArrayList<Thread> threads = new ArrayList<Thread>();
-	public ArrayList<Timer> timers = new ArrayList<Timer>();
 	
 	/**
 	 * create geoWeb instance from builder parameters
 	 */
 	private GeoWeb(Builder builder) throws IOException {
-		instance = this;
-		
 		long setupStartTime = System.nanoTime();
 		
 		//set parameters from Builder
 		this.port = builder.port;
 		this.netId = builder.netId;
 		this.messageHandler = builder.messageHandler;
+		this.codecs = builder.codecs;
 		this.eventsListener = builder.eventsListener;
+		
+		this.gossipMaxHops = builder.gossipMaxHops;
+		this.seenGossip = new SeenMessageCache(builder.gossipCacheSize, builder.gossipCacheTtl);
+		
+		if(builder.contentCacheSize > 0)
+			this.contentCache = new ContentCache(builder.contentCacheSize);
 		this.peerCountTarget = builder.peerCountTarget;
+		this.maxParallelConnections = builder.maxParallelConnections;
+		this.addressBookSize = builder.addressBookSize;
+		this.addressTtl = builder.addressTtl;
+		this.peerSwapPeriod = builder.peerSwapPeriod;
 		this.keepAlivePeriod = builder.keepAlivePeriod;
 		this.keepAliveTimeout = builder.keepAliveTimeout;
 		this.syncMessageTimeout = builder.syncMessageTimeout;
+		this.maxPendingSyncRequests = builder.maxPendingSyncRequests;
 		this.messageThreadKeepAliveTime = builder.messageThreadKeepAliveTime;
 		this.maxMessageThreadPoolSize = builder.maxMessageThreadPoolSize;
 		this.socketConnectionTimeout = builder.socketConnectionTimeout;
+		this.dnsCacheTtl = builder.dnsCacheTtl;
+		this.dnsNegativeCacheTtl = builder.dnsNegativeCacheTtl;
+		this.reverseDnsLookup = builder.reverseDnsLookup;
 		this.hostname = builder.hostname;
 		this.debug = builder.debug;
+		this.nonBlockingIO = builder.nonBlockingIO;
+		this.socketReceiveBufferSize = builder.socketReceiveBufferSize;
+		this.socketSendBufferSize = builder.socketSendBufferSize;
+		this.tcpNoDelay = builder.tcpNoDelay;
+		this.writeBatchMaxBytes = builder.writeBatchMaxBytes;
+		this.writeLingerMicros = builder.writeLingerMicros;
+		this.outboundQueueHighWatermark = builder.outboundQueueHighWatermark;
+		this.outboundQueueLowWatermark = builder.outboundQueueLowWatermark;
+		this.overflowPolicy = builder.overflowPolicy;
+		this.requestLaneWeight = builder.requestLaneWeight;
+		this.bulkLaneWeight = builder.bulkLaneWeight;
+		this.dataChunkSize = builder.dataChunkSize;
+		this.dataStreamWindow = builder.dataStreamWindow;
+		this.dataRequestPipelineDepth = builder.dataRequestPipelineDepth;
+		this.dataRequestTimeout = builder.dataRequestTimeout;
+		
+		codecsByType[JsonCodec.MESSAGE_TYPE & 0xFF] = JsonCodec.INSTANCE;
+		for(MessageCodec codec : codecs) {
+			codecsByType[codec.getMessageType() & 0xFF] = codec;
+			codecNames.add(codec.getName());
+		}
 		
 		//generate a unique ID for this geoWeb session, will serve to know when we try to connect to ourselves
 		id = UUID.randomUUID().toString();
 		
-		//Initialize thread pool that will handle messages
-		messageThreadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(maxMessageThreadPoolSize);
-		messageThreadPool.setKeepAliveTime(messageThreadKeepAliveTime, TimeUnit.MILLISECONDS);
-		
-		server = new ServerSocket(port);
+		//Use given threads, or create our own from builder parameters
+		if(builder.threads != null) {
+			sharedThreads = builder.threads;
+		}else {
+			sharedThreads = new GeoWebThreads.Builder()
+					.messageThreadKeepAliveTime(messageThreadKeepAliveTime)
+					.maxMessageThreadPoolSize(maxMessageThreadPoolSize)
+					.ioThreads(builder.ioThreads)
+					.virtualThreads(builder.virtualThreads)
+					.build();
+			ownThreads = true;
+		}
 		
-		//Initialize a thread that will handle connection requests
-		Thread connectionRequestsThread = new Thread(new ConnectionRequestHandler());
-		connectionRequestsThread.start();
-		threads.add(connectionRequestsThread);
+		messageThreadPool = sharedThreads.getMessageThreadPool();
+		timer = sharedThreads.getTimer();
 		
-		peersCountWatchDog = new PeersCountWatchdog();
+		//peers scores are updated as soon as they handshake, so it must exist before accepting connections
+		peersCountWatchDog = new PeersCountWatchdog(this, builder.peersFile);
 		
+		//Start accepting connections
+		transport = builder.transport != null ? builder.transport : new TcpTransport();
+		try {
+			transport.listen(this);
+		}catch(IOException e) {
+			peersCountWatchDog.stop();
+			throw e;
+		}
 		
-		Thread peersCountWatchdogThread = new Thread(peersCountWatchDog);
-		peersCountWatchdogThread.start();
-		threads.add(peersCountWatchdogThread);
+		peersCountWatchDog.start();
 		
 		Thread eventsListenerThread = new Thread(eventsListener);
 		eventsListenerThread.start();
 		threads.add(eventsListenerThread);
 		
-		/**
-		 * Send a message to all peers every x seconds and wait for their response to see if they are still alive
-		 * if not disconnected from them
-		 */
-		Timer heartbeatTimer = new Timer();
-		timers.add(heartbeatTimer);
-		heartbeatTimer.scheduleAtFixedRate(new TimerTask() {//heartbeat
-
-			@Override
-			public void run() {
-				
-				JSONObject pingMessage = new JSONObject();
-				pingMessage.put("command", "ping");
-				broadCast(pingMessage);
-				
-				new Timer().schedule(new TimerTask() {
-
-					@Override
-					public void run() {
-
-						for(Peer peer : peers.values())
-							if(peer.respondedToHeartbeat && peer.handshaked)
-								peer.respondedToHeartbeat = false;
-							else
-								peer.end();
-							
-					}
-					
-				}, keepAliveTimeout);
+		registerGauges();
+		
+		if(builder.jmx) {
+			try {
+				String host = transport.getLocalHost();
+				mbeanName = new ObjectName("io.virgo.geoWeb:type=GeoWeb,port=" + port + (host != null ? ",host=" + host : ""));
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(metricsRegistry), mbeanName);
+			} catch (JMException e) {
+				mbeanName = null;
+				if(debugEnabled())
+					e.printStackTrace();
 			}
-			
-		}, 10000L, keepAlivePeriod);
+		}
 		
 		long setupCompleteTime = System.nanoTime();
 		
@@ -147,27 +226,131 @@ public class GeoWeb {
 	/**
 	 * Disconnect peers and close all running threads
 	 * GeoWeb will stop working after calling this function
+	 * 
+	 * Threads given with {@link Builder#threads(GeoWebThreads)} are left running for other instances using them
 	 */
 	public void shutdown() {
 		
 		for(Thread thread : threads)
 			thread.interrupt();
-			
 		
-		for(Timer timer : timers)
-			timer.cancel();
+		peersCountWatchDog.stop();
 		
 		for(Peer peer : peers.values())
 			peer.end();
 		
-		try {
-			server.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		for(Peer peer : pendingPeers.values())
+			peer.end();
+		
+		transport.close();
+		
+		if(ownThreads)
+			sharedThreads.shutdown();
+		
+		if(mbeanName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+			} catch (JMException e) {}
 		}
+	}
+	
+	/**
+	 * Gauges read from current state when metrics are read, so they cost nothing until then
+	 */
+	private void registerGauges() {
+		metricsRegistry.gauge("peers.connected", new Gauge() {
+			@Override
+			public long getValue() {
+				return peers.size();
+			}
+		});
+		
+		metricsRegistry.gauge("peers.pending", new Gauge() {
+			@Override
+			public long getValue() {
+				return pendingPeers.size();
+			}
+		});
+		
+		metricsRegistry.gauge("peers.queuedMessages", new Gauge() {
+			@Override
+			public long getValue() {
+				long queued = 0;
+				
+				for(Peer peer : peers.values())
+					queued += peer.getQueuedMessages();
+				
+				for(Peer peer : pendingPeers.values())
+					queued += peer.getQueuedMessages();
+				
+				return queued;
+			}
+		});
+		
+		metricsRegistry.gauge("messageThreadPool.active", new Gauge() {
+			@Override
+			public long getValue() {
+				if(messageThreadPool instanceof ThreadPoolExecutor)
+					return ((ThreadPoolExecutor) messageThreadPool).getActiveCount();
+				
+				//one virtual thread per message
+				return metrics.messagesInFlight.get();
+			}
+		});
+		
+		metricsRegistry.gauge("messageThreadPool.queued", new Gauge() {
+			@Override
+			public long getValue() {
+				if(messageThreadPool instanceof ThreadPoolExecutor)
+					return ((ThreadPoolExecutor) messageThreadPool).getQueue().size();
+				
+				return 0;
+			}
+		});
+		
+		metricsRegistry.gauge("events.backlog", new Gauge() {
+			@Override
+			public long getValue() {
+				return eventsListener.getBacklog();
+			}
+		});
+		
+		metricsRegistry.gauge("timer.pending", new Gauge() {
+			@Override
+			public long getValue() {
+				return timer.pendingCount();
+			}
+		});
+		
+		metricsRegistry.gauge("watchdog.knownAddresses", new Gauge() {
+			@Override
+			public long getValue() {
+				return peersCountWatchDog.getPossiblePeersCount();
+			}
+		});
 		
-		messageThreadPool.shutdown();
+		if(contentCache != null) {
+			metricsRegistry.gauge("contentCache.hits", new Gauge() {
+				@Override
+				public long getValue() {
+					return contentCache.getHits();
+				}
+			});
+			
+			metricsRegistry.gauge("contentCache.misses", new Gauge() {
+				@Override
+				public long getValue() {
+					return contentCache.getMisses();
+				}
+			});
+			
+			metricsRegistry.gauge("contentCache.size", new Gauge() {
+				@Override
+				public long getValue() {
+					return contentCache.getSize();
+				}
+			});
+		}
 	}
 	
 	/**
@@ -178,29 +361,104 @@ public class GeoWeb {
 	 * @return true if connected, false otherwise
 	 */
 	public boolean connectTo(String hostname, int port) {
+		try {
+			return connectToAsync(hostname, port).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Try to connect to a new peer without waiting for the connection to be established
+	 * 
+	 * @param hostname the IP or domain name of the machine to connect to
+	 * @param port the port of the machine to connect to
+	 * @return a future completed with true once connected or if already connected, false if connection failed,
+	 * cancelling it aborts the attempt
+	 */
+	public CompletableFuture<Boolean> connectToAsync(String hostname, int port) {
 		if(debugEnabled())
 			System.out.println("connecting to " + hostname + ":" + port);
 		
 		if(blockedPeers.contains(hostname+":"+port))
-			return false;
+			return CompletableFuture.completedFuture(false);
 		
-		try {
-			String address = InetAddress.getByName(hostname).getHostAddress() + ":" + port;
-			if(!peers.containsKey(address) && !pendingPeers.containsKey(address)) {
-				Socket socket = new Socket();
-				String host = InetAddress.getByName(hostname).getHostAddress();
+		CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+		
+		transport.resolve(hostname).whenComplete(new BiConsumer<String, Throwable>() {
+
+			@Override
+			public void accept(String host, Throwable error) {
+				if(error != null) {
+					future.complete(false);
+					return;
+				}
+				
+				//cancelled while resolving
+				if(future.isDone())
+					return;
+				
+				String address = host + ":" + port;
+				if(peers.containsKey(address) || pendingPeers.containsKey(address)) {
+					future.complete(true);
+					return;
+				}
 				
 				if(debugEnabled())
-					System.out.println("resolved to " + host + ":" + port);
+					System.out.println("resolved to " + address);
+				
+				CompletableFuture<Boolean> connection = transport.connect(GeoWeb.this, host, port);
 				
-				socket.connect(new InetSocketAddress(host, port), socketConnectionTimeout);
-				new Thread(new Peer(socket, true)).start();
+				connection.whenComplete(new BiConsumer<Boolean, Throwable>() {
+
+					@Override
+					public void accept(Boolean connected, Throwable error) {
+						future.complete(connected != null && connected);
+					}
+					
+				});
+				
+				future.whenComplete(new BiConsumer<Boolean, Throwable>() {
+
+					@Override
+					public void accept(Boolean connected, Throwable error) {
+						if(future.isCancelled())
+							connection.cancel(true);
+					}
+					
+				});
 			}
-			return true;
+			
+		});
+		
+		return future;
+	}
+	
+	/**
+	 * Apply socket options to a new server socket, before it is bound so accepted sockets inherit the receive buffer size
+	 */
+	void configureServerSocket(ServerSocket serverSocket) throws IOException {
+		if(socketReceiveBufferSize > 0)
+			serverSocket.setReceiveBufferSize(socketReceiveBufferSize);
+	}
+	
+	/**
+	 * Apply socket options to a connected peer socket
+	 * Receive buffer size is set before connection, as shrinking it afterward can stall transfers
+	 */
+	void configureSocket(Socket socket) {
+		try {
+			socket.setTcpNoDelay(tcpNoDelay);
+			
+			if(socketSendBufferSize > 0)
+				socket.setSendBufferSize(socketSendBufferSize);
 		} catch (IOException e) {
-			return false;
+			if(debugEnabled())
+				e.printStackTrace();
 		}
-		
 	}
 	
 	/**
@@ -270,20 +528,158 @@ public class GeoWeb {
 	 */
 	public void broadCast(JSONObject message, Collection<Peer> targetPeers) {
 		
+		//message is encoded once per codec in use and the same frame is shared by all peers using it
+		MessageCodec[] codecsUsed = new MessageCodec[2];
+		SharedFrame[] frames = new SharedFrame[2];
+		int framesCount = 0;
+		int sent = 0;
+		
 		for(Peer peer : targetPeers) {
 			if(peer.canBroadcast && !peer.isClosed()) {
-				peer.sendMessage(message);
+				//peer can't keep up, let it drain
+				if(!peer.isWritable()) {
+					metrics.broadcastSkipped.increment();
+					continue;
+				}
+				
+				MessageCodec codec = peer.codec;
+				
+				int i = 0;
+				while(i < framesCount && codecsUsed[i] != codec)
+					i++;
+				
+				if(i == framesCount) {
+					if(framesCount == frames.length) {
+						codecsUsed = Arrays.copyOf(codecsUsed, framesCount * 2);
+						frames = Arrays.copyOf(frames, framesCount * 2);
+					}
+					
+					codecsUsed[i] = codec;
+					frames[i] = SharedFrame.message(codec.getMessageType(), codec.encode(message));
+					framesCount++;
+				}
+				
+				if(peer.sendFrame(frames[i].newView().droppable()))
+					sent++;
 			}
 		}
 		
+		for(int i = 0; i < framesCount; i++)
+			frames[i].release();
+		
+		if(sent > 0)
+			metrics.messagesSent.get(message.optString("command")).add(sent);
+		
+	}
+	
+	/**
+	 * Send a message to all connected peers, that will relay it to their own peers, and so on
+	 * Each node handles the message only once, whatever the number of peers it receives it from
+	 * 
+	 * @param message The message to spread, gossipId and hops parameters are reserved
+	 * <br>
+	 * The Json object must contain a string parameter called 'command' (witch is the subject of your message)
+	 * otherwise it will be ignored by peers
+	 */
+	public void gossip(JSONObject message) {
+		gossip(message, new ArrayList<Peer>());
+	}
+	
+	/**
+	 * Send a message to all connected peers except given ones, that will relay it to their own peers, and so on
+	 * 
+	 * @param message The message to spread, gossipId and hops parameters are reserved
+	 * @param peersToIgnore the peers to not send the message to
+	 */
+	public void gossip(JSONObject message, List<Peer> peersToIgnore) {
+		if(message.has("gossipId") || message.has("hops"))
+			throw new IllegalArgumentException("the given message is using the reserved parameters gossipId or hops. Message: "+message.toString());
+		
+		String gossipId = UUID.randomUUID().toString();
+		message.put("gossipId", gossipId);
+		message.put("hops", gossipMaxHops);
+		
+		seenGossip.markSeen(gossipId);
+		
+		broadCast(message, peersToIgnore);
+	}
+	
+	/**
+	 * Record a received gossip message
+	 * 
+	 * @return true if it's the first time we see it
+	 */
+	boolean markGossipSeen(String gossipId) {
+		return seenGossip.markSeen(gossipId);
+	}
+	
+	/**
+	 * Forward a gossip message received from a peer to all other peers, if it has hops left
+	 */
+	void relayGossip(JSONObject message, Peer source) {
+		int hops = message.optInt("hops", 0);
+		if(hops <= 1)
+			return;
+		
+		JSONObject relayed = new JSONObject(message, JSONObject.getNames(message));
+		relayed.put("hops", Math.min(hops, gossipMaxHops) - 1);
+		
+		broadCast(relayed, Arrays.asList(source));
 	}
 	
 	protected void dispatchMessageTask(MessageTask messageTask) {
-		messageThreadPool.submit(messageTask);
+		metrics.messagesInFlight.increment();
+		
+		try {
+			messageThreadPool.execute(messageTask);
+		}catch(RejectedExecutionException e) {
+			metrics.messagesInFlight.decrement();
+		}
+	}
+	
+	/**
+	 * @param messageType a message type byte
+	 * @return the codec messages of given type are encoded with, or null if none
+	 */
+	MessageCodec getCodec(byte messageType) {
+		return codecsByType[messageType & 0xFF];
+	}
+	
+	/**
+	 * Choose the codec to encode messages to a peer with
+	 * 
+	 * @param remoteCodecs the names of the codecs the peer supports, as announced in it's handshake
+	 * @return our most preferred codec the peer supports, JSON if none
+	 */
+	MessageCodec negotiateCodec(JSONArray remoteCodecs) {
+		for(MessageCodec codec : codecs)
+			for(int i = 0; i < remoteCodecs.length(); i++)
+				if(codec.getName().equals(remoteCodecs.optString(i)))
+					return codec;
+		
+		return JsonCodec.INSTANCE;
 	}
 	
-	public static GeoWeb getInstance() {
-		return instance;
+	/**
+	 * @return the names of the codecs supported in addition to JSON, in order of preference
+	 */
+	public List<String> getCodecNames() {
+		return codecNames;
+	}
+	
+	/**
+	 * Create a thread running peer IO or connection requests,
+	 * virtual if GeoWeb has been built with virtual threads
+	 */
+	Thread newConnectionThread(Runnable runnable) {
+		return sharedThreads.newThread(runnable);
+	}
+	
+	/**
+	 * @return the threads this instance runs on, possibly shared with other instances
+	 */
+	public GeoWebThreads getThreads() {
+		return sharedThreads;
 	}
 	
 	/**
@@ -298,6 +694,20 @@ public class GeoWeb {
 		return eventsListener;
 	}
 	
+	/**
+	 * @return the cache answering data requests before they reach the event listener, or null if disabled
+	 */
+	public ContentCache getContentCache() {
+		return contentCache;
+	}
+	
+	/**
+	 * @return the manifests of data recently served to peers downloading it from many peers
+	 */
+	public ManifestCache getManifestCache() {
+		return manifestCache;
+	}
+	
 	public long getSyncMessageTimeout() {
 		return syncMessageTimeout;
 	}
@@ -313,6 +723,13 @@ public class GeoWeb {
 		this.syncMessageTimeout = syncMessageTimeout;
 	}
 	
+	/**
+	 * @return the maximum number of sync messages that can wait for a response per peer
+	 */
+	public int getMaxPendingSyncRequests() {
+		return maxPendingSyncRequests;
+	}
+	
 	/**
 	 * @return The ID of this geoWeb session
 	 */
@@ -350,8 +767,85 @@ public class GeoWeb {
 		this.peerCountTarget = peerCountTarget;		
 	}
 	
+	/**
+	 * @return the maximum number of connections the watchdog attempts at the same time
+	 */
+	public int getMaxParallelConnections() {
+		return maxParallelConnections;
+	}
+	
+	/**
+	 * @return the maximum number of known peers addresses remembered
+	 */
+	public int getAddressBookSize() {
+		return addressBookSize;
+	}
+	
+	/**
+	 * @return how long a known address not seen again is remembered, in milliseconds
+	 */
+	public long getAddressTtl() {
+		return addressTtl;
+	}
+	
+	/**
+	 * @return the period on which the slowest peer may be replaced by a faster known address, 0 if disabled
+	 */
+	public long getPeerSwapPeriod() {
+		return peerSwapPeriod;
+	}
+	
+	/**
+	 * @return the socket accepting connections, null if not using {@link TcpTransport}
+	 */
 	public ServerSocket getServer() {
-		return server;
+		if(transport instanceof TcpTransport)
+			return ((TcpTransport) transport).getServer();
+		
+		return null;
+	}
+	
+	/**
+	 * @return the transport connecting this instance to peers
+	 */
+	public Transport getTransport() {
+		return transport;
+	}
+	
+	/**
+	 * @return the time to connect to a peer before giving up, in milliseconds
+	 */
+	public int getSocketConnectionTimeout() {
+		return socketConnectionTimeout;
+	}
+	
+	/**
+	 * @return how long resolved hostnames are remembered, in milliseconds
+	 */
+	public long getDnsCacheTtl() {
+		return dnsCacheTtl;
+	}
+	
+	/**
+	 * @return how long hostnames that couldn't be resolved are remembered, in milliseconds
+	 */
+	public long getDnsNegativeCacheTtl() {
+		return dnsNegativeCacheTtl;
+	}
+	
+	/**
+	 * @return true if connected peers hostnames are looked up from their IP, otherwise their IP serves as hostname
+	 * until they send their own
+	 */
+	public boolean reverseDnsLookupEnabled() {
+		return reverseDnsLookup;
+	}
+	
+	/**
+	 * @return peers sockets receive buffer size in bytes, 0 if chosen by the system
+	 */
+	public int getSocketReceiveBufferSize() {
+		return socketReceiveBufferSize;
 	}
 	
 	/**
@@ -386,6 +880,7 @@ public class GeoWeb {
 	}
 	
 	/**
+	 * Also applies to other instances sharing this one's threads
 	 * 
 	 * @param messageThreadKeepAliveTime must be >= 1000
 	 */
@@ -395,7 +890,8 @@ public class GeoWeb {
 		
 		this.messageThreadKeepAliveTime = messageThreadKeepAliveTime;
 		
-		messageThreadPool.setKeepAliveTime(messageThreadKeepAliveTime, TimeUnit.MILLISECONDS);
+		if(messageThreadPool instanceof ThreadPoolExecutor)
+			((ThreadPoolExecutor) messageThreadPool).setKeepAliveTime(messageThreadKeepAliveTime, TimeUnit.MILLISECONDS);
 	}
 	
 	public int getMaxMessageThreadPoolSize() {
@@ -403,6 +899,7 @@ public class GeoWeb {
 	}
 
 	/**
+	 * Also applies to other instances sharing this one's threads
 	 * 
 	 * @param maxMessageThreadPoolSize Maximal number of threads GeoWeb will use to handle messages, must be > 0
 	 */
@@ -412,7 +909,8 @@ public class GeoWeb {
 		
 		this.maxMessageThreadPoolSize = maxMessageThreadPoolSize;
 		
-		messageThreadPool.setMaximumPoolSize(maxMessageThreadPoolSize);
+		if(messageThreadPool instanceof ThreadPoolExecutor)
+			((ThreadPoolExecutor) messageThreadPool).setMaximumPoolSize(maxMessageThreadPoolSize);
 	}
 	
 	public String getHostname() {
@@ -435,38 +933,188 @@ public class GeoWeb {
 	}
 	
 	/**
-	 * New geoWeb instance builder
-	 * 
-	 * <p>
-	 * Example:<br><br>
-	 * {@code GeoWeb net = new GeoWeb.Builder()}<br>
-	 * {@code .netID(2946073207412533257l)}<br>
-	 * {@code .eventListener(new EventListener())}<br>
-	 * {@code .messageHandler(new MessageHandler())}<br>
-	 * {@code .port(1234)}<br>
-	 * {@code .build();}
-	 * <p>
-	 * 
+	 * @return true if peers are handled by non blocking event loops instead of a thread per peer
 	 */
-	public static class Builder {
-		
-		private int port = 25565;
-		private long netId = -1;
-		private int peerCountTarget = 8;
-		private long keepAlivePeriod = 600000L;
-		private long keepAliveTimeout = 5000L;
-		private long syncMessageTimeout = 60000L;
-		private long messageThreadKeepAliveTime = 60000L;
-		private int maxMessageThreadPoolSize = 10;
-		private int socketConnectionTimeout = 5000;
-		private String hostname = "";
-		private MessageHandler messageHandler = null;
-		private EventListener eventsListener = null;
-		private boolean debug = false;
-		
-		public GeoWeb build() throws IOException {
-			
-			if(netId == -1)
+	public boolean nonBlockingIOEnabled() {
+		return nonBlockingIO;
+	}
+	
+	/**
+	 * @return true if peers, connection requests and messages are handled on virtual threads
+	 */
+	public boolean virtualThreadsEnabled() {
+		return sharedThreads.virtualThreadsEnabled();
+	}
+	
+	/**
+	 * @return the metrics of this instance, also published over JMX unless disabled
+	 */
+	public MetricsRegistry getMetrics() {
+		return metricsRegistry;
+	}
+	
+	/**
+	 * @return the timer shared by all timeouts of this instance, tasks given to it must not block
+	 */
+	HashedWheelTimer getTimer() {
+		return timer;
+	}
+	
+	/**
+	 * Run a blocking task triggered by the timer on the message thread pool
+	 */
+	void execute(Runnable task) {
+		try {
+			messageThreadPool.execute(task);
+		}catch(RejectedExecutionException e) {
+			//shutting down
+		}
+	}
+	
+	/**
+	 * @return the maximum size of frames coalesced in a single socket write, in bytes
+	 */
+	public long getWriteBatchMaxBytes() {
+		return writeBatchMaxBytes;
+	}
+	
+	/**
+	 * @return how long a peer writer waits for more frames to coalesce before writing, in microseconds
+	 */
+	public long getWriteLingerMicros() {
+		return writeLingerMicros;
+	}
+	
+	/**
+	 * @return the bytes a peer's outbound queue can hold before the peer stops being writable
+	 */
+	public long getOutboundQueueHighWatermark() {
+		return outboundQueueHighWatermark;
+	}
+	
+	/**
+	 * @return the bytes a peer's outbound queue must drain to for the peer to be writable again
+	 */
+	public long getOutboundQueueLowWatermark() {
+		return outboundQueueLowWatermark;
+	}
+	
+	/**
+	 * @return what happens to messages sent to a peer that isn't writable
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	
+	/**
+	 * @return the share of a connection given to messages when data is also waiting to be sent
+	 */
+	public int getRequestLaneWeight() {
+		return requestLaneWeight;
+	}
+	
+	/**
+	 * @return the share of a connection given to data when messages are also waiting to be sent
+	 */
+	public int getBulkLaneWeight() {
+		return bulkLaneWeight;
+	}
+	
+	/**
+	 * @return the maximum size of a chunk of data sent to a peer, in bytes
+	 */
+	public int getDataChunkSize() {
+		return dataChunkSize;
+	}
+	
+	/**
+	 * @return the bytes of a data stream a peer can send us before we consumed them, 0 if we don't accept streams
+	 */
+	public int getDataStreamWindow() {
+		return dataStreamWindow;
+	}
+	
+	/**
+	 * @return the maximum number of batched data requests waiting for an answer from a peer
+	 */
+	public int getDataRequestPipelineDepth() {
+		return dataRequestPipelineDepth;
+	}
+	
+	/**
+	 * @return how long a peer has to start answering a batched data request, in milliseconds
+	 */
+	public long getDataRequestTimeout() {
+		return dataRequestTimeout;
+	}
+	
+	/**
+	 * New geoWeb instance builder
+	 * 
+	 * <p>
+	 * Example:<br><br>
+	 * {@code GeoWeb net = new GeoWeb.Builder()}<br>
+	 * {@code .netID(2946073207412533257l)}<br>
+	 * {@code .eventListener(new EventListener())}<br>
+	 * {@code .messageHandler(new MessageHandler())}<br>
+	 * {@code .port(1234)}<br>
+	 * {@code .build();}
+	 * <p>
+	 * 
+	 */
+	public static class Builder {
+		
+		private int port = 25565;
+		private long netId = -1;
+		private int peerCountTarget = 8;
+		private int maxParallelConnections = 16;
+		private int addressBookSize = 16384;
+		private long addressTtl = 2592000000L;
+		private long peerSwapPeriod = 900000L;
+		private long keepAlivePeriod = 600000L;
+		private long keepAliveTimeout = 5000L;
+		private long syncMessageTimeout = 60000L;
+		private int maxPendingSyncRequests = 4096;
+		private long messageThreadKeepAliveTime = 60000L;
+		private int maxMessageThreadPoolSize = 10;
+		private int socketConnectionTimeout = 5000;
+		private long dnsCacheTtl = 60000L;
+		private long dnsNegativeCacheTtl = 10000L;
+		private boolean reverseDnsLookup = false;
+		private String hostname = "";
+		private MessageHandler messageHandler = null;
+		private List<MessageCodec> codecs = Arrays.<MessageCodec>asList(new BinaryCodec());
+		private EventListener eventsListener = null;
+		private long contentCacheSize = 0;
+		private int gossipMaxHops = 8;
+		private int gossipCacheSize = 65536;
+		private long gossipCacheTtl = 600000L;
+		private boolean debug = false;
+		private boolean nonBlockingIO = false;
+		private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		private boolean virtualThreads = false;
+		private int socketReceiveBufferSize = 0;
+		private int socketSendBufferSize = 0;
+		private boolean tcpNoDelay = true;
+		private long writeBatchMaxBytes = 65536;
+		private long writeLingerMicros = 0;
+		private long outboundQueueHighWatermark = 4194304;
+		private long outboundQueueLowWatermark = 1048576;
+		private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+		private int requestLaneWeight = 4;
+		private int bulkLaneWeight = 1;
+		private int dataChunkSize = 65536;
+		private int dataStreamWindow = 1048576;
+		private int dataRequestPipelineDepth = 512;
+		private long dataRequestTimeout = 60000L;
+		private boolean jmx = true;
+		private String peersFile = "peers.dat";
+		private GeoWebThreads threads = null;
+		private Transport transport = null;
+		
+		public GeoWeb build() throws IOException {
+			
+			if(netId == -1)
 				throw new IllegalArgumentException("NetId must be defined");
 			
 			if(messageHandler == null)
@@ -506,6 +1154,58 @@ public class GeoWeb {
 			return this;
 		}
 		
+		/**
+		 * @param maxParallelConnections how many known addresses are connected to at the same time
+		 * while peers count target isn't reached, must be > 0
+		 */
+		public Builder maxParallelConnections(int maxParallelConnections) {
+			if(maxParallelConnections < 1)
+				throw new IllegalArgumentException("maxParallelConnections must be > 0");
+			
+			this.maxParallelConnections = maxParallelConnections;
+			
+			return this;
+		}
+		
+		/**
+		 * @param addressBookSize the maximum number of known peers addresses remembered,
+		 * least recently seen ones are forgotten first, must be > 0
+		 */
+		public Builder addressBookSize(int addressBookSize) {
+			if(addressBookSize < 1)
+				throw new IllegalArgumentException("addressBookSize must be > 0");
+			
+			this.addressBookSize = addressBookSize;
+			
+			return this;
+		}
+		
+		/**
+		 * @param addressTtl how long a known address that isn't gossiped or reached again is remembered,
+		 * in milliseconds, must be >= 60000
+		 */
+		public Builder addressTtl(long addressTtl) {
+			if(addressTtl < 60000)
+				throw new IllegalArgumentException("addressTtl must be >= 60000");
+			
+			this.addressTtl = addressTtl;
+			
+			return this;
+		}
+		
+		/**
+		 * @param peerSwapPeriod how often, in milliseconds, the slowest peer is replaced by a known address
+		 * with less than half it's round trip time when peers count target is reached, must be >= 10000 or 0 to disable
+		 */
+		public Builder peerSwapPeriod(long peerSwapPeriod) {
+			if(peerSwapPeriod != 0 && peerSwapPeriod < 10000)
+				throw new IllegalArgumentException("peerSwapPeriod must be >= 10000 or 0");
+			
+			this.peerSwapPeriod = peerSwapPeriod;
+			
+			return this;
+		}
+		
 		public Builder keepAlivePeriod(long keepAlivePeriod) {
 			if(keepAlivePeriod < 5000)
 				throw new IllegalArgumentException("keep alive period must be >= 5000");
@@ -532,6 +1232,19 @@ public class GeoWeb {
 			return this;
 		}
 		
+		/**
+		 * @param maxPendingSyncRequests maximum number of sync messages waiting for a response per peer, must be > 0
+		 * Further requests are answered right away with {@link ResponseCode#TOO_MANY_REQUESTS}
+		 */
+		public Builder maxPendingSyncRequests(int maxPendingSyncRequests) {
+			if(maxPendingSyncRequests < 1)
+				throw new IllegalArgumentException("maxPendingSyncRequests must be > 0");
+			
+			this.maxPendingSyncRequests = maxPendingSyncRequests;
+			
+			return this;
+		}
+		
 		public Builder messageThreadKeepAliveTime(long messageThreadKeepAliveTime) {
 			if(messageThreadKeepAliveTime < 1000)
 				throw new IllegalArgumentException("messageThreadKeepAliveTime must be >= 1000");
@@ -559,6 +1272,242 @@ public class GeoWeb {
 			return this;
 		}
 		
+		/**
+		 * @param dnsCacheTtl how long resolved hostnames are remembered, in milliseconds, must be >= 0
+		 */
+		public Builder dnsCacheTtl(long dnsCacheTtl) {
+			if(dnsCacheTtl < 0)
+				throw new IllegalArgumentException("dnsCacheTtl must be >= 0");
+			
+			this.dnsCacheTtl = dnsCacheTtl;
+			
+			return this;
+		}
+		
+		/**
+		 * @param dnsNegativeCacheTtl how long hostnames that couldn't be resolved are remembered, in milliseconds, must be >= 0
+		 */
+		public Builder dnsNegativeCacheTtl(long dnsNegativeCacheTtl) {
+			if(dnsNegativeCacheTtl < 0)
+				throw new IllegalArgumentException("dnsNegativeCacheTtl must be >= 0");
+			
+			this.dnsNegativeCacheTtl = dnsNegativeCacheTtl;
+			
+			return this;
+		}
+		
+		/**
+		 * Look up hostnames of peers connecting to us from their IP. Disabled by default as the lookup blocks
+		 * the thread accepting connections, peers hostname is then their IP until they send their own
+		 */
+		public Builder reverseDnsLookup(boolean reverseDnsLookup) {
+			this.reverseDnsLookup = reverseDnsLookup;
+			
+			return this;
+		}
+		
+		/**
+		 * @param socketReceiveBufferSize peers sockets receive buffer size in bytes, 0 to let the system choose (default)
+		 */
+		public Builder socketReceiveBufferSize(int socketReceiveBufferSize) {
+			if(socketReceiveBufferSize < 0)
+				throw new IllegalArgumentException("socketReceiveBufferSize must be >= 0");
+			
+			this.socketReceiveBufferSize = socketReceiveBufferSize;
+			
+			return this;
+		}
+		
+		/**
+		 * @param socketSendBufferSize peers sockets send buffer size in bytes, 0 to let the system choose (default)
+		 */
+		public Builder socketSendBufferSize(int socketSendBufferSize) {
+			if(socketSendBufferSize < 0)
+				throw new IllegalArgumentException("socketSendBufferSize must be >= 0");
+			
+			this.socketSendBufferSize = socketSendBufferSize;
+			
+			return this;
+		}
+		
+		/**
+		 * @param tcpNoDelay disable Nagle's algorithm on peers sockets, default true since writes are already coalesced
+		 */
+		public Builder tcpNoDelay(boolean tcpNoDelay) {
+			this.tcpNoDelay = tcpNoDelay;
+			
+			return this;
+		}
+		
+		/**
+		 * @param writeBatchMaxBytes maximum size of frames coalesced in a single socket write, must be > 0
+		 */
+		public Builder writeBatchMaxBytes(long writeBatchMaxBytes) {
+			if(writeBatchMaxBytes < 1)
+				throw new IllegalArgumentException("writeBatchMaxBytes must be > 0");
+			
+			this.writeBatchMaxBytes = writeBatchMaxBytes;
+			
+			return this;
+		}
+		
+		/**
+		 * @param writeLingerMicros how long a blocking peer writer waits for more frames before writing a batch that isn't full,
+		 * in microseconds, 0 to write right away (default). Non blocking IO writes right away
+		 */
+		public Builder writeLingerMicros(long writeLingerMicros) {
+			if(writeLingerMicros < 0)
+				throw new IllegalArgumentException("writeLingerMicros must be >= 0");
+			
+			this.writeLingerMicros = writeLingerMicros;
+			
+			return this;
+		}
+		
+		/**
+		 * @param high bytes a peer's outbound queue can hold before the peer stops being writable, must be > 0 (default 4MB)
+		 * @param low bytes the queue must drain to for the peer to be writable again, must be >= 0 and < high (default 1MB)
+		 * Frames streamed from files only count their header. Frames that can't be dropped still queued past the high watermark
+		 * are bounded to 4 times it, peer being disconnected beyond
+		 */
+		public Builder outboundQueueWatermarks(long high, long low) {
+			if(high < 1)
+				throw new IllegalArgumentException("high watermark must be > 0");
+			
+			if(low < 0 || low >= high)
+				throw new IllegalArgumentException("low watermark must be >= 0 and < high watermark");
+			
+			this.outboundQueueHighWatermark = high;
+			this.outboundQueueLowWatermark = low;
+			
+			return this;
+		}
+		
+		/**
+		 * @param overflowPolicy what happens to messages sent to a peer that isn't writable, default {@link OverflowPolicy#DROP_OLDEST}
+		 */
+		public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+			if(overflowPolicy == null)
+				throw new IllegalArgumentException("overflowPolicy can't be null");
+			
+			this.overflowPolicy = overflowPolicy;
+			
+			return this;
+		}
+		
+		/**
+		 * Set how bytes sent to a peer are shared between messages and data when both are waiting, heartbeats always go first
+		 * 
+		 * @param requestWeight weight of messages, including sync requests and responses, must be > 0 (default 4)
+		 * @param bulkWeight weight of data answering data requests, must be > 0 (default 1)
+		 */
+		public Builder outboundLaneWeights(int requestWeight, int bulkWeight) {
+			if(requestWeight < 1 || bulkWeight < 1)
+				throw new IllegalArgumentException("lane weights must be > 0");
+			
+			this.requestLaneWeight = requestWeight;
+			this.bulkLaneWeight = bulkWeight;
+			
+			return this;
+		}
+		
+		/**
+		 * @param dataChunkSize maximum size of a chunk of data sent to a peer, in bytes, must be > 0 (default 64KB)
+		 * Data is split in chunks interleaved with other messages, so several transfers progress at once
+		 * and messages don't wait for a transfer to end. Peers not supporting it receive data in a single frame
+		 */
+		public Builder dataChunkSize(int dataChunkSize) {
+			if(dataChunkSize < 1)
+				throw new IllegalArgumentException("dataChunkSize must be > 0");
+			
+			this.dataChunkSize = dataChunkSize;
+			
+			return this;
+		}
+		
+		/**
+		 * @param dataStreamWindow bytes of a data stream a peer can send us before we consumed them, bounding the data in flight
+		 * for each transfer, must be >= 0 (default 1MB). 0 to receive data in a single frame as peers not supporting streams do
+		 */
+		public Builder dataStreamWindow(int dataStreamWindow) {
+			if(dataStreamWindow < 0)
+				throw new IllegalArgumentException("dataStreamWindow must be >= 0");
+			
+			this.dataStreamWindow = dataStreamWindow;
+			
+			return this;
+		}
+		
+		/**
+		 * @param dataRequestPipelineDepth data requested with {@link Peer#requestData(java.util.Collection)} a peer can be asked for
+		 * before it answered, must be > 0 (default 512). Deep enough to keep the link busy while answers are on their way,
+		 * further requests wait for answers
+		 */
+		public Builder dataRequestPipelineDepth(int dataRequestPipelineDepth) {
+			if(dataRequestPipelineDepth < 1)
+				throw new IllegalArgumentException("dataRequestPipelineDepth must be > 0");
+			
+			this.dataRequestPipelineDepth = dataRequestPipelineDepth;
+			
+			return this;
+		}
+		
+		/**
+		 * @param dataRequestTimeout how long a peer has to start answering a data requested with
+		 * {@link Peer#requestData(java.util.Collection)} before it fails, in milliseconds, must be >= 100 (default 60000)
+		 */
+		public Builder dataRequestTimeout(long dataRequestTimeout) {
+			if(dataRequestTimeout < 100)
+				throw new IllegalArgumentException("dataRequestTimeout must be >= 100");
+			
+			this.dataRequestTimeout = dataRequestTimeout;
+			
+			return this;
+		}
+		
+		/**
+		 * @param jmx publish metrics as an MBean named io.virgo.geoWeb:type=GeoWeb,port=&lt;port&gt;, default true
+		 */
+		public Builder jmx(boolean jmx) {
+			this.jmx = jmx;
+			
+			return this;
+		}
+		
+		/**
+		 * @param peersFile the file known peers addresses are loaded from and saved to, default peers.dat, null to not save them.
+		 * A peers file saved as JSON by former versions is converted
+		 * Instances running in the same directory must use different files
+		 */
+		public Builder peersFile(String peersFile) {
+			if(peersFile != null && peersFile.isEmpty())
+				throw new IllegalArgumentException("peersFile must not be empty");
+			
+			this.peersFile = peersFile;
+			
+			return this;
+		}
+		
+		/**
+		 * Run on given threads instead of creating new ones, so many instances of a process can share them
+		 * Thread related parameters of this builder are then ignored, and given threads aren't stopped on shutdown
+		 */
+		public Builder threads(GeoWebThreads threads) {
+			this.threads = threads;
+			
+			return this;
+		}
+		
+		/**
+		 * Set how connections to peers are established, default is a new {@link TcpTransport}
+		 * A transport can only be used by a single instance
+		 */
+		public Builder transport(Transport transport) {
+			this.transport = transport;
+			
+			return this;
+		}
+		
 		public Builder hostname(String hostname) {
 			if(!AddressUtils.isValidHostname(hostname))
 				throw new IllegalArgumentException("Invalid hostname");
@@ -574,18 +1523,128 @@ public class GeoWeb {
 			return this;
 		}
 		
+		/**
+		 * Set the codecs that can be used to talk to peers supporting them, in order of preference
+		 * JSON is always supported and used with other peers, call without arguments to only use JSON
+		 * 
+		 * Default: {@link BinaryCodec}
+		 */
+		public Builder codecs(MessageCodec... codecs) {
+			ArrayList<String> names = new ArrayList<String>();
+			ArrayList<Byte> types = new ArrayList<Byte>();
+			
+			for(MessageCodec codec : codecs) {
+				if(codec.getName().equals(JsonCodec.NAME) || names.contains(codec.getName()))
+					throw new IllegalArgumentException("Duplicate codec name " + codec.getName());
+				
+				if(FrameDecoder.isReservedType(codec.getMessageType()) || types.contains(codec.getMessageType()))
+					throw new IllegalArgumentException("Codec " + codec.getName() + " message type is already used");
+				
+				names.add(codec.getName());
+				types.add(codec.getMessageType());
+			}
+			
+			this.codecs = Arrays.asList(codecs);
+			
+			return this;
+		}
+		
 		public Builder eventListener(EventListener eventListener) {
 			this.eventsListener = eventListener;
 		
 			return this;
 		}
 		
+		/**
+		 * Keep recently transferred data in memory to answer data requests directly
+		 * 
+		 * @param contentCacheSize the maximum total size of cached data in bytes, 0 to disable (default)
+		 */
+		public Builder contentCacheSize(long contentCacheSize) {
+			if(contentCacheSize < 0)
+				throw new IllegalArgumentException("contentCacheSize must be >= 0");
+			
+			this.contentCacheSize = contentCacheSize;
+			
+			return this;
+		}
+		
+		/**
+		 * @param gossipMaxHops how many times a gossiped message can be relayed, must be > 0
+		 */
+		public Builder gossipMaxHops(int gossipMaxHops) {
+			if(gossipMaxHops < 1)
+				throw new IllegalArgumentException("gossipMaxHops must be > 0");
+			
+			this.gossipMaxHops = gossipMaxHops;
+			
+			return this;
+		}
+		
+		/**
+		 * @param gossipCacheSize how many gossiped message ids are remembered to drop duplicates, must be > 0
+		 */
+		public Builder gossipCacheSize(int gossipCacheSize) {
+			if(gossipCacheSize < 1)
+				throw new IllegalArgumentException("gossipCacheSize must be > 0");
+			
+			this.gossipCacheSize = gossipCacheSize;
+			
+			return this;
+		}
+		
+		/**
+		 * @param gossipCacheTtl how long gossiped message ids are remembered, in milliseconds, must be >= 1000
+		 */
+		public Builder gossipCacheTtl(long gossipCacheTtl) {
+			if(gossipCacheTtl < 1000)
+				throw new IllegalArgumentException("gossipCacheTtl must be >= 1000");
+			
+			this.gossipCacheTtl = gossipCacheTtl;
+			
+			return this;
+		}
+		
 		public Builder debug(boolean debug) {
 			this.debug = debug;
 			
 			return this;
 		}
 		
+		/**
+		 * Handle all peers with a few selector based event loops instead of two threads per peer
+		 */
+		public Builder nonBlockingIO(boolean nonBlockingIO) {
+			this.nonBlockingIO = nonBlockingIO;
+			
+			return this;
+		}
+		
+		/**
+		 * @param ioThreads number of event loops used when non blocking IO is enabled, must be > 0
+		 */
+		public Builder ioThreads(int ioThreads) {
+			if(ioThreads < 1)
+				throw new IllegalArgumentException("ioThreads must be > 0");
+			
+			this.ioThreads = ioThreads;
+			
+			return this;
+		}
+		
+		/**
+		 * Run peers IO, connection requests and message handling on virtual threads, requires Java 21 or newer
+		 * Messages are then handled by a new virtual thread each, so maxMessageThreadPoolSize no longer applies
+		 */
+		public Builder virtualThreads(boolean virtualThreads) {
+			if(virtualThreads && !VirtualThreads.isSupported())
+				throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+			
+			this.virtualThreads = virtualThreads;
+			
+			return this;
+		}
+		
 	}
 	
 }
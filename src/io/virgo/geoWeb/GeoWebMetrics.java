@@ -0,0 +1,63 @@
+package io.virgo.geoWeb;
+
+import io.virgo.geoWeb.metrics.Counter;
+import io.virgo.geoWeb.metrics.LabeledCounter;
+import io.virgo.geoWeb.metrics.MetricsRegistry;
+
+/**
+ * Counters updated on hot paths, resolved once from the registry so updating them is a single striped increment
+ */
+class GeoWebMetrics {
+
+	//commands are chosen by peers, don't let them create unlimited metrics
+	private static final int MAX_COMMANDS = 256;
+
+	Counter bytesReceived;
+	Counter bytesSent;
+	Counter framesReceived;
+	Counter framesSent;
+	Counter framesDropped;
+
+	LabeledCounter messagesReceived;
+	LabeledCounter messagesSent;
+	Counter messagesInFlight;
+	Counter messageErrors;
+
+	Counter handshakeFailures;
+	Counter syncRequests;
+	Counter syncTimeouts;
+	Counter syncRejected;
+	Counter gossipDuplicates;
+	Counter broadcastSkipped;
+	Counter overflowDisconnections;
+
+	Counter connectionAttempts;
+	Counter connectionFailures;
+	Counter peerSwaps;
+
+	GeoWebMetrics(MetricsRegistry registry) {
+		bytesReceived = registry.counter("io.bytesReceived");
+		bytesSent = registry.counter("io.bytesSent");
+		framesReceived = registry.counter("io.framesReceived");
+		framesSent = registry.counter("io.framesSent");
+		framesDropped = registry.counter("io.framesDropped");
+
+		messagesReceived = registry.labeledCounter("messages.received", MAX_COMMANDS);
+		messagesSent = registry.labeledCounter("messages.sent", MAX_COMMANDS);
+		messagesInFlight = registry.counter("messages.inFlight");
+		messageErrors = registry.counter("messages.errors");
+
+		handshakeFailures = registry.counter("peers.handshakeFailures");
+		syncRequests = registry.counter("sync.requests");
+		syncTimeouts = registry.counter("sync.timeouts");
+		syncRejected = registry.counter("sync.rejected");
+		gossipDuplicates = registry.counter("gossip.duplicates");
+		broadcastSkipped = registry.counter("broadcast.skipped");
+		overflowDisconnections = registry.counter("peers.overflowDisconnections");
+
+		connectionAttempts = registry.counter("watchdog.connectionAttempts");
+		connectionFailures = registry.counter("watchdog.connectionFailures");
+		peerSwaps = registry.counter("watchdog.peerSwaps");
+	}
+
+}
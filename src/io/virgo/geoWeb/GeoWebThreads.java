@@ -0,0 +1,175 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import io.virgo.geoWeb.utils.HashedWheelTimer;
+import io.virgo.geoWeb.utils.VirtualThreads;
+
+/**
+ * Threads doing the work of GeoWeb instances: message handling pool, timer, non blocking IO event loops
+ * and the factory of per peer threads
+ *
+ * Each GeoWeb creates it's own unless given one with {@link GeoWeb.Builder#threads(GeoWebThreads)},
+ * so that many instances of a process can share the same threads. Shared threads are not stopped
+ * when an instance shuts down, call {@link #shutdown()} once all instances using them are done
+ * <p>
+ * Example:<br><br>
+ * {@code GeoWebThreads threads = new GeoWebThreads.Builder().maxMessageThreadPoolSize(16).build();}<br>
+ * {@code GeoWeb first = new GeoWeb.Builder().threads(threads).port(1234).build();}<br>
+ * {@code GeoWeb second = new GeoWeb.Builder().threads(threads).port(1235).build();}
+ * <p>
+ */
+public class GeoWebThreads {
+
+	//10ms precision, 1024 buckets cover about 10 seconds per round
+	private static final long TIMER_TICK_DURATION = 10;
+	private static final int TIMER_WHEEL_SIZE = 1024;
+
+	private ExecutorService messageThreadPool;
+	private ThreadFactory connectionThreadFactory;
+	private HashedWheelTimer timer;
+	private NioEventLoop[] eventLoops;
+	private int ioThreads;
+	private boolean virtualThreads;
+
+	private ArrayList<Thread> threads = new ArrayList<Thread>();
+
+	private GeoWebThreads(Builder builder) {
+		this.ioThreads = builder.ioThreads;
+		this.virtualThreads = builder.virtualThreads;
+
+		//Initialize thread pool that will handle messages, and how peers and connection requests threads are made
+		if(virtualThreads) {
+			messageThreadPool = VirtualThreads.newThreadPerTaskExecutor();
+			connectionThreadFactory = VirtualThreads.factory();
+		}else {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(builder.maxMessageThreadPoolSize);
+			pool.setKeepAliveTime(builder.messageThreadKeepAliveTime, TimeUnit.MILLISECONDS);
+			messageThreadPool = pool;
+			connectionThreadFactory = Executors.defaultThreadFactory();
+		}
+
+		//Single timer thread running heartbeats, sync requests timeouts and peers count watchdogs
+		timer = new HashedWheelTimer(TIMER_TICK_DURATION, TIMER_WHEEL_SIZE);
+		Thread timerThread = new Thread(timer);
+		timerThread.start();
+		threads.add(timerThread);
+	}
+
+	/**
+	 * @return the event loops handling connection requests and peers IO of non blocking instances, started on first call
+	 */
+	synchronized NioEventLoop[] getEventLoops() throws IOException {
+		if(eventLoops == null) {
+			eventLoops = NioEventLoop.createGroup(ioThreads);
+			for(NioEventLoop eventLoop : eventLoops) {
+				Thread eventLoopThread = new Thread(eventLoop);
+				eventLoopThread.start();
+				threads.add(eventLoopThread);
+			}
+		}
+
+		return eventLoops;
+	}
+
+	ExecutorService getMessageThreadPool() {
+		return messageThreadPool;
+	}
+
+	/**
+	 * @return the timer shared by all timeouts, tasks given to it must not block
+	 */
+	HashedWheelTimer getTimer() {
+		return timer;
+	}
+
+	/**
+	 * @return true if peers, connection requests and messages are handled on virtual threads
+	 */
+	public boolean virtualThreadsEnabled() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Create a thread running peer IO or connection requests, virtual if built with virtual threads
+	 */
+	Thread newThread(Runnable runnable) {
+		return connectionThreadFactory.newThread(runnable);
+	}
+
+	/**
+	 * Stop all threads, instances using them will stop working
+	 */
+	public synchronized void shutdown() {
+		for(Thread thread : threads)
+			thread.interrupt();
+
+		messageThreadPool.shutdown();
+	}
+
+	public static class Builder {
+
+		private long messageThreadKeepAliveTime = 60000L;
+		private int maxMessageThreadPoolSize = 10;
+		private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		private boolean virtualThreads = false;
+
+		public GeoWebThreads build() {
+			return new GeoWebThreads(this);
+		}
+
+		public Builder messageThreadKeepAliveTime(long messageThreadKeepAliveTime) {
+			if(messageThreadKeepAliveTime < 1000)
+				throw new IllegalArgumentException("messageThreadKeepAliveTime must be >= 1000");
+
+			this.messageThreadKeepAliveTime = messageThreadKeepAliveTime;
+
+			return this;
+		}
+
+		/**
+		 * @param maxMessageThreadPoolSize Maximal number of threads used to handle messages, must be > 0
+		 */
+		public Builder maxMessageThreadPoolSize(int maxMessageThreadPoolSize) {
+			if(maxMessageThreadPoolSize < 1)
+				throw new IllegalArgumentException("maxMessageThreadPoolSize must be > 0");
+
+			this.maxMessageThreadPoolSize = maxMessageThreadPoolSize;
+
+			return this;
+		}
+
+		/**
+		 * @param ioThreads number of event loops used by instances with non blocking IO enabled, must be > 0
+		 */
+		public Builder ioThreads(int ioThreads) {
+			if(ioThreads < 1)
+				throw new IllegalArgumentException("ioThreads must be > 0");
+
+			this.ioThreads = ioThreads;
+
+			return this;
+		}
+
+		/**
+		 * Run peers IO, connection requests and message handling on virtual threads, requires Java 21 or newer
+		 * Messages are then handled by a new virtual thread each, so maxMessageThreadPoolSize no longer applies
+		 */
+		public Builder virtualThreads(boolean virtualThreads) {
+			if(virtualThreads && !VirtualThreads.isSupported())
+				throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+
+			this.virtualThreads = virtualThreads;
+
+			return this;
+		}
+
+	}
+
+}
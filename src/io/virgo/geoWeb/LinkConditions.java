@@ -0,0 +1,61 @@
+package io.virgo.geoWeb;
+
+/**
+ * Simulated conditions of links between nodes of a {@link MemoryNetwork}, applying to each direction
+ *
+ * Connections carry a reliable stream, as TCP does: a lost segment isn't dropped but
+ * retransmitted after a timeout, delaying everything sent after it
+ */
+public class LinkConditions {
+
+	/**
+	 * Links without latency, bandwidth limit nor loss
+	 */
+	public static final LinkConditions PERFECT = new LinkConditions(0, 0, 0);
+
+	private long latencyMicros;
+	private long bandwidth;
+	private double lossRate;
+
+	/**
+	 * @param latencyMicros one way delay, in microseconds, must be >= 0
+	 * @param bandwidth bytes per second each direction can carry, 0 for unlimited
+	 * @param lossRate probability of a write being lost and retransmitted, must be >= 0 and < 1
+	 */
+	public LinkConditions(long latencyMicros, long bandwidth, double lossRate) {
+		if(latencyMicros < 0)
+			throw new IllegalArgumentException("latencyMicros must be >= 0");
+
+		if(bandwidth < 0)
+			throw new IllegalArgumentException("bandwidth must be >= 0");
+
+		if(lossRate < 0 || lossRate >= 1)
+			throw new IllegalArgumentException("lossRate must be >= 0 and < 1");
+
+		this.latencyMicros = latencyMicros;
+		this.bandwidth = bandwidth;
+		this.lossRate = lossRate;
+	}
+
+	/**
+	 * @return one way delay, in microseconds
+	 */
+	public long getLatencyMicros() {
+		return latencyMicros;
+	}
+
+	/**
+	 * @return bytes per second each direction can carry, 0 if unlimited
+	 */
+	public long getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * @return probability of a write being lost and retransmitted
+	 */
+	public double getLossRate() {
+		return lossRate;
+	}
+
+}
@@ -0,0 +1,65 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * One end of an in memory link between two nodes of a {@link MemoryNetwork}
+ */
+class MemoryConnection extends StreamConnection {
+
+	private String remoteHost;
+	private int remotePort;
+	private MemoryPipe in;
+	private MemoryPipe out;
+	private volatile boolean closed = false;
+
+	MemoryConnection(String remoteHost, int remotePort, MemoryPipe in, MemoryPipe out) {
+		this.remoteHost = remoteHost;
+		this.remotePort = remotePort;
+		this.in = in;
+		this.out = out;
+	}
+
+	@Override
+	String getRemoteAddress() {
+		return remoteHost;
+	}
+
+	@Override
+	String getRemoteHostname() {
+		return remoteHost;
+	}
+
+	@Override
+	int getRemotePort() {
+		return remotePort;
+	}
+
+	@Override
+	int read(ByteBuffer buffer) throws IOException {
+		return in.read(buffer);
+	}
+
+	@Override
+	GatheringByteChannel getOutput() {
+		return out;
+	}
+
+	@Override
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Remote end receives what has already been sent then reaches end of stream, as after a TCP close
+	 */
+	@Override
+	void close() {
+		closed = true;
+		out.close();
+		in.shutdownInput();
+	}
+
+}
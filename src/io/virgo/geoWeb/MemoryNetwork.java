@@ -0,0 +1,101 @@
+package io.virgo.geoWeb;
+
+import java.net.BindException;
+import java.net.ConnectException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Virtual network connecting GeoWeb instances of a process using {@link MemoryTransport}s
+ *
+ * Each node is reachable at the virtual host of it's transport and the port it's built with,
+ * links between nodes can be given simulated latency, bandwidth and loss
+ * <p>
+ * Example:<br><br>
+ * {@code MemoryNetwork network = new MemoryNetwork();}<br>
+ * {@code network.setDefaultLinkConditions(new LinkConditions(20000, 1250000, 0.001));}<br>
+ * {@code GeoWeb node = new GeoWeb.Builder().netID(1).transport(new MemoryTransport(network, "10.0.0.1")).build();}<br>
+ * {@code otherNode.connectTo("10.0.0.1", 25565);}
+ * <p>
+ */
+public class MemoryNetwork {
+
+	private ConcurrentHashMap<String, MemoryTransport> listeners = new ConcurrentHashMap<String, MemoryTransport>();
+	private ConcurrentHashMap<String, LinkConditions> links = new ConcurrentHashMap<String, LinkConditions>();
+	private volatile LinkConditions defaultConditions = LinkConditions.PERFECT;
+
+	//ports given to the connecting side of links, as the system's ephemeral ports
+	private static final int EPHEMERAL_PORTS_START = 49152;
+	private static final int EPHEMERAL_PORTS_COUNT = 16384;
+	private AtomicInteger nextPort = new AtomicInteger();
+
+	/**
+	 * Set the conditions of links between hosts without specific ones, applies to new connections
+	 */
+	public void setDefaultLinkConditions(LinkConditions conditions) {
+		defaultConditions = conditions;
+	}
+
+	/**
+	 * Set the conditions of links between two hosts, in both directions, applies to new connections
+	 *
+	 * @param conditions the conditions to use, null to use default ones again
+	 */
+	public void setLinkConditions(String hostA, String hostB, LinkConditions conditions) {
+		if(conditions == null)
+			links.remove(linkKey(hostA, hostB));
+		else
+			links.put(linkKey(hostA, hostB), conditions);
+	}
+
+	/**
+	 * @return the conditions new connections between given hosts get
+	 */
+	public LinkConditions getLinkConditions(String hostA, String hostB) {
+		LinkConditions conditions = links.get(linkKey(hostA, hostB));
+
+		return conditions != null ? conditions : defaultConditions;
+	}
+
+	/**
+	 * @return the number of nodes accepting connections
+	 */
+	public int getNodesCount() {
+		return listeners.size();
+	}
+
+	private static String linkKey(String hostA, String hostB) {
+		return hostA.compareTo(hostB) <= 0 ? hostA + " " + hostB : hostB + " " + hostA;
+	}
+
+	void bind(String host, int port, MemoryTransport transport) throws BindException {
+		if(listeners.putIfAbsent(host + ":" + port, transport) != null)
+			throw new BindException("Address already in use: " + host + ":" + port);
+	}
+
+	void unbind(String host, int port, MemoryTransport transport) {
+		listeners.remove(host + ":" + port, transport);
+	}
+
+	/**
+	 * Open a link from given local host to a listening node
+	 *
+	 * @return the local end of the link, the remote one is given to the listening node
+	 */
+	MemoryConnection connect(String localHost, String host, int port, LinkConditions conditions) throws ConnectException {
+		MemoryTransport target = listeners.get(host + ":" + port);
+		if(target == null)
+			throw new ConnectException("Connection refused: " + host + ":" + port);
+
+		int localPort = EPHEMERAL_PORTS_START + Math.floorMod(nextPort.getAndIncrement(), EPHEMERAL_PORTS_COUNT);
+
+		MemoryPipe outbound = new MemoryPipe(conditions);
+		MemoryPipe inbound = new MemoryPipe(conditions);
+
+		if(!target.accept(new MemoryConnection(localHost, localPort, outbound, inbound)))
+			throw new ConnectException("Connection refused: " + host + ":" + port);
+
+		return new MemoryConnection(host, port, inbound, outbound);
+	}
+
+}
@@ -0,0 +1,263 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One direction of an in memory link, delivering written bytes to the reader according to the link conditions
+ *
+ * Each write becomes a segment, available to the reader once it has been transmitted at the link bandwidth
+ * and has travelled for the link latency. Lost segments are delivered after a retransmission timeout
+ * and hold back the following ones, so the stream stays ordered
+ *
+ * Writers block while the bytes in flight fill the link buffer, as with socket buffers
+ */
+class MemoryPipe implements GatheringByteChannel {
+
+	//bytes in flight per direction before writers block
+	static final int BUFFER_SIZE = 262144;
+
+	//a lost segment is retransmitted after at least this delay, as TCP's minimum retransmission timeout
+	private static final long MIN_RETRANSMISSION_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(200);
+
+	private long latency;
+	private long bandwidth;
+	private double lossRate;
+	private long retransmissionTimeout;
+
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition readable = lock.newCondition();
+	private Condition writable = lock.newCondition();
+
+	private ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private int buffered = 0;
+	private long linkFreeTime = 0;
+	private long lastDeliveryTime = 0;
+	private boolean outputShutdown = false;
+	private boolean inputShutdown = false;
+
+	MemoryPipe(LinkConditions conditions) {
+		this.latency = TimeUnit.MICROSECONDS.toNanos(conditions.getLatencyMicros());
+		this.bandwidth = conditions.getBandwidth();
+		this.lossRate = conditions.getLossRate();
+		this.retransmissionTimeout = Math.max(MIN_RETRANSMISSION_TIMEOUT, 2 * latency);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long written = 0;
+		int end = offset + length;
+
+		lock.lock();
+		try {
+
+			while(true) {
+
+				while(offset < end && !srcs[offset].hasRemaining())
+					offset++;
+
+				if(offset == end)
+					return written;
+
+				while(buffered >= BUFFER_SIZE && !outputShutdown && !inputShutdown)
+					writable.await();
+
+				if(outputShutdown || inputShutdown)
+					throw new ClosedChannelException();
+
+				byte[] data = new byte[(int) Math.min(BUFFER_SIZE - buffered, remaining(srcs, offset, end))];
+
+				int copied = 0;
+				while(copied < data.length) {
+					ByteBuffer src = srcs[offset];
+					int count = Math.min(src.remaining(), data.length - copied);
+					src.get(data, copied, count);
+					copied += count;
+
+					if(!src.hasRemaining())
+						offset++;
+				}
+
+				send(data);
+				written += data.length;
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] {src}, 0, 1);
+	}
+
+	private static long remaining(ByteBuffer[] buffers, int offset, int end) {
+		long remaining = 0;
+
+		for(int i = offset; i < end; i++)
+			remaining += buffers[i].remaining();
+
+		return remaining;
+	}
+
+	/**
+	 * Schedule delivery of a segment, called with lock held
+	 */
+	private void send(byte[] data) {
+		long now = System.nanoTime();
+
+		long transmissionStart = Math.max(now, linkFreeTime);
+		long transmissionTime = bandwidth > 0 ? data.length * 1000000000L / bandwidth : 0;
+		linkFreeTime = transmissionStart + transmissionTime;
+
+		long deliveryTime = linkFreeTime + latency;
+
+		if(lossRate > 0) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			while(random.nextDouble() < lossRate)
+				deliveryTime += retransmissionTimeout;
+		}
+
+		//a late segment holds back the following ones
+		deliveryTime = Math.max(deliveryTime, lastDeliveryTime);
+		lastDeliveryTime = deliveryTime;
+
+		segments.add(new Segment(data, deliveryTime));
+		buffered += data.length;
+
+		readable.signalAll();
+	}
+
+	/**
+	 * Read delivered bytes, waiting for at least one
+	 *
+	 * @return the number of bytes read, -1 once writer closed and everything has been read, or reader closed
+	 */
+	int read(ByteBuffer dst) throws IOException {
+		lock.lock();
+		try {
+			Segment head;
+
+			while(true) {
+				if(inputShutdown)
+					return -1;
+
+				head = segments.peek();
+
+				if(head == null) {
+					if(outputShutdown)
+						return -1;
+
+					readable.await();
+					continue;
+				}
+
+				long wait = head.deliveryTime - System.nanoTime();
+				if(wait <= 0)
+					break;
+
+				readable.awaitNanos(wait);
+			}
+
+			int read = 0;
+			long now = System.nanoTime();
+
+			while(head != null && head.deliveryTime <= now && dst.hasRemaining()) {
+				int count = Math.min(dst.remaining(), head.data.length - head.position);
+				dst.put(head.data, head.position, count);
+				head.position += count;
+				read += count;
+
+				if(head.position == head.data.length) {
+					segments.poll();
+					head = segments.peek();
+				}
+			}
+
+			buffered -= read;
+			writable.signalAll();
+
+			return read;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop reading, pending and further writes are discarded and writers fail
+	 */
+	void shutdownInput() {
+		lock.lock();
+		try {
+			inputShutdown = true;
+			segments.clear();
+			buffered = 0;
+
+			readable.signalAll();
+			writable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		lock.lock();
+		try {
+			return !outputShutdown && !inputShutdown;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop writing, reader reaches end of stream once it has read what is already written
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			outputShutdown = true;
+
+			readable.signalAll();
+			writable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static class Segment {
+
+		private byte[] data;
+		private int position = 0;
+		private long deliveryTime;
+
+		private Segment(byte[] data, long deliveryTime) {
+			this.data = data;
+			this.deliveryTime = deliveryTime;
+		}
+
+	}
+
+}
@@ -0,0 +1,123 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.virgo.geoWeb.utils.AddressUtils;
+
+/**
+ * Transport connecting to other nodes of a {@link MemoryNetwork}, within the same process
+ *
+ * The whole protocol runs unmodified over in memory links, so large networks can be simulated on a single machine.
+ * Peers are handled by two threads each whatever the IO mode, build nodes with virtual threads to run thousands of them,
+ * and give each it's own peers file, or none
+ */
+public class MemoryTransport extends Transport {
+
+	private MemoryNetwork network;
+	private String host;
+	private GeoWeb geoWeb;
+
+	/**
+	 * @param network the network to join
+	 * @param host the virtual host of this node, an IP or domain name other nodes connect to
+	 */
+	public MemoryTransport(MemoryNetwork network, String host) {
+		if(!AddressUtils.isValidHostname(host))
+			throw new IllegalArgumentException("Invalid hostname");
+
+		this.network = network;
+		this.host = host;
+	}
+
+	@Override
+	void listen(GeoWeb geoWeb) throws IOException {
+		if(this.geoWeb != null)
+			throw new IllegalStateException("Transport is already used by another instance");
+
+		this.geoWeb = geoWeb;
+		network.bind(host, geoWeb.getPort(), this);
+	}
+
+	@Override
+	CompletableFuture<String> resolve(String hostname) {
+		return CompletableFuture.completedFuture(hostname);
+	}
+
+	/**
+	 * Connection is established after a round trip time, as with TCP's handshake
+	 */
+	@Override
+	CompletableFuture<Boolean> connect(GeoWeb geoWeb, String address, int port) {
+		CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+		LinkConditions conditions = network.getLinkConditions(host, address);
+
+		Runnable open = new Runnable() {
+
+			@Override
+			public void run() {
+				//cancelled meanwhile
+				if(future.isDone())
+					return;
+
+				try {
+					MemoryConnection connection = network.connect(host, address, port, conditions);
+					geoWeb.newConnectionThread(new Peer(geoWeb, connection, true)).start();
+					future.complete(true);
+				} catch (ConnectException e) {
+					future.complete(false);
+				}
+			}
+
+		};
+
+		long handshakeMicros = 2 * conditions.getLatencyMicros();
+
+		if(handshakeMicros == 0) {
+			open.run();
+		}else {
+			geoWeb.getTimer().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					geoWeb.execute(open);
+				}
+
+			}, handshakeMicros, TimeUnit.MICROSECONDS);
+		}
+
+		return future;
+	}
+
+	/**
+	 * Create a peer for a connection from another node, unless we are already connected to it
+	 *
+	 * @return false if connection has been refused
+	 */
+	boolean accept(MemoryConnection connection) {
+		String address = connection.getRemoteAddress() + ":" + connection.getRemotePort();
+
+		if(geoWeb.peers.containsKey(address) || geoWeb.pendingPeers.containsKey(address)) {
+			connection.close();
+			return false;
+		}
+
+		geoWeb.newConnectionThread(new Peer(geoWeb, connection, false)).start();
+
+		return true;
+	}
+
+	@Override
+	void close() {
+		if(geoWeb != null)
+			network.unbind(host, geoWeb.getPort(), this);
+	}
+
+	@Override
+	String getLocalHost() {
+		return host;
+	}
+
+}
@@ -2,11 +2,16 @@ package io.virgo.geoWeb;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import io.virgo.geoWeb.codec.MessageCodec;
+import io.virgo.geoWeb.data.ContentCache;
+import io.virgo.geoWeb.data.DataManifest;
+import io.virgo.geoWeb.events.DataBatchRequestedEvent;
 import io.virgo.geoWeb.events.DataRequestedEvent;
 import io.virgo.geoWeb.events.PeerHandshakedEvent;
 import io.virgo.geoWeb.utils.AddressUtils;
@@ -16,14 +21,18 @@ import io.virgo.virgoCryptoLib.Sha256Hash;
 public class MessageHandler {
 
 	//non-overrideable on-message logic
-	final void superOnMessage(String message, Peer peer) {
+	final void superOnMessage(byte[] message, MessageCodec codec, Peer peer) {
 		
-		if(GeoWeb.getInstance().debugEnabled())
-			System.out.println(message);
+		GeoWeb geoWeb = peer.getGeoWeb();
 		
 		try {
 			
-			JSONObject messageJson = new JSONObject(message);
+			JSONObject messageJson = codec.decode(message);
+			
+			geoWeb.metrics.messagesReceived.get(messageJson.optString("command")).increment();
+			
+			if(geoWeb.debugEnabled())
+				System.out.println(messageJson);
 			
 			//Handshake logic
 			if(messageJson.getString("command").equals("handshake")) {
@@ -31,13 +40,14 @@ public class MessageHandler {
 					return;
 				
 				//Check if peer is part of the same network by comparing netIds
-				if(!messageJson.has("netId") || messageJson.getLong("netId") != GeoWeb.getInstance().getNetId()) {
+				if(!messageJson.has("netId") || messageJson.getLong("netId") != geoWeb.getNetId()) {
+					geoWeb.metrics.handshakeFailures.increment();
 					peer.end();
 					return;
 				}
 				
 				//remove peer from pendingPeers before effectiveAddress port changes
-				GeoWeb.getInstance().pendingPeers.remove(peer.getEffectiveAddress());
+				geoWeb.pendingPeers.remove(peer.getEffectiveAddress(), peer);
 				
 				if(messageJson.has("hostname"))
 					peer.setHostname(messageJson.getString("hostname"));
@@ -48,25 +58,45 @@ public class MessageHandler {
 				//check if peer has the same session ID as us, if so end connection because we're probably try to connect to ourselves
 				if(messageJson.has("id")) {
 					peer.id = messageJson.getString("id");
-					if(peer.getId().equals(GeoWeb.getInstance().getId()) || GeoWeb.getInstance().peersById.containsKey(peer.getId())) {
-						GeoWeb.getInstance().blockedPeers.add(peer.getEffectiveAddress());
+					if(peer.getId().equals(geoWeb.getId())) {
+						geoWeb.blockedPeers.add(peer.getEffectiveAddress());
+						geoWeb.metrics.handshakeFailures.increment();
+						peer.end();
+						return;
+					}
+					
+					if(!claimId(peer)) {
+						geoWeb.metrics.handshakeFailures.increment();
 						peer.end();
 						return;
 					}
 				}else {
+					geoWeb.metrics.handshakeFailures.increment();
 					peer.end();
 					return;
 				}
 				
 				//update peer score
-				GeoWeb.getInstance().getPeersCountWatchDog().updatePeerScore(peer.getAddress(), 1);
+				geoWeb.getPeersCountWatchDog().updatePeerScore(peer.getAddress(), 1);
 				
 				peer.handshaked = true;
 				
 				//start to send messages to peer
 				peer.startOutputWriter();
 				
-				peer.respondedToHeartbeat = true;//in case a heartbeat as been sent during setup
+				peer.startHeartbeat();
+				
+				//Use the preferred codec both sides support, JSON otherwise
+				if(messageJson.has("codecs"))
+					peer.codec = geoWeb.negotiateCodec(messageJson.getJSONArray("codecs"));
+				
+				//Send data to peer in chunks if it supports it
+				if(messageJson.has("streamWindow") && messageJson.getInt("streamWindow") > 0)
+					peer.streamWindow = messageJson.getInt("streamWindow");
+				
+				//Send many data requests at once if peer supports it
+				if(messageJson.optBoolean("dataBatch", false))
+					peer.acceptsDataBatch = true;
 				
 				//Exclude peer from broadcast if it wants to
 				if(messageJson.has("acceptsBroadcast") && !messageJson.getBoolean("acceptsBroadcast"))
@@ -77,17 +107,46 @@ public class MessageHandler {
 					peer.sendHandshake();
 				
 				//add peer to list of ready ones
-				GeoWeb.getInstance().peers.put(peer.getEffectiveAddress(), peer);
-				GeoWeb.getInstance().peersById.put(peer.getId(), peer);
+				geoWeb.peers.put(peer.getEffectiveAddress(), peer);
+				
+				geoWeb.getEventListener().notify(new PeerHandshakedEvent(peer));
+				
+			}else if(messageJson.getString("command").equals("ping")) {
 				
-				GeoWeb.getInstance().getEventListener().notify(new PeerHandshakedEvent(peer));
+				/*
+				 * Heartbeat, simply respond to ping with pong, echoing ping time so peer can measure round trip time
+				 * and it's reqUid for pings sent as sync messages.
+				 * Messages are handled concurrently so a ping may be handled before the handshake sent along it,
+				 * the pong is then queued until handshake is done
+				 */
+				JSONObject pongMessage = new JSONObject();
+				pongMessage.put("command", "pong");
+				if(messageJson.has("time"))
+					pongMessage.put("time", messageJson.get("time"));
+				if(messageJson.has("reqUid"))
+					pongMessage.put("respUid", messageJson.get("reqUid"));
+				peer.sendControlMessage(pongMessage);
+				
+				//Execute overridable logic
+				if(peer.handshakeDone())
+					onMessage(messageJson, peer);
 				
 			}else if(peer.handshakeDone()) {
+				
+				//Gossiped message, drop it if already seen, relay it otherwise
+				if(messageJson.has("gossipId")) {
+					if(!geoWeb.markGossipSeen(messageJson.getString("gossipId"))) {
+						geoWeb.metrics.gossipDuplicates.increment();
+						return;
+					}
+					
+					geoWeb.relayGossip(messageJson, peer);
+				}
 			
 				switch(messageJson.getString("command")) {
 	
 				case "getaddr"://peer is asking for current peer list
-					ArrayList<String> peers = GeoWeb.getInstance().getCurrentPeersAddresses();
+					ArrayList<String> peers = geoWeb.getCurrentPeersAddresses();
 					peers.remove(peer.getEffectiveAddress());
 					if(!peers.isEmpty()) {
 						JSONObject response = new JSONObject();	
@@ -108,53 +167,155 @@ public class MessageHandler {
 						String peerAddress = addresses.getString(i);
 						if(AddressUtils.isValidHostnameAndPort(peerAddress)) {
 							String[] peerAddressArray = peerAddress.split(":");
-							if(GeoWeb.getInstance().peers.size() < GeoWeb.getInstance().getPeerCountTarget() && !GeoWeb.getInstance().peers.containsKey(peerAddress) && !GeoWeb.getInstance().pendingPeers.containsKey(peerAddress))
-								GeoWeb.getInstance().connectTo(peerAddressArray[0], Integer.parseInt(peerAddressArray[1]));
+							if(geoWeb.peers.size() < geoWeb.getPeerCountTarget() && !geoWeb.peers.containsKey(peerAddress) && !geoWeb.pendingPeers.containsKey(peerAddress))
+								geoWeb.connectToAsync(peerAddressArray[0], Integer.parseInt(peerAddressArray[1]));
 							
-							GeoWeb.getInstance().getPeersCountWatchDog().addPossiblePeer(peerAddress, 0);
+							geoWeb.getPeersCountWatchDog().addPossiblePeer(peerAddress, 0);
 						}
 						
-						if(messageJson.has("share") && messageJson.getBoolean("share"))
-							GeoWeb.getInstance().broadCast(messageJson, Arrays.asList(peer));
-						
 					}
-					break;
 					
-				//Heartbeat, simply respond to ping with pong
-				case "ping":
-					JSONObject pongMessage = new JSONObject();
-					pongMessage.put("command", "pong");
-					peer.respondToMessage(pongMessage, messageJson);
+					//peer wants addresses to be shared, spread them once through gossip unless it already did
+					if(messageJson.has("share") && messageJson.getBoolean("share") && !messageJson.has("gossipId")) {
+						JSONObject shared = new JSONObject();
+						shared.put("command", "addr");
+						shared.put("addresses", addresses);
+						geoWeb.gossip(shared, Arrays.asList(peer));
+					}
 					break;
+					
 				//Peer responded to our heartbeat
 				case "pong":
-					peer.respondedToHeartbeat = true;
+					peer.heartbeatReceived(messageJson.optLong("time", -1));
 					break;
 				//Peer now accepts broadcasting
 				case "acceptBroadcast":
 					boolean value = messageJson.getBoolean("value");
 					peer.canBroadcast = value;
 					break;
-				//Peer is requesting data
+				//Peer consumed part of a data stream we are sending, let us send more of it
+				case "streamCredit":
+					long credit = messageJson.getLong("credit");
+					if(credit > 0)
+						peer.streamCreditReceived(messageJson.getInt("stream"), credit);
+					break;
+				//Peer is requesting data or a range of it, answer from cache if possible
 				case "requestData":
 					Sha256Hash dataHash = new Sha256Hash(Converter.hexToBytes(messageJson.getString("hash")));
-					GeoWeb.getInstance().getEventListener().notify(new DataRequestedEvent(dataHash, peer));
+					
+					ContentCache cache = geoWeb.getContentCache();
+					byte[] cachedData = cache == null ? null : cache.get(dataHash);
+					
+					if(messageJson.has("rangeHash")) {
+						long offset = messageJson.getLong("offset");
+						long length = messageJson.getLong("length");
+						Sha256Hash rangeHash = new Sha256Hash(Converter.hexToBytes(messageJson.getString("rangeHash")));
+						
+						//invalid ranges are answered like missing data so requester asks others right away
+						if(offset < 0 || length < 0)
+							peer.sendDataNotFound(Collections.singletonList(rangeHash));
+						else if(cachedData == null)
+							geoWeb.getEventListener().notify(new DataRequestedEvent(dataHash, peer, offset, length, rangeHash));
+						else if(offset <= cachedData.length && length <= cachedData.length - offset)
+							peer.sendData(cachedData, (int) offset, (int) length, rangeHash.toBytes());
+						else
+							peer.sendDataNotFound(Collections.singletonList(rangeHash));
+						
+					}else if(cachedData != null) {
+						peer.sendData(cachedData, dataHash.toBytes());
+					}else {
+						geoWeb.getEventListener().notify(new DataRequestedEvent(dataHash, peer));
+					}
+					break;
+				//Peer is requesting many data, answer cached ones right away and ask for others in a single event
+				case "requestDataBatch":
+					JSONArray batchArray = messageJson.getJSONArray("hashes");
+					ContentCache batchCache = geoWeb.getContentCache();
+					ArrayList<Sha256Hash> missing = new ArrayList<Sha256Hash>();
+					
+					for(int i = 0; i < Math.min(batchArray.length(), Peer.MAX_DATA_BATCH); i++) {
+						Sha256Hash batchHash = new Sha256Hash(Converter.hexToBytes(batchArray.getString(i)));
+						byte[] batchData = batchCache == null ? null : batchCache.get(batchHash);
+						
+						if(batchData != null)
+							peer.sendData(batchData, batchHash.toBytes());
+						else
+							missing.add(batchHash);
+					}
+					
+					if(!missing.isEmpty())
+						geoWeb.getEventListener().notify(new DataBatchRequestedEvent(missing, peer));
+					break;
+				//Peer doesn't have data we asked in a batch
+				case "dataNotFound":
+					JSONArray notFoundArray = messageJson.getJSONArray("hashes");
+					for(int i = 0; i < notFoundArray.length(); i++)
+						peer.dataNotFound(new Sha256Hash(Converter.hexToBytes(notFoundArray.getString(i))));
+					break;
+				//Peer wants to know the pieces of a data to download them from many peers
+				case "requestManifest":
+					Sha256Hash manifestHash = new Sha256Hash(Converter.hexToBytes(messageJson.getString("hash")));
+					
+					DataManifest manifest = geoWeb.getManifestCache().get(manifestHash);
+					
+					if(manifest == null && geoWeb.getContentCache() != null) {
+						byte[] manifestData = geoWeb.getContentCache().get(manifestHash);
+						if(manifestData != null) {
+							manifest = DataManifest.of(manifestData, DataManifest.DEFAULT_PIECE_SIZE);
+							geoWeb.getManifestCache().put(manifestHash, manifest);
+						}
+					}
+					
+					if(manifest != null) {
+						JSONObject manifestMessage = manifest.toJson();
+						manifestMessage.put("command", "manifest");
+						peer.respondToMessage(manifestMessage, messageJson, ResponseCode.OK);
+					}else {
+						geoWeb.getEventListener().notify(new DataRequestedEvent(manifestHash, peer, messageJson));
+					}
 					break;
 				}
 				
-				//Check if message has a respUid, if so it's a sync message: Fill SyncMessageresponse with message
+				//Check if message has a respUid, if so it's a sync message: complete the corresponding request
 				if(messageJson.has("respUid"))
-					peer.reqResponses.put(messageJson.getString("respUid"), messageJson);
+					peer.syncRequests.complete(messageJson.getString("respUid"), messageJson);
 				
 				//Execute overridable logic
 				onMessage(messageJson, peer);
 			}
 		} catch(JSONException | IllegalArgumentException e) {
-			
+			geoWeb.metrics.messageErrors.increment();
 		}
 		
 	}
 	
+	/**
+	 * Register peer by it's ID, atomically as both sides may connect to each other at the same time.
+	 * They then both keep the connection initiated by the one with the lowest ID
+	 * @return false if we already are connected to this peer
+	 */
+	private boolean claimId(Peer peer) {
+		GeoWeb geoWeb = peer.getGeoWeb();
+		
+		while(true) {
+			Peer existing = geoWeb.peersById.putIfAbsent(peer.getId(), peer);
+			if(existing == null)
+				return true;
+			
+			if(existing.isOutbound() == peer.isOutbound())
+				return false;
+			
+			boolean keepOutbound = geoWeb.getId().compareTo(peer.getId()) < 0;
+			if(peer.isOutbound() != keepOutbound)
+				return false;
+			
+			if(geoWeb.peersById.replace(peer.getId(), existing, peer)) {
+				existing.end();
+				return true;
+			}
+		}
+	}
+	
 	/**
 	 * overrideable method called after main logic for custom handler
 	 */
@@ -1,21 +1,36 @@
 package io.virgo.geoWeb;
 
+import java.nio.charset.StandardCharsets;
+
+import io.virgo.geoWeb.codec.JsonCodec;
+import io.virgo.geoWeb.codec.MessageCodec;
+
 /**
  * Runnable representing a received message, will process it using the message handler class
  */
 public class MessageTask implements Runnable {
 
-	private String message;
+	private byte[] body;
+	private MessageCodec codec;
 	private Peer peer;
 	
 	public MessageTask(String message, Peer peer) {
-		this.message = message;
+		this(message.getBytes(StandardCharsets.UTF_8), JsonCodec.INSTANCE, peer);
+	}
+	
+	MessageTask(byte[] body, MessageCodec codec, Peer peer) {
+		this.body = body;
+		this.codec = codec;
 		this.peer = peer;
 	}
 
 	@Override
 	public void run() {
-		GeoWeb.getInstance().getMessageHandler().superOnMessage(message, peer);
+		try {
+			peer.getGeoWeb().getMessageHandler().superOnMessage(body, codec, peer);
+		} finally {
+			peer.getGeoWeb().metrics.messagesInFlight.decrement();
+		}
 	}
 	
 }
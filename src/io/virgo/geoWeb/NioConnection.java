@@ -0,0 +1,223 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non blocking channel of a {@link Peer}, driven by a {@link NioEventLoop}
+ */
+class NioConnection extends Connection {
+
+	SocketChannel channel;
+	NioEventLoop loop;
+	SelectionKey key;
+	Peer peer;
+
+	private FrameDecoder decoder;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+	private FrameBatch batch = new FrameBatch();
+	private long maxBatchBytes;
+	private ConcurrentLinkedQueue<OutboundFrame> directQueue = new ConcurrentLinkedQueue<OutboundFrame>();
+	private volatile boolean writerStarted = false;
+	private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	NioConnection(GeoWeb geoWeb, SocketChannel channel, NioEventLoop loop) throws IOException {
+		this.channel = channel;
+		this.loop = loop;
+		this.maxBatchBytes = geoWeb.getWriteBatchMaxBytes();
+
+		channel.configureBlocking(false);
+	}
+
+	/**
+	 * Bind connection to it's peer and start reading from it
+	 */
+	void attach(Peer peer) {
+		this.peer = peer;
+		this.decoder = new FrameDecoder(peer);
+
+		loop.register(this);
+	}
+
+	/**
+	 * Send given frame even if peer's output writer hasn't been started yet, used for handshakes
+	 */
+	void writeDirect(OutboundFrame frame) {
+		directQueue.add(frame);
+		requestFlush();
+	}
+
+	/**
+	 * Start to send peer's queued messages
+	 */
+	void startWriting() {
+		writerStarted = true;
+		requestFlush();
+	}
+
+	/**
+	 * Schedule a flush on the loop thread if none is pending
+	 */
+	void requestFlush() {
+		if(!writerStarted && directQueue.isEmpty())
+			return;
+
+		if(!flushScheduled.compareAndSet(false, true))
+			return;
+
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				flushScheduled.set(false);
+				flush();
+			}
+
+		});
+	}
+
+	/**
+	 * Read available bytes and feed them to the decoder, called from loop thread
+	 */
+	void read() {
+		try {
+			int read = channel.read(readBuffer);
+
+			if(read < 0) {
+				closeOnError();
+				return;
+			}
+
+			peer.bytesReceived(read);
+			
+			readBuffer.flip();
+			decoder.decode(readBuffer);
+			readBuffer.compact();
+		} catch (IOException e) {
+			closeOnError();
+		}
+	}
+
+	/**
+	 * Write as much pending frames as the socket accepts, coalesced in batches, called from loop thread
+	 * Stays subscribed to write readiness while something remains
+	 */
+	void flush() {
+		if(key == null || !key.isValid())
+			return;
+
+		try {
+
+			while(true) {
+
+				if(batch.isEmpty()) {
+					fillBatch();
+
+					if(batch.isEmpty())
+						break;
+				}
+
+				int frames = batch.count();
+				long bytes = batch.size();
+				
+				if(!batch.writeTo(channel)) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				
+				peer.framesSent(frames, bytes);
+			}
+
+			key.interestOps(SelectionKey.OP_READ);
+
+		} catch (IOException | CancelledKeyException e) {
+			closeOnError();
+		}
+	}
+
+	/**
+	 * Coalesce pending frames, handshakes first, up to the maximum batch size
+	 */
+	private void fillBatch() {
+		OutboundFrame frame;
+
+		while(batch.size() < maxBatchBytes && !batch.isStreamed()) {
+			frame = directQueue.peek();
+
+			if(frame != null) {
+				if(!batch.canAdd(frame))
+					return;
+
+				batch.add(directQueue.poll());
+				continue;
+			}
+
+			if(!writerStarted)
+				return;
+
+			frame = peer.pollMessage(batch);
+
+			if(frame == null)
+				return;
+
+			batch.add(frame);
+		}
+	}
+
+	private void closeOnError() {
+		peer.end();
+	}
+
+	@Override
+	String getRemoteAddress() {
+		return channel.socket().getInetAddress().getHostAddress();
+	}
+
+	@Override
+	String getRemoteHostname() {
+		return channel.socket().getInetAddress().getHostName();
+	}
+
+	@Override
+	int getRemotePort() {
+		return channel.socket().getPort();
+	}
+
+	@Override
+	void configure(GeoWeb geoWeb) {
+		geoWeb.configureSocket(channel.socket());
+	}
+
+	@Override
+	boolean isClosed() {
+		return !channel.isOpen();
+	}
+
+	@Override
+	void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {}
+
+		if(decoder == null)
+			return;
+
+		//a closed channel is never selected again, fail data being received from the loop thread as it's the one decoding
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				batch.clear();
+				decoder.abort();
+			}
+
+		});
+	}
+
+}
@@ -0,0 +1,194 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runnable multiplexing many peer connections on a single {@link Selector}
+ *
+ * Used instead of the thread per peer model when GeoWeb is built with non blocking IO,
+ * one of the loops also accepts incoming connections and spreads them over the whole group
+ */
+class NioEventLoop implements Runnable {
+
+	private Selector selector;
+	private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private NioEventLoop[] group;
+	private static AtomicInteger nextLoop = new AtomicInteger();
+
+	NioEventLoop() throws IOException {
+		selector = Selector.open();
+	}
+
+	/**
+	 * Create a group of event loops
+	 *
+	 * @param size the number of loops, and so of threads, to use
+	 */
+	static NioEventLoop[] createGroup(int size) throws IOException {
+		NioEventLoop[] loops = new NioEventLoop[size];
+
+		for(int i = 0; i < size; i++)
+			loops[i] = new NioEventLoop();
+
+		for(NioEventLoop loop : loops)
+			loop.group = loops;
+
+		return loops;
+	}
+
+	/**
+	 * @return the next loop of the group to attach a connection to, round robin
+	 */
+	NioEventLoop next() {
+		return group[Math.floorMod(nextLoop.getAndIncrement(), group.length)];
+	}
+
+	/**
+	 * Run a task on the loop thread
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Start accepting connections from given server channel
+	 *
+	 * @param geoWeb the instance accepted peers belong to, loops can be shared by many instances
+	 */
+	void listen(ServerSocketChannel server, GeoWeb geoWeb) throws IOException {
+		server.configureBlocking(false);
+
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					server.register(selector, SelectionKey.OP_ACCEPT, geoWeb);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Wait for given channel to finish connecting, then run given task on the loop thread
+	 * The task is also run if the channel can't be registered, finishing connection then fails
+	 */
+	void connect(SocketChannel channel, Runnable onConnectable) {
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					channel.register(selector, SelectionKey.OP_CONNECT, onConnectable);
+				} catch (IOException e) {
+					onConnectable.run();
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Register a connection to this loop, must be called before writing anything to it
+	 */
+	void register(NioConnection connection) {
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+				} catch (IOException e) {
+					connection.peer.end();
+				}
+			}
+
+		});
+	}
+
+	@Override
+	public void run() {
+
+		while(!Thread.currentThread().isInterrupted()) {
+
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+
+			Runnable task;
+			while((task = tasks.poll()) != null)
+				task.run();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				try {
+
+					if(key.isAcceptable())
+						accept((ServerSocketChannel) key.channel(), (GeoWeb) key.attachment());
+					else if(key.isConnectable()) {
+						key.interestOps(0);
+						((Runnable) key.attachment()).run();
+					}else {
+						NioConnection connection = (NioConnection) key.attachment();
+
+						if(key.isReadable())
+							connection.read();
+
+						if(key.isValid() && key.isWritable())
+							connection.flush();
+					}
+
+				}catch(CancelledKeyException e) {}
+			}
+
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Accept pending connection and create a new {@link Peer} instance if no corresponding current peer found
+	 */
+	private void accept(ServerSocketChannel server, GeoWeb geoWeb) {
+
+		try {
+			SocketChannel channel = server.accept();
+			if(channel == null)
+				return;
+
+			InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+			String address = remote.getAddress().getHostAddress() + ":" + remote.getPort();
+
+			if(geoWeb.peers.containsKey(address) || geoWeb.pendingPeers.containsKey(address)) {
+				channel.close();
+				return;
+			}
+
+			new Peer(geoWeb, new NioConnection(geoWeb, channel, next()), false);
+		} catch (IOException e) {}
+
+	}
+
+}
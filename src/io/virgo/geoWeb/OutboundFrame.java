@@ -0,0 +1,264 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+import io.virgo.geoWeb.utils.BufferPool;
+
+/**
+ * A message framed for the wire, without copying it's body
+ *
+ * The header (type, length and for data messages the hash) lives in a pooled buffer
+ * and the body is wrapped as is, both are sent together with a single gathering write.
+ * Data can also be streamed from a file, straight to the socket
+ */
+class OutboundFrame {
+
+	static final BufferPool headerPool = new BufferPool(FrameDecoder.STREAM_OPEN_HEADER_LENGTH + FrameDecoder.HASH_LENGTH, 4096);
+
+	private ByteBuffer[] buffers;
+	private ByteBuffer header;
+	private SharedFrame shared;
+	private boolean droppable = false;
+	private OutboundQueue.Lane lane = OutboundQueue.Lane.REQUEST;
+	//stream producing the next chunk once this frame is taken
+	private OutboundStream stream;
+
+	private FileChannel file;
+	private long filePosition;
+	private long fileEnd;
+	private long fileSize;
+	private boolean closeFile = true;
+
+	private OutboundFrame(ByteBuffer header) {
+		this.header = header;
+		this.buffers = new ByteBuffer[] {header};
+	}
+
+	private OutboundFrame(ByteBuffer header, ByteBuffer body) {
+		this.header = header;
+		this.buffers = new ByteBuffer[] {header, body};
+	}
+
+	private OutboundFrame(ByteBuffer header, FileChannel file, long position, long size) {
+		this.header = header;
+		this.buffers = new ByteBuffer[] {header};
+		this.file = file;
+		this.filePosition = position;
+		this.fileEnd = position + size;
+		this.fileSize = size;
+	}
+
+	/**
+	 * A view over a frame shared between peers, holding one reference to it
+	 */
+	OutboundFrame(SharedFrame shared, ByteBuffer header, ByteBuffer body) {
+		this.shared = shared;
+		this.buffers = new ByteBuffer[] {header, body};
+	}
+
+	/**
+	 * Frame a message body
+	 *
+	 * @param messageType the type byte of the codec body has been encoded with
+	 */
+	static OutboundFrame message(byte messageType, byte[] body) {
+		ByteBuffer header = headerPool.acquire();
+		header.put(messageType);
+		header.putInt(body.length);
+		header.flip();
+
+		return new OutboundFrame(header, ByteBuffer.wrap(body));
+	}
+
+	/**
+	 * Frame data answering a data request
+	 */
+	static OutboundFrame data(byte[] data, int offset, int length, byte[] hash) {
+		return new OutboundFrame(dataHeader(length, hash), ByteBuffer.wrap(data, offset, length).slice()).inLane(OutboundQueue.Lane.BULK);
+	}
+
+	/**
+	 * Frame data answering a data request, streamed from a file region
+	 * The file is closed once frame has been sent or released
+	 */
+	static OutboundFrame data(FileChannel file, long position, long size, byte[] hash) {
+		return new OutboundFrame(dataHeader(size, hash), file, position, size).inLane(OutboundQueue.Lane.BULK);
+	}
+
+	/**
+	 * Frame the opening of a data stream, announcing it's size and hash
+	 */
+	static OutboundFrame streamOpen(int streamId, long size, byte[] hash) {
+		ByteBuffer header = headerPool.acquire();
+		header.put(FrameDecoder.STREAM_OPEN_MSG_TYPE);
+		header.putInt(streamId);
+		header.putLong(size);
+		header.put(hash);
+		header.flip();
+
+		return new OutboundFrame(header).inLane(OutboundQueue.Lane.BULK);
+	}
+
+	/**
+	 * Frame a chunk of a data stream
+	 */
+	static OutboundFrame streamChunk(int streamId, ByteBuffer chunk) {
+		return new OutboundFrame(streamChunkHeader(streamId, chunk.remaining()), chunk).inLane(OutboundQueue.Lane.BULK);
+	}
+
+	/**
+	 * Frame a chunk of a data stream, streamed from a file region
+	 *
+	 * @param closeFile true if file is to be closed once frame has been sent or released
+	 */
+	static OutboundFrame streamChunk(int streamId, FileChannel file, long position, int size, boolean closeFile) {
+		OutboundFrame frame = new OutboundFrame(streamChunkHeader(streamId, size), file, position, size);
+		frame.closeFile = closeFile;
+
+		return frame.inLane(OutboundQueue.Lane.BULK);
+	}
+
+	private static ByteBuffer streamChunkHeader(int streamId, int size) {
+		ByteBuffer header = headerPool.acquire();
+		header.put(FrameDecoder.STREAM_CHUNK_MSG_TYPE);
+		header.putInt(streamId);
+		header.putInt(size);
+		header.flip();
+
+		return header;
+	}
+
+	private static ByteBuffer dataHeader(long size, byte[] hash) {
+		ByteBuffer header = headerPool.acquire();
+
+		if(size > Integer.MAX_VALUE) {
+			header.put(FrameDecoder.LARGE_DATA_MSG_TYPE);
+			header.putLong(size);
+		}else {
+			header.put(FrameDecoder.DATA_MSG_TYPE);
+			header.putInt((int) size);
+		}
+
+		header.put(hash);
+		header.flip();
+
+		return header;
+	}
+
+	/**
+	 * Write as much of the frame as the channel accepts
+	 *
+	 * @return true if the whole frame has been written
+	 */
+	boolean writeTo(GatheringByteChannel channel) throws IOException {
+		channel.write(buffers);
+
+		if(file != null && !buffers[0].hasRemaining())
+			filePosition += file.transferTo(filePosition, fileEnd - filePosition, channel);
+
+		return !hasRemaining();
+	}
+
+	/**
+	 * @return the buffers to write, not including streamed file data
+	 */
+	ByteBuffer[] buffers() {
+		return buffers;
+	}
+
+	/**
+	 * @return true if frame body is streamed from a file
+	 */
+	boolean isStreamed() {
+		return file != null;
+	}
+
+	boolean hasRemaining() {
+		for(ByteBuffer buffer : buffers)
+			if(buffer.hasRemaining())
+				return true;
+
+		return file != null && filePosition < fileEnd;
+	}
+
+	/**
+	 * @return the total size of the frame in bytes
+	 */
+	long size() {
+		long size = 0;
+
+		for(ByteBuffer buffer : buffers)
+			size += buffer.limit();
+
+		size += fileSize;
+
+		return size;
+	}
+
+	/**
+	 * @return the size of the frame held in memory in bytes, not including streamed file data
+	 */
+	long memorySize() {
+		return size() - fileSize;
+	}
+
+	/**
+	 * Allow frame to be dropped when peer's outbound queue overflows, as broadcast ones are
+	 */
+	OutboundFrame droppable() {
+		droppable = true;
+		return this;
+	}
+
+	boolean isDroppable() {
+		return droppable;
+	}
+
+	/**
+	 * Queue frame in given priority lane, messages go to {@link OutboundQueue.Lane#REQUEST} and data to {@link OutboundQueue.Lane#BULK} by default
+	 */
+	OutboundFrame inLane(OutboundQueue.Lane lane) {
+		this.lane = lane;
+		return this;
+	}
+
+	OutboundQueue.Lane getLane() {
+		return lane;
+	}
+
+	void setStream(OutboundStream stream) {
+		this.stream = stream;
+	}
+
+	/**
+	 * @return the stream this frame is part of if it has more chunks to send, null otherwise
+	 */
+	OutboundStream getStream() {
+		return stream;
+	}
+
+	/**
+	 * Give the header buffer back to the pool and close file if any, frame can't be written anymore after that
+	 */
+	void release() {
+		if(header != null) {
+			headerPool.release(header);
+			header = null;
+		}
+
+		if(shared != null) {
+			shared.release();
+			shared = null;
+		}
+
+		if(file != null && closeFile) {
+			try {
+				file.close();
+			} catch (IOException e) {}
+		}
+	}
+
+}
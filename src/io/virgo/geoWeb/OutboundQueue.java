@@ -0,0 +1,473 @@
+package io.virgo.geoWeb;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Frames waiting to be sent to a peer, bounded by the bytes they hold in memory
+ *
+ * Queue stops being writable once it holds high watermark bytes or more, and becomes writable again
+ * once it drains to low watermark bytes or less. Frames streamed from files only count their header
+ *
+ * Frames that can't be dropped are still queued past the high watermark, up to a hard limit of
+ * {@link #HARD_LIMIT_FACTOR} times it, beyond which queue is overflowed and peer must be disconnected
+ *
+ * Frames are queued in lanes by priority: control frames are always taken first, then requests and bulk data
+ * share the connection in proportion to their weights, counted in bytes, so a pong or a sync response doesn't wait
+ * behind megabytes of data. Frames of a lane keep their order
+ *
+ * An {@link OutboundStream} has one frame queued at a time, it's next chunk is queued at the end of the bulk lane
+ * once a frame is taken, or once credit is granted if it ran out of it
+ */
+class OutboundQueue {
+
+	static final int HARD_LIMIT_FACTOR = 4;
+
+	private LaneQueue[] lanes = new LaneQueue[Lane.values().length];
+	private int count = 0;
+	//start tag of the last frame taken from a weighted lane
+	private double virtualTime = 0;
+	private HashMap<Integer, OutboundStream> streams = new HashMap<Integer, OutboundStream>();
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition notEmpty = lock.newCondition();
+	private Condition drained = lock.newCondition();
+
+	private long highWatermark;
+	private long lowWatermark;
+	private long hardLimit;
+	private long bytes = 0;
+	private volatile boolean writable = true;
+	private volatile boolean overflowed = false;
+	private boolean closed = false;
+
+	private Listener listener;
+
+	/**
+	 * @param listener told when queue stops or starts being writable and of dropped frames, called while holding queue's lock
+	 */
+	OutboundQueue(long highWatermark, long lowWatermark, int requestWeight, int bulkWeight, Listener listener) {
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+		this.hardLimit = highWatermark > Long.MAX_VALUE / HARD_LIMIT_FACTOR ? Long.MAX_VALUE : highWatermark * HARD_LIMIT_FACTOR;
+		this.listener = listener;
+		
+		lanes[Lane.CONTROL.ordinal()] = new LaneQueue(0);
+		lanes[Lane.REQUEST.ordinal()] = new LaneQueue(requestWeight);
+		lanes[Lane.BULK.ordinal()] = new LaneQueue(bulkWeight);
+	}
+
+	/**
+	 * Enqueue given frame whatever the queue holds below it's hard limit, used for frames the connection depends on
+	 *
+	 * @return false if queue is closed or overflowed, frame is then released
+	 */
+	boolean add(OutboundFrame frame) {
+		lock.lock();
+		try {
+			if(closed || !withinHardLimit(frame.memorySize())) {
+				frame.release();
+				return false;
+			}
+
+			enqueue(frame);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Enqueue given frame, applying policy if queue isn't writable
+	 *
+	 * @return false if frame hasn't been queued, either dropped or because peer should be disconnected
+	 * as told by policy or because queue overflowed, or because queue has been closed. Frame is then released
+	 */
+	boolean offer(OutboundFrame frame, OverflowPolicy policy) {
+		long size = frame.memorySize();
+
+		lock.lock();
+		try {
+			if(!closed && !writable) {
+				switch(policy) {
+
+				case BLOCK:
+					try {
+						while(!closed && !writable)
+							drained.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						frame.release();
+						return false;
+					}
+					break;
+
+				case DROP_OLDEST:
+					dropOldest(size);
+
+					if(!fits(size)) {
+						if(frame.isDroppable()) {
+							frame.release();
+							listener.dropped(1);
+							return false;
+						}
+
+						//frames that can't be dropped are queued anyway, peer staying unwritable, up to the hard limit
+						if(!withinHardLimit(size)) {
+							frame.release();
+							return false;
+						}
+					}
+					break;
+
+				case DISCONNECT:
+					frame.release();
+					return false;
+
+				}
+			}
+
+			if(closed) {
+				frame.release();
+				return false;
+			}
+
+			enqueue(frame);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the next frame, waiting for one if queue is empty
+	 */
+	OutboundFrame take() throws InterruptedException {
+		lock.lock();
+		try {
+			while(count == 0)
+				notEmpty.await();
+
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the next frame, or null if none is queued within given time
+	 */
+	OutboundFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+
+		lock.lock();
+		try {
+			while(count == 0) {
+				if(nanos <= 0)
+					return null;
+
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the next frame if it can be added to given batch, null otherwise or if queue is empty
+	 */
+	OutboundFrame pollFor(FrameBatch batch) {
+		lock.lock();
+		try {
+			LaneQueue lane = next();
+			if(lane == null || !batch.canAdd(lane.frames.peek()))
+				return null;
+
+			return dequeue(lane);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Grant credit to a stream, queuing it's next chunk if it was waiting for it
+	 *
+	 * @return true if a chunk has been queued
+	 */
+	boolean credit(int streamId, long credit) {
+		lock.lock();
+		try {
+			OutboundStream stream = streams.get(streamId);
+			if(stream == null)
+				return false;
+
+			stream.addCredit(credit);
+
+			if(stream.queued || !stream.canSend())
+				return false;
+
+			enqueue(nextChunk(stream));
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Release all queued frames and wake up blocked senders, frames given afterward are released right away
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+
+			for(LaneQueue lane : lanes) {
+				OutboundFrame frame;
+				while((frame = lane.frames.poll()) != null)
+					frame.release();
+			}
+
+			for(OutboundStream stream : streams.values())
+				stream.release();
+			streams.clear();
+
+			count = 0;
+			bytes = 0;
+			drained.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if a frame has been refused because queue reached it's hard limit, peer should then be disconnected
+	 */
+	boolean isOverflowed() {
+		return overflowed;
+	}
+
+	/**
+	 * @return true if queue is below it's high watermark, or drained below it's low watermark since it reached it
+	 */
+	boolean isWritable() {
+		return writable;
+	}
+
+	int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long bytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if a frame of given size can be added without exceeding high watermark, always for an empty queue
+	 */
+	private boolean fits(long size) {
+		return count == 0 || bytes + size <= highWatermark;
+	}
+
+	/**
+	 * @return true if a frame of given size can be added without exceeding hard limit, always for an empty queue,
+	 * marks queue as overflowed otherwise
+	 */
+	private boolean withinHardLimit(long size) {
+		if(count == 0 || bytes + size <= hardLimit)
+			return true;
+
+		overflowed = true;
+		return false;
+	}
+
+	/**
+	 * Drop oldest droppable frames of each lane until given size fits
+	 */
+	private void dropOldest(long size) {
+		int dropped = 0;
+
+		for(LaneQueue lane : lanes) {
+			Iterator<OutboundFrame> iterator = lane.frames.iterator();
+			while(iterator.hasNext() && !fits(size)) {
+				OutboundFrame frame = iterator.next();
+				if(!frame.isDroppable())
+					continue;
+
+				iterator.remove();
+				count--;
+				if(frame.getStream() != null)
+					forget(frame.getStream());
+				bytes -= frame.memorySize();
+				frame.release();
+				dropped++;
+			}
+		}
+
+		if(dropped > 0) {
+			listener.dropped(dropped);
+			updateWritability();
+		}
+	}
+
+	private void enqueue(OutboundFrame frame) {
+		LaneQueue lane = lanes[frame.getLane().ordinal()];
+
+		//a lane that was idle doesn't get credit for the time it didn't use
+		if(lane.frames.isEmpty())
+			lane.pass = Math.max(lane.pass, virtualTime);
+
+		lane.frames.add(frame);
+		count++;
+		bytes += frame.memorySize();
+
+		OutboundStream stream = frame.getStream();
+		if(stream != null) {
+			stream.queued = true;
+			streams.put(stream.getId(), stream);
+		}
+
+		if(writable && bytes >= highWatermark) {
+			writable = false;
+			listener.writabilityChanged(false);
+		}
+
+		notEmpty.signal();
+	}
+
+	/**
+	 * @return stream's next chunk, forgetting the stream if it is the last one
+	 */
+	private OutboundFrame nextChunk(OutboundStream stream) {
+		OutboundFrame chunk = stream.next();
+
+		if(stream.isDone())
+			streams.remove(stream.getId());
+
+		return chunk;
+	}
+
+	private void forget(OutboundStream stream) {
+		streams.remove(stream.getId());
+		stream.release();
+	}
+
+	/**
+	 * @return the lane to take next frame from, null if queue is empty
+	 */
+	private LaneQueue next() {
+		LaneQueue control = lanes[Lane.CONTROL.ordinal()];
+		if(!control.frames.isEmpty())
+			return control;
+
+		LaneQueue next = null;
+		for(int i = Lane.REQUEST.ordinal(); i < lanes.length; i++) {
+			LaneQueue lane = lanes[i];
+			if(!lane.frames.isEmpty() && (next == null || lane.pass < next.pass))
+				next = lane;
+		}
+
+		return next;
+	}
+
+	private OutboundFrame dequeue() {
+		return dequeue(next());
+	}
+
+	private OutboundFrame dequeue(LaneQueue lane) {
+		OutboundFrame frame = lane.frames.poll();
+		count--;
+		bytes -= frame.memorySize();
+
+		//each weighted lane advances by the bytes it sent over it's weight, the one behind goes next
+		if(lane.weight > 0) {
+			virtualTime = lane.pass;
+			lane.pass += frame.size() / (double) lane.weight;
+		}
+
+		//stream goes back to the end of the lane, letting others take their turn
+		OutboundStream stream = frame.getStream();
+		if(stream != null) {
+			stream.queued = false;
+
+			if(stream.canSend())
+				enqueue(nextChunk(stream));
+			else if(stream.isDone())
+				streams.remove(stream.getId());
+		}
+
+		updateWritability();
+
+		return frame;
+	}
+
+	private void updateWritability() {
+		if(!writable && bytes <= lowWatermark) {
+			writable = true;
+			drained.signalAll();
+			listener.writabilityChanged(true);
+		}
+	}
+
+	/**
+	 * Priority classes of frames
+	 */
+	enum Lane {
+
+		/**
+		 * Frames the connection depends on such as heartbeats, taken before any other
+		 */
+		CONTROL,
+
+		/**
+		 * Messages, including requests and their responses
+		 */
+		REQUEST,
+
+		/**
+		 * Data answering data requests
+		 */
+		BULK
+
+	}
+
+	private static class LaneQueue {
+
+		private ArrayDeque<OutboundFrame> frames = new ArrayDeque<OutboundFrame>();
+		//0 for a lane taken before weighted ones
+		private int weight;
+		//virtual time at which this lane's next frame would start
+		private double pass = 0;
+
+		private LaneQueue(int weight) {
+			this.weight = weight;
+		}
+
+	}
+
+	/**
+	 * Told of queue changes, must not block
+	 */
+	interface Listener {
+
+		void writabilityChanged(boolean writable);
+
+		void dropped(int frames);
+
+	}
+
+}
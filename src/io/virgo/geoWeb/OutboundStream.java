@@ -0,0 +1,127 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Data answering a data request, sent as chunks interleaved with other frames
+ *
+ * An open frame announces the stream's id, size and hash, then chunks of at most chunk size bytes follow.
+ * Receiver grants credit as it consumes chunks, the stream never sends more than it has been granted.
+ * Only one frame of a stream is queued at a time, the next one is produced by {@link OutboundQueue} once it is taken,
+ * so streams queued together take turns
+ */
+class OutboundStream {
+
+	private int id;
+	private byte[] hash;
+	private int chunkSize;
+	private long credit;
+
+	private ByteBuffer data;
+	private FileChannel file;
+	private long position;
+	private long end;
+
+	private boolean opened = false;
+	boolean queued = false;
+
+	/**
+	 * @param credit the initial window granted by receiver, in bytes
+	 */
+	OutboundStream(int id, byte[] data, int offset, int length, byte[] hash, int chunkSize, long credit) {
+		this.id = id;
+		this.data = ByteBuffer.wrap(data);
+		this.position = offset;
+		this.end = offset + length;
+		this.hash = hash;
+		this.chunkSize = chunkSize;
+		this.credit = credit;
+	}
+
+	/**
+	 * Stream a file region, file is closed once sent or released
+	 */
+	OutboundStream(int id, FileChannel file, long position, long size, byte[] hash, int chunkSize, long credit) {
+		this.id = id;
+		this.file = file;
+		this.position = position;
+		this.end = position + size;
+		this.hash = hash;
+		this.chunkSize = chunkSize;
+		this.credit = credit;
+	}
+
+	/**
+	 * @return the open frame, to queue first
+	 */
+	OutboundFrame open() {
+		opened = true;
+
+		OutboundFrame frame = OutboundFrame.streamOpen(id, end - position, hash);
+		frame.setStream(this);
+
+		return frame;
+	}
+
+	/**
+	 * @return true if a chunk can be sent now
+	 */
+	boolean canSend() {
+		return opened && credit > 0 && position < end;
+	}
+
+	/**
+	 * @return true if all chunks have been produced
+	 */
+	boolean isDone() {
+		return opened && position >= end;
+	}
+
+	/**
+	 * @return the next chunk, as large as chunk size and credit allow
+	 */
+	OutboundFrame next() {
+		int length = (int) Math.min(chunkSize, Math.min(credit, end - position));
+		boolean last = position + length >= end;
+
+		OutboundFrame frame;
+		if(file != null) {
+			frame = OutboundFrame.streamChunk(id, file, position, length, last);
+		}else {
+			ByteBuffer chunk = data.duplicate();
+			chunk.position((int) position);
+			chunk.limit((int) position + length);
+			frame = OutboundFrame.streamChunk(id, chunk.slice());
+		}
+
+		position += length;
+		credit -= length;
+
+		if(!last)
+			frame.setStream(this);
+
+		return frame;
+	}
+
+	void addCredit(long credit) {
+		this.credit += credit;
+	}
+
+	int getId() {
+		return id;
+	}
+
+	/**
+	 * Close file if chunks are left unsent
+	 */
+	void release() {
+		if(file != null && position < end) {
+			try {
+				file.close();
+			} catch (IOException e) {}
+		}
+	}
+
+}
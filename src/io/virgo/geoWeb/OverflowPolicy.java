@@ -0,0 +1,26 @@
+package io.virgo.geoWeb;
+
+/**
+ * What happens to a message sent to a peer whose outbound queue is above it's high watermark,
+ * see {@link GeoWeb.Builder#outboundQueueWatermarks(long, long)}
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Sender waits until queue drains below it's low watermark or peer disconnects
+	 */
+	BLOCK,
+
+	/**
+	 * Oldest broadcast and gossip frames queued are dropped to make room, if that isn't enough the new frame
+	 * is dropped if it is itself a broadcast one, otherwise it is queued anyway so responses and data aren't lost.
+	 * Peer is disconnected if queue would then hold more than 4 times it's high watermark
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Peer is disconnected
+	 */
+	DISCONNECT
+
+}
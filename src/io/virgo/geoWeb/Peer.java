@@ -1,23 +1,33 @@
 package io.virgo.geoWeb;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
-import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.nio.BufferUnderflowException;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.UUID;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import io.virgo.geoWeb.codec.JsonCodec;
+import io.virgo.geoWeb.codec.MessageCodec;
+import io.virgo.geoWeb.data.DataSink;
 import io.virgo.geoWeb.events.PeerConnectionEvent;
 import io.virgo.geoWeb.events.PeerDisconnectionEvent;
+import io.virgo.geoWeb.events.PeerWritabilityChangedEvent;
+import io.virgo.geoWeb.metrics.Counter;
 import io.virgo.geoWeb.utils.AddressUtils;
-import io.virgo.geoWeb.utils.Miscellaneous;
+import io.virgo.geoWeb.utils.HashedWheelTimer;
 import io.virgo.virgoCryptoLib.Converter;
 import io.virgo.virgoCryptoLib.Sha256Hash;
 
@@ -26,151 +36,234 @@ import io.virgo.virgoCryptoLib.Sha256Hash;
  */
 public class Peer implements Runnable{
 
-	private Socket socket;
+	//most hashes sent in a single batch request
+	static final int MAX_DATA_BATCH = 256;
+	//cancelled requests remembered so data already on it's way is discarded instead of ending connection
+	static final int MAX_CANCELLED_DATA = 1024;
+	
+	private static final DataSink DISCARD = new DataSink() {
+
+		@Override
+		public void open(long size) {}
+
+		@Override
+		public void write(ByteBuffer data) {
+			data.position(data.limit());
+		}
+
+		@Override
+		public void close(boolean success) {}
+		
+	};
+	
+	private GeoWeb geoWeb;
+	private Connection connection;
+	private StreamConnection stream;
+	private NioConnection nio;
+	private boolean outbound;
 	protected boolean sentHandshake = false;
 	protected Boolean handshaked = false;
 	protected boolean canBroadcast = true;
-	private boolean listen = true;
-	protected boolean respondedToHeartbeat;
+	private volatile boolean listen = true;
+	private Thread writerThread;
+	protected volatile boolean respondedToHeartbeat;
+	private volatile HashedWheelTimer.Timeout heartbeat;
+	private volatile HashedWheelTimer.Timeout heartbeatDeadline;
+	
+	//smoothed round trip time and it's mean deviation in milliseconds, as in RFC 6298
+	private double rtt = -1;
+	private double rttJitter = 0;
+	
+	private Counter bytesReceived = new Counter();
+	private Counter bytesSent = new Counter();
+	private Counter framesReceived = new Counter();
+	private Counter framesSent = new Counter();
 	private String hostname;
 	private int port;
 	protected String id = "";
+	volatile MessageCodec codec = JsonCodec.INSTANCE;
+	//window remote grants to each data stream, 0 if it only takes data in a single frame
+	volatile int streamWindow = 0;
+	//true if remote takes many data requests in a single message
+	volatile boolean acceptsDataBatch = false;
 	
-	private LinkedBlockingQueue<byte[]> messageQueue = new LinkedBlockingQueue<byte[]>();
+	private OutboundQueue messageQueue;
+	private AtomicInteger nextStreamId = new AtomicInteger();
 	
-	private static byte[] JSON_MSG_IDENTIFIER = new byte[] {(byte) 0x05};
-	private static byte[] DATA_MSG_IDENTIFIER = new byte[] {(byte) 0x02};
 	
-	protected HashMap<String, JSONObject> reqResponses = new HashMap<String, JSONObject>();
-	HashMap<Sha256Hash, DataRequest> requestedData = new HashMap<Sha256Hash, DataRequest>();
+	SyncRequestTable syncRequests;
+	ConcurrentHashMap<Sha256Hash, DataRequest> requestedData = new ConcurrentHashMap<Sha256Hash, DataRequest>();
 	
-	Peer(Socket socket, boolean initHandshake){
-		this.socket = socket;
-		this.hostname = socket.getInetAddress().getHostName();
-		this.port = socket.getPort();
+	//batched requests waiting for room in the pipeline, and the number sent but not answered yet
+	private ArrayDeque<DataRequest> pendingDataRequests = new ArrayDeque<DataRequest>();
+	private int pipelinedDataRequests = 0;
+	private LinkedHashSet<Sha256Hash> cancelledData = new LinkedHashSet<Sha256Hash>();
+	
+	/**
+	 * Create a peer over a blocking TCP socket, backed by a channel
+	 */
+	Peer(GeoWeb geoWeb, Socket socket, boolean initHandshake){
+		this(geoWeb, new SocketConnection(socket), initHandshake);
+	}
+	
+	/**
+	 * Create a peer over given connection
+	 * Stream connections are read by running the peer in it's own thread,
+	 * non blocking ones are read and written by their event loop
+	 */
+	Peer(GeoWeb geoWeb, Connection connection, boolean initHandshake){
+		this.geoWeb = geoWeb;
+		this.syncRequests = new SyncRequestTable(geoWeb.getMaxPendingSyncRequests(), geoWeb.getTimer(),
+				geoWeb.getThreads().getMessageThreadPool(), geoWeb.metrics);
+		this.messageQueue = new OutboundQueue(geoWeb.getOutboundQueueHighWatermark(), geoWeb.getOutboundQueueLowWatermark(),
+				geoWeb.getRequestLaneWeight(), geoWeb.getBulkLaneWeight(), new OutboundQueue.Listener() {
+
+			@Override
+			public void writabilityChanged(boolean writable) {
+				geoWeb.getEventListener().notify(new PeerWritabilityChangedEvent(Peer.this, writable));
+			}
+
+			@Override
+			public void dropped(int frames) {
+				geoWeb.metrics.framesDropped.add(frames);
+			}
+			
+		});
+		this.connection = connection;
+		this.hostname = geoWeb.reverseDnsLookupEnabled() ? connection.getRemoteHostname() : connection.getRemoteAddress();
+		this.port = connection.getRemotePort();
+		this.outbound = initHandshake;
 		
-		try {
-			socket.setReceiveBufferSize(2048);
-			socket.setSendBufferSize(2048);
-		} catch (SocketException e) {}
+		connection.configure(geoWeb);
+		
+		if(connection instanceof NioConnection) {
+			nio = (NioConnection) connection;
+			nio.attach(this);
+		}else {
+			stream = (StreamConnection) connection;
+		}
 		
 		if(initHandshake) {
 			sendHandshake();
 		}
 		
-		GeoWeb.getInstance().pendingPeers.put(getEffectiveAddress(), this);
+		geoWeb.pendingPeers.put(getEffectiveAddress(), this);
 		
-		GeoWeb.getInstance().getEventListener().notify(new PeerConnectionEvent(this));
+		geoWeb.getEventListener().notify(new PeerConnectionEvent(this));
 	}
 
 	/**
-	 * Listen to input stream and try to parse messages from it
-	 * First Byte of a message is it's type, either JSON or Data request
-	 * Four next bytes are the body length, or how much bytes we need to read next to reach end of message
-	 * 
+	 * Listen to input stream and feed it to a {@link FrameDecoder} parsing messages from it
 	 */
 	@Override
 	public void run() {
 		
+		//non blocking peers are read by their event loop
+		if(nio != null)
+			return;
+		
+		FrameDecoder decoder = new FrameDecoder(this);
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		
 		try {
-			InputStream in = socket.getInputStream();
 			
 			while(listen) {
 				
-				byte[] msgType = in.readNBytes(1);
+				int readBytes = stream.read(buffer);
 				
-				byte[] msgLengthBytes = in.readNBytes(4);
-				
-				int msgLength = ByteBuffer.wrap(msgLengthBytes).getInt();
-				
-				//Message is JSON, read then create messageTask and dispatch it to threadPool
-				if(Arrays.equals(msgType, JSON_MSG_IDENTIFIER)) {
-					
-					byte[] data = new byte[msgLength];
-					
-					int received = 0;
-					
-					int readedBytes = 0;
-					
-					while(readedBytes >= 0) {
-						readedBytes = in.read(data, received, msgLength-received);
-						
-						received += readedBytes;
-						
-						if(received >= msgLength)
-							break;
-					}
-					
-					String dataString = new String(data);
-					
-					GeoWeb.getInstance().dispatchMessageTask(new MessageTask(dataString, this));
+				if(readBytes < 0)
+					break;
 				
-					/* Message is a data request, next 32 bytes are the data hash
-					 * if the hash doesn't correspond to any requested data throw an Exception and terminate connection
-					 * Otherwise read the rest of the message and populate corresponding DataRequest
-					 */
-				}else if(msgType.equals(DATA_MSG_IDENTIFIER)) {
-					
-					Sha256Hash dataHash = new Sha256Hash(in.readNBytes(32));
-					
-					if(!requestedData.containsKey(dataHash))
-						throw new IOException("remote sent non requested data");
-					
-					DataRequest recipient = requestedData.get(dataHash);
-					
-					try {
-						recipient.prepare(msgLength);
-						
-						int readedBytes = 0;
-						
-						while(readedBytes >= 0) {
-							readedBytes = in.read(recipient.data, recipient.received, msgLength-recipient.received);
-							
-							recipient.received += readedBytes;
-							
-							if(recipient.received >= msgLength)
-								break;
-						}
-						
-						recipient.finish();
-					}catch(IOException e) {
-						e.printStackTrace();
-						recipient.finish();
-					}
-					
-
-				}
+				bytesReceived(readBytes);
 				
+				buffer.flip();
+				decoder.decode(buffer);
+				buffer.compact();
 			}
 			
-		} catch (IOException | BufferUnderflowException e) {}
+		} catch (IOException e) {}
+		
+		decoder.abort();
 		
 		end();
 	}
 	
 	protected void startOutputWriter() {
 		
-		new Thread(new Runnable() {
+		if(nio != null) {
+			nio.startWriting();
+			return;
+		}
+		
+		long maxBatchBytes = geoWeb.getWriteBatchMaxBytes();
+		long lingerNanos = geoWeb.getWriteLingerMicros() * 1000;
+		
+		writerThread = geoWeb.newConnectionThread(new Runnable() {
 
+			/**
+			 * Take all pending frames, waiting up to linger time for more if batch isn't full,
+			 * then send them with a single write
+			 */
 			@Override
 			public void run() {
 				
+				FrameBatch batch = new FrameBatch();
+				OutboundFrame next = null;
+				
 				try {
-					OutputStream out = socket.getOutputStream();
+					GatheringByteChannel out = stream.getOutput();
 					
-					while(listen)
-						out.write(messageQueue.take());
+					while(listen) {
+						batch.add(next != null ? next : messageQueue.take());
+						next = null;
+						
+						long lingerEnd = System.nanoTime() + lingerNanos;
+						
+						while(batch.size() < maxBatchBytes && !batch.isStreamed()) {
+							next = messageQueue.poll(0, TimeUnit.NANOSECONDS);
+							
+							if(next == null && lingerNanos > 0) {
+								long wait = lingerEnd - System.nanoTime();
+								if(wait > 0)
+									next = messageQueue.poll(wait, TimeUnit.NANOSECONDS);
+							}
+							
+							if(next == null || !batch.canAdd(next))
+								break;
+							
+							batch.add(next);
+							next = null;
+						}
+						
+						int frames = batch.count();
+						long bytes = batch.size();
+						
+						while(!batch.writeTo(out));
+						
+						framesSent(frames, bytes);
+					}
 					
 				} catch (IOException | InterruptedException e) {}
 				
+				batch.clear();
+				if(next != null)
+					next.release();
 			}
 			
-		}).start();
+		});
+		writerThread.start();
 		
 	}
-
+	
+	/**
+	 * @return the next queued message frame if it can be added to given batch, or null
+	 */
+	OutboundFrame pollMessage(FrameBatch batch) {
+		return messageQueue.pollFor(batch);
+	}
+	
 	public String getEffectiveAddress() {
-		return socket.getInetAddress().getHostAddress() + ":" + getPort();
+		return connection.getRemoteAddress() + ":" + getPort();
 	}
 	
 	public boolean handshakeDone() {
@@ -185,30 +278,117 @@ public class Peer implements Runnable{
 	 * 
 	 * @param message the message to send, in form of a JSON object
 	 */
-	public synchronized void sendMessage(JSONObject message) {
+	public void sendMessage(JSONObject message) {
+		
+		MessageCodec codec = this.codec;
+		
+		geoWeb.metrics.messagesSent.get(message.optString("command")).increment();
+		
+		sendFrame(OutboundFrame.message(codec.getMessageType(), codec.encode(message)));
+	}
+	
+	/**
+	 * Send a message the connection depends on, such as heartbeats, queued whatever the outbound queue holds
+	 * and sent before any other queued frame
+	 */
+	void sendControlMessage(JSONObject message) {
 		
-		byte[] msgBytes = message.toString().getBytes();
+		MessageCodec codec = this.codec;
 		
-		messageQueue.add(Miscellaneous.concatBytesArrays(
-				JSON_MSG_IDENTIFIER,
-				Miscellaneous.intToBytes(msgBytes.length),
-				msgBytes
-				));
+		geoWeb.metrics.messagesSent.get(message.optString("command")).increment();
 		
+		OutboundFrame frame = OutboundFrame.message(codec.getMessageType(), codec.encode(message)).inLane(OutboundQueue.Lane.CONTROL);
+		
+		if(messageQueue.add(frame)) {
+			if(nio != null)
+				nio.requestFlush();
+		}else if(messageQueue.isOverflowed()) {
+			overflowed();
+		}
+	}
+	
+	/**
+	 * Enqueue an already framed message, applying {@link GeoWeb#getOverflowPolicy()} if outbound queue is full
+	 * 
+	 * @return true if frame has been queued
+	 */
+	boolean sendFrame(OutboundFrame frame) {
+		OverflowPolicy policy = geoWeb.getOverflowPolicy();
+		
+		if(!messageQueue.offer(frame, policy)) {
+			if(policy == OverflowPolicy.DISCONNECT || messageQueue.isOverflowed())
+				overflowed();
+			
+			return false;
+		}
+		
+		if(nio != null)
+			nio.requestFlush();
+		
+		return true;
+	}
+	
+	/**
+	 * Outbound queue is full and peer can't be given more, disconnect from it
+	 */
+	private void overflowed() {
+		if(!isClosed())
+			geoWeb.metrics.overflowDisconnections.increment();
+		
+		end();
 	}
 	
 	/**
 	 * Output data to peer to respond to data request, please use DataRequestedEvent.uploadData(byte[] data) instead
+	 * Data is sent in chunks interleaved with other messages if peer supports it
 	 */
 	public void sendData(byte[] data, byte[] hash) {
+		sendData(data, 0, data.length, hash);
+	}
+	
+	/**
+	 * Output part of an array to peer to respond to a data request, hash being the one of that part
+	 */
+	public void sendData(byte[] data, int offset, int length, byte[] hash) {
+		int window = streamWindow;
 		
-		messageQueue.add(Miscellaneous.concatBytesArrays(
-				DATA_MSG_IDENTIFIER,
-				Miscellaneous.intToBytes(data.length),
-				hash,
-				data
-				));
+		if(window > 0)
+			sendFrame(new OutboundStream(nextStreamId.getAndIncrement(), data, offset, length, hash, geoWeb.getDataChunkSize(), window).open());
+		else
+			sendFrame(OutboundFrame.data(data, offset, length, hash));
+	}
+	
+	/**
+	 * Stream a file region to peer to respond to data request, please use DataRequestedEvent.uploadData(FileChannel data) instead
+	 * Data is sent in chunks interleaved with other messages if peer supports it, the file is closed once sent
+	 */
+	public void sendData(FileChannel data, long position, long size, byte[] hash) {
+		int window = streamWindow;
 		
+		if(window > 0)
+			sendFrame(new OutboundStream(nextStreamId.getAndIncrement(), data, position, size, hash, geoWeb.getDataChunkSize(), window).open());
+		else
+			sendFrame(OutboundFrame.data(data, position, size, hash));
+	}
+	
+	/**
+	 * Let peer send more bytes of a data stream it is sending us
+	 */
+	void grantStreamCredit(int streamId, long credit) {
+		JSONObject creditMessage = new JSONObject();
+		creditMessage.put("command", "streamCredit");
+		creditMessage.put("stream", streamId);
+		creditMessage.put("credit", credit);
+		
+		sendControlMessage(creditMessage);
+	}
+	
+	/**
+	 * Peer let us send more bytes of a data stream
+	 */
+	void streamCreditReceived(int streamId, long credit) {
+		if(messageQueue.credit(streamId, credit) && nio != null)
+			nio.requestFlush();
 	}
 	
 	/**
@@ -217,24 +397,38 @@ public class Peer implements Runnable{
 	protected void sendHandshake() {
 		JSONObject netIdMessage = new JSONObject();
 		netIdMessage.put("command", "handshake");
-		netIdMessage.put("netId", GeoWeb.getInstance().getNetId());
-		netIdMessage.put("id", GeoWeb.getInstance().getId());
+		netIdMessage.put("netId", geoWeb.getNetId());
+		netIdMessage.put("id", geoWeb.getId());
 		
-		if(!GeoWeb.getInstance().getHostname().equals(""))
-			netIdMessage.put("hostname", GeoWeb.getInstance().getHostname());
+		if(!geoWeb.getHostname().equals(""))
+			netIdMessage.put("hostname", geoWeb.getHostname());
 		
-		netIdMessage.put("port", GeoWeb.getInstance().getPort());
+		netIdMessage.put("port", geoWeb.getPort());
 		
-		try {
-			OutputStream out = socket.getOutputStream();
-			byte[] msgBytes = netIdMessage.toString().getBytes();
-			out.write(Miscellaneous.concatBytesArrays(
-				JSON_MSG_IDENTIFIER,
-				Miscellaneous.intToBytes(msgBytes.length),
-				msgBytes
-				));
-		} catch (IOException e) {
-			e.printStackTrace();
+		if(!geoWeb.getCodecNames().isEmpty())
+			netIdMessage.put("codecs", new JSONArray(geoWeb.getCodecNames()));
+		
+		if(geoWeb.getDataStreamWindow() > 0)
+			netIdMessage.put("streamWindow", geoWeb.getDataStreamWindow());
+		
+		netIdMessage.put("dataBatch", true);
+		
+		geoWeb.metrics.messagesSent.get("handshake").increment();
+		
+		OutboundFrame frame = OutboundFrame.message(JsonCodec.MESSAGE_TYPE, JsonCodec.INSTANCE.encode(netIdMessage));
+		
+		if(nio != null) {
+			nio.writeDirect(frame);
+		}else {
+			try {
+				GatheringByteChannel out = stream.getOutput();
+				long size = frame.size();
+				while(!frame.writeTo(out));
+				framesSent(1, size);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			frame.release();
 		}
 		
 		sentHandshake = true;
@@ -248,31 +442,36 @@ public class Peer implements Runnable{
 	 * @return {@link SyncMessageResponse} object, containing the message that the peer returned and a {@link SyncMessageResponseCode} object
 	 */
 	public SyncMessageResponse sendSyncMessage(JSONObject message) {
-		String messageUid = UUID.randomUUID().toString();
-		
+		return sendAsyncRequest(message).join();
+	}
+	
+	/**
+	 * Send a message to the peer without waiting for it's response
+	 * The returned future is completed as soon as the response arrives, or with a {@link ResponseCode#REQUEST_TIMEOUT}
+	 * response after {@link GeoWeb#getSyncMessageTimeout()} milliseconds
+	 * 
+	 * Dependent actions not using an async variant run on a thread of the message thread pool, either the one handling
+	 * the response or the one completing a timeout or a disconnection, so they shouldn't block for long
+	 * 
+	 * @param message the message to send, in form of a JSON object
+	 * @return a future completed with the {@link SyncMessageResponse}
+	 */
+	public CompletableFuture<SyncMessageResponse> sendAsyncRequest(JSONObject message) {
 		if(message.has("reqUid"))
 			throw new IllegalArgumentException("the given message is using the reserved parameter reqUid. Message: "+message.toString());
 		
-		message.put("reqUid", messageUid);
-		sendMessage(message);
+		String messageUid = UUID.randomUUID().toString();
 		
-		long timeoutTime = System.currentTimeMillis() + GeoWeb.getInstance().getSyncMessageTimeout();
-		while(!reqResponses.containsKey(messageUid)) {
-			if(System.currentTimeMillis() >= timeoutTime)
-				return new SyncMessageResponse(ResponseCode.REQUEST_TIMEOUT);
-			try {
-				Thread.sleep(10);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
+		CompletableFuture<SyncMessageResponse> future = syncRequests.register(messageUid, geoWeb.getSyncMessageTimeout());
+		
+		//table is full, don't send a message no one will wait for
+		if(future.isDone())
+			return future;
 		
-		JSONObject responseJSON = reqResponses.get(messageUid);
-		if(responseJSON.has("reqRespCode"))
-			return new SyncMessageResponse(ResponseCode.fromCode(responseJSON.getInt("reqRespCode")), responseJSON);
+		message.put("reqUid", messageUid);
+		sendMessage(message);
 		
-		return new SyncMessageResponse(ResponseCode.UNKNOWN_CODE, responseJSON);
+		return future;
 	}
 	
 	/**
@@ -312,10 +511,281 @@ public class Peer implements Runnable{
 		
 		sendMessage(reqMessage);
 		
+		//peer disconnected meanwhile, it won't answer
+		if(isClosed())
+			failDataRequests();
+	}
+	
+	/**
+	 * Request many data at once, peer answers each as soon as it has it, in any order
+	 * 
+	 * Requests are sent in batches, keeping at most {@link GeoWeb#getDataRequestPipelineDepth()} unanswered,
+	 * others being sent as data arrive. Peers not supporting batches are sent a request for each data, all at once
+	 * Requests not answered within {@link GeoWeb#getDataRequestTimeout()} or when peer disconnects fail with
+	 * {@link ResponseCode#ERROR}
+	 * 
+	 * @param dataReqs the data you want
+	 */
+	public void requestData(Collection<DataRequest> dataReqs) {
+		if(!acceptsDataBatch) {
+			for(DataRequest dataReq : dataReqs)
+				requestData(dataReq);
+			
+			return;
+		}
+		
+		synchronized(pendingDataRequests) {
+			pendingDataRequests.addAll(dataReqs);
+		}
+		
+		sendDataRequests();
+		
+		if(isClosed())
+			failDataRequests();
+	}
+	
+	/**
+	 * Send pending batched requests while the pipeline has room
+	 */
+	private void sendDataRequests() {
+		while(true) {
+			JSONArray hashes = new JSONArray();
+			ArrayList<DataRequest> replacedRequests = new ArrayList<DataRequest>();
+			
+			synchronized(pendingDataRequests) {
+				int room = Math.min(MAX_DATA_BATCH, geoWeb.getDataRequestPipelineDepth() - pipelinedDataRequests);
+				
+				while(hashes.length() < room && !pendingDataRequests.isEmpty()) {
+					DataRequest dataReq = pendingDataRequests.poll();
+					
+					dataReq.pipelined = true;
+					pipelinedDataRequests++;
+					scheduleTimeout(dataReq);
+					
+					//a request for the same data is replaced and will never be answered, it's answer goes to the new one
+					DataRequest replaced = requestedData.put(dataReq.getHash(), dataReq);
+					if(replaced != null) {
+						discardData(dataReq.getHash());
+						
+						if(replaced.pipelined) {
+							replaced.pipelined = false;
+							pipelinedDataRequests--;
+						}
+						
+						if(replaced.pipelineTimeout != null)
+							replaced.pipelineTimeout.cancel();
+						
+						replacedRequests.add(replaced);
+					}
+					
+					hashes.put(Converter.bytesToHex(dataReq.getHash().toBytes()));
+				}
+			}
+			
+			for(DataRequest replaced : replacedRequests)
+				replaced.failed();
+			
+			if(hashes.length() == 0)
+				return;
+			
+			JSONObject reqMessage = new JSONObject();
+			reqMessage.put("command", "requestDataBatch");
+			reqMessage.put("hashes", hashes);
+			
+			sendMessage(reqMessage);
+		}
+	}
+	
+	/**
+	 * Called once a requested data has been received or peer told it doesn't have it,
+	 * send more batched requests if it was one of them, once half the pipeline is free so batches aren't tiny
+	 */
+	void dataRequestDone(DataRequest dataReq) {
+		synchronized(pendingDataRequests) {
+			if(!dataReq.pipelined)
+				return;
+			
+			dataReq.pipelined = false;
+			pipelinedDataRequests--;
+			
+			if(dataReq.pipelineTimeout != null)
+				dataReq.pipelineTimeout.cancel();
+			
+			if(pendingDataRequests.isEmpty() || pipelinedDataRequests > geoWeb.getDataRequestPipelineDepth() / 2)
+				return;
+		}
+		
+		//called while reading, don't wait for room in outbound queue there
+		geoWeb.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				sendDataRequests();
+			}
+			
+		});
+	}
+	
+	/**
+	 * Fail given batched request if peer didn't start answering it in time, called holding pipeline's lock
+	 */
+	private void scheduleTimeout(final DataRequest dataReq) {
+		dataReq.pipelineTimeout = geoWeb.getTimer().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				geoWeb.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						//data already arriving is given time to complete
+						if(!withdrawDataRequest(dataReq))
+							return;
+						
+						dataReq.failed();
+						dataRequestDone(dataReq);
+					}
+					
+				});
+			}
+			
+		}, geoWeb.getDataRequestTimeout(), TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Fail requests peer will never answer as it's disconnected, releasing their place in the pipeline
+	 */
+	private void failDataRequests() {
+		ArrayList<DataRequest> failed = new ArrayList<DataRequest>();
+		
+		synchronized(pendingDataRequests) {
+			failed.addAll(pendingDataRequests);
+			pendingDataRequests.clear();
+		}
+		
+		for(DataRequest dataReq : requestedData.values())
+			if(requestedData.remove(dataReq.getHash(), dataReq))
+				failed.add(dataReq);
+		
+		for(DataRequest dataReq : failed) {
+			dataRequestDone(dataReq);
+			dataReq.failed();
+		}
+	}
+	
+	/**
+	 * Peer doesn't have given data
+	 */
+	void dataNotFound(Sha256Hash hash) {
+		DataRequest dataReq = requestedData.remove(hash);
+		if(dataReq == null)
+			return;
+		
+		dataReq.notFound();
+		dataRequestDone(dataReq);
+	}
+	
+	/**
+	 * Stop waiting for a request, data peer may still send for it is discarded
+	 */
+	void cancelDataRequest(DataRequest dataReq) {
+		if(withdrawDataRequest(dataReq))
+			dataRequestDone(dataReq);
+	}
+	
+	/**
+	 * Remove a request, remembering it so data peer may still send for it is discarded
+	 * 
+	 * @return true if request was still waiting for data
+	 */
+	private boolean withdrawDataRequest(DataRequest dataReq) {
+		//remembered before removing the request, so data arriving meanwhile is never taken as non requested
+		discardData(dataReq.getHash());
+		
+		return requestedData.remove(dataReq.getHash(), dataReq);
+	}
+	
+	/**
+	 * Discard the next data received with given hash that no request is waiting for
+	 */
+	private void discardData(Sha256Hash hash) {
+		synchronized(cancelledData) {
+			cancelledData.add(hash);
+			
+			if(cancelledData.size() > MAX_CANCELLED_DATA) {
+				Iterator<Sha256Hash> iterator = cancelledData.iterator();
+				iterator.next();
+				iterator.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Take the request waiting for given data as it arrives
+	 * 
+	 * @return the request, one discarding data if it has been cancelled, null if it was never requested
+	 */
+	DataRequest takeDataRequest(Sha256Hash hash) {
+		DataRequest dataReq = requestedData.remove(hash);
+		if(dataReq != null)
+			return dataReq;
+		
+		synchronized(cancelledData) {
+			if(cancelledData.remove(hash))
+				return new DataRequest(hash, DISCARD);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Tell peer given data aren't available, so it can ask others right away
+	 * Please use notFound() of data request events when answering them
+	 */
+	public void sendDataNotFound(Collection<Sha256Hash> hashes) {
+		if(hashes.isEmpty())
+			return;
+		
+		JSONArray hashesArray = new JSONArray();
+		for(Sha256Hash hash : hashes)
+			hashesArray.put(Converter.bytesToHex(hash.toBytes()));
+		
+		JSONObject message = new JSONObject();
+		message.put("command", "dataNotFound");
+		message.put("hashes", hashesArray);
+		
+		sendMessage(message);
+	}
+	
+	/**
+	 * Request a range of a data, peer answers with the bytes of that range only
+	 * 
+	 * @param dataReq the request receiving the range, it's hash being the hash of the range's bytes
+	 * @param dataHash the hash of the whole data
+	 * @param offset the position of the range in the data
+	 * @param length the size of the range, in bytes
+	 */
+	public void requestData(DataRequest dataReq, Sha256Hash dataHash, long offset, long length) {
+		if(offset < 0 || length < 0)
+			throw new IllegalArgumentException("invalid range");
+		
+		JSONObject reqMessage = new JSONObject();
+		reqMessage.put("command", "requestData");
+		reqMessage.put("hash", Converter.bytesToHex(dataHash.toBytes()));
+		reqMessage.put("offset", offset);
+		reqMessage.put("length", length);
+		reqMessage.put("rangeHash", Converter.bytesToHex(dataReq.getHash().toBytes()));
+		
+		requestedData.put(dataReq.getHash(), dataReq);
+		
+		sendMessage(reqMessage);
+		
+		if(isClosed())
+			failDataRequests();
 	}
 	
 	public boolean isClosed() {
-		return socket.isClosed();
+		return connection.isClosed();
 	}
 	
 	public String getAddress() {
@@ -344,21 +814,209 @@ public class Peer implements Runnable{
 		return id;
 	}
 	
+	/**
+	 * @return true if we initiated the connection to this peer
+	 */
+	public boolean isOutbound() {
+		return outbound;
+	}
+	
+	/**
+	 * @return the GeoWeb instance this peer is connected to
+	 */
+	public GeoWeb getGeoWeb() {
+		return geoWeb;
+	}
+	
+	/**
+	 * Ping peer right away then every {@link GeoWeb#getKeepAlivePeriod()} milliseconds from the shared timer,
+	 * disconnect from it if it doesn't respond within {@link GeoWeb#getKeepAliveTimeout()} milliseconds
+	 * 
+	 * Pings carry our send time, echoed back in pongs to measure round trip time
+	 */
+	void startHeartbeat() {
+		if(heartbeat != null)
+			return;
+		
+		long period = geoWeb.getKeepAlivePeriod();
+		
+		heartbeat = geoWeb.getTimer().scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				respondedToHeartbeat = false;
+				
+				JSONObject pingMessage = new JSONObject();
+				pingMessage.put("command", "ping");
+				pingMessage.put("time", System.nanoTime());
+				sendControlMessage(pingMessage);
+				
+				heartbeatDeadline = geoWeb.getTimer().schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						if(!respondedToHeartbeat)
+							end();
+					}
+					
+				}, geoWeb.getKeepAliveTimeout(), TimeUnit.MILLISECONDS);
+			}
+			
+		}, 0, period, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Called when peer answered our ping
+	 * @param pingTime the send time of the ping echoed by peer, or -1 if it didn't echo it
+	 */
+	void heartbeatReceived(long pingTime) {
+		long now = System.nanoTime();
+		
+		respondedToHeartbeat = true;
+		
+		HashedWheelTimer.Timeout deadline = heartbeatDeadline;
+		if(deadline != null)
+			deadline.cancel();
+		
+		if(pingTime >= 0 && pingTime <= now) {
+			double rtt = updateRtt((now - pingTime) / 1000000d);
+			
+			geoWeb.getPeersCountWatchDog().updatePeerRtt(getAddress(), rtt);
+		}
+	}
+	
+	/**
+	 * @return the new smoothed round trip time
+	 */
+	private synchronized double updateRtt(double sample) {
+		if(rtt < 0) {
+			rtt = sample;
+			rttJitter = sample / 2;
+		}else {
+			rttJitter = 0.75 * rttJitter + 0.25 * Math.abs(rtt - sample);
+			rtt = 0.875 * rtt + 0.125 * sample;
+		}
+		
+		return rtt;
+	}
+	
+	/**
+	 * @return the smoothed round trip time to peer in milliseconds, -1 if not measured yet
+	 */
+	public synchronized double getRtt() {
+		return rtt;
+	}
+	
+	/**
+	 * @return the mean deviation of round trip time to peer in milliseconds
+	 */
+	public synchronized double getRttJitter() {
+		return rttJitter;
+	}
+	
+	void bytesReceived(int bytes) {
+		bytesReceived.add(bytes);
+		geoWeb.metrics.bytesReceived.add(bytes);
+	}
+	
+	void frameReceived() {
+		framesReceived.increment();
+		geoWeb.metrics.framesReceived.increment();
+	}
+	
+	void framesSent(int frames, long bytes) {
+		framesSent.add(frames);
+		bytesSent.add(bytes);
+		geoWeb.metrics.framesSent.add(frames);
+		geoWeb.metrics.bytesSent.add(bytes);
+	}
+	
+	/**
+	 * @return the number of bytes received from peer
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+	
+	/**
+	 * @return the number of bytes sent to peer
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+	
+	/**
+	 * @return the number of messages and data frames received from peer
+	 */
+	public long getFramesReceived() {
+		return framesReceived.get();
+	}
+	
+	/**
+	 * @return the number of messages and data frames sent to peer
+	 */
+	public long getFramesSent() {
+		return framesSent.get();
+	}
+	
+	/**
+	 * @return the number of frames waiting to be sent to peer
+	 */
+	public int getQueuedMessages() {
+		return messageQueue.size();
+	}
+	
+	/**
+	 * @return the bytes held in memory by frames waiting to be sent to peer
+	 */
+	public long getQueuedBytes() {
+		return messageQueue.bytes();
+	}
+	
+	/**
+	 * Check this before producing more messages for this peer. A peer stops being writable once it's outbound queue
+	 * reaches {@link GeoWeb#getOutboundQueueHighWatermark()} bytes, and is writable again once it drained to
+	 * {@link GeoWeb#getOutboundQueueLowWatermark()} bytes, a {@link PeerWritabilityChangedEvent} is notified each time
+	 * 
+	 * @return true if messages can be sent to peer without applying {@link GeoWeb#getOverflowPolicy()}
+	 */
+	public boolean isWritable() {
+		return messageQueue.isWritable() && !isClosed();
+	}
+	
 	/**
 	 * End connection to peer
 	 */
 	public void end() {
 		listen = false;
 		
-		try {
-			socket.close();
-		} catch (IOException e) {}
+		//wake up writer waiting for frames
+		Thread writerThread = this.writerThread;
+		if(writerThread != null)
+			writerThread.interrupt();
+		
+		HashedWheelTimer.Timeout heartbeat = this.heartbeat;
+		if(heartbeat != null)
+			heartbeat.cancel();
+		
+		HashedWheelTimer.Timeout deadline = heartbeatDeadline;
+		if(deadline != null)
+			deadline.cancel();
+		
+		connection.close();
+		
+		//don't remove another peer connected to the same address or ID
+		geoWeb.peers.remove(getEffectiveAddress(), this);
+		geoWeb.peersById.remove(getId(), this);
+		geoWeb.pendingPeers.remove(getEffectiveAddress(), this);
+		
+		syncRequests.failAll(ResponseCode.ERROR);
+		failDataRequests();
 		
-		GeoWeb.getInstance().peers.remove(getEffectiveAddress());
-		GeoWeb.getInstance().peersById.remove(getId());
-		GeoWeb.getInstance().pendingPeers.remove(getEffectiveAddress());
+		//frames that will never be sent, senders waiting for room are released
+		messageQueue.close();
 		
-		GeoWeb.getInstance().getEventListener().notify(new PeerDisconnectionEvent(this));
+		geoWeb.getEventListener().notify(new PeerDisconnectionEvent(this));
 	}
 	
 }
@@ -1,194 +1,438 @@
 package io.virgo.geoWeb;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import org.json.JSONArray;
-import org.json.JSONException;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
 import org.json.JSONObject;
 
 import io.virgo.geoWeb.utils.AddressUtils;
-import io.virgo.geoWeb.utils.Miscellaneous;
+import io.virgo.geoWeb.utils.HashedWheelTimer;
 
 /**
- * Runnable class trying to contact new peers if target peer count hasn't been reached
+ * Class trying to contact new peers if target peer count hasn't been reached
+ * 
+ * Up to {@link GeoWeb#getMaxParallelConnections()} addresses are connected to at the same time, without blocking,
+ * remaining attempts are cancelled once peers count target is reached. Checks run every second from GeoWeb's shared timer
  * 
  * When we succeed to connect to a peer, it's score get +1, when we fail it gets -1 (max 1 modification per 10 minutes)
- * We loop trough possible peers from highest score to lowest score, then update scores and repeat
+ * We loop trough possible peers from highest score to lowest score, lowest round trip time first among equal scores,
+ * then wait 10 seconds and repeat. Known addresses are kept in an {@link AddressBook} capped to
+ * {@link GeoWeb#getAddressBookSize()} entries, addresses not seen for {@link GeoWeb#getAddressTtl()} are forgotten.
+ * Their changes are written to peers file every 2 seconds by an {@link AddressStore}
+ * 
+ * Once peers count target is reached, the slowest peer is periodically replaced by a known address with less than half it's round trip time
  */
-class PeersCountWatchdog implements Runnable {
+class PeersCountWatchdog {
 
-	private volatile HashMap<String, Integer> possiblePeers = new HashMap<String, Integer>(); 
-	private volatile HashMap<String, Long> peersLastScoreUpdate = new HashMap<String, Long>(); 
+	private AddressBook possiblePeers;
+	
+	//a candidate must be this much faster than the slowest peer to replace it
+	private static final double SWAP_RTT_RATIO = 0.5;
+	
+	//how often a swap checks whether the replacement peer has handshaked
+	private static final long SWAP_CHECK_PERIOD = 200;
+	
+	//true while a replacement peer is connecting, only one swap runs at a time
+	private volatile boolean swapping = false;
+	
+	//how often address book changes are written to peers file
+	private static final long FLUSH_PERIOD = 2000;
+	
+	private GeoWeb geoWeb;
+	private AddressStore store;
+	
+	//timeouts and shutdown hook of this instance, cancelled on stop as the timer may be shared
+	private ArrayList<HashedWheelTimer.Timeout> timeouts = new ArrayList<HashedWheelTimer.Timeout>();
+	private volatile boolean stopped = false;
+	private Thread shutdownHook;
+	
+	//last address dialed in current pass, null when starting a new one
+	private AddressBook.Entry cursor;
+	private long passEndTime = 0;
+	
+	//delay before trying the same addresses again
+	private static final long PASS_INTERVAL = 10000;
 	
-	private File possiblePeersFile;
+	//connection attempts in progress by address
+	private ConcurrentHashMap<String, CompletableFuture<Boolean>> dials = new ConcurrentHashMap<String, CompletableFuture<Boolean>>();
+	
+	private Runnable attempt = new Runnable() {
 
-	PeersCountWatchdog(){
+		@Override
+		public void run() {
+			attemptConnections();
+		}
 		
-		possiblePeersFile = new File("peers.json");
+	};
+
+	PeersCountWatchdog(GeoWeb geoWeb, String peersFile){
 		
-		loadPeers();
+		this.geoWeb = geoWeb;
+		this.possiblePeers = new AddressBook(geoWeb.getAddressBookSize(), geoWeb.getAddressTtl());
+		
+		if(peersFile != null) {
+			store = new AddressStore(new File(peersFile), possiblePeers);
+			possiblePeers.setListener(store);
+			
+			//known addresses are restored in the background, connection attempts start with those already read
+			geoWeb.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					store.load();
+				}
+				
+			});
+			
+			timeouts.add(geoWeb.getTimer().scheduleAtFixedRate(new Runnable() {
+
+				@Override
+				public void run() {
+					geoWeb.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							store.flush();
+						}
+						
+					});
+				}
+				
+			}, FLUSH_PERIOD, FLUSH_PERIOD, TimeUnit.MILLISECONDS));
+		}
 		
 		//message to broadcast to get new peers addresses
 		JSONObject getaddrMessage = new JSONObject();
 		getaddrMessage.put("command", "getaddr");
 		
-		//try to get new addresses every 10 minutes and save current list
-		Timer addressBroadcastTimer = new Timer();
-		GeoWeb.getInstance().timers.add(addressBroadcastTimer);
-		addressBroadcastTimer.scheduleAtFixedRate(new TimerTask() {
+		//try to get new addresses and forget stale ones every 10 minutes
+		timeouts.add(geoWeb.getTimer().scheduleAtFixedRate(new Runnable() {
 
 			@Override
 			public void run() {
-				GeoWeb.getInstance().broadCast(getaddrMessage);
-				
-				savePeers();
+				geoWeb.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						geoWeb.broadCast(getaddrMessage);
+						
+						possiblePeers.evictStale();
+					}
+					
+				});
 			}
 			
-		}, 10000L, 600000L);
+		}, 10000L, 600000L, TimeUnit.MILLISECONDS));
 		
-		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {//save peers on program exit
+		long swapPeriod = geoWeb.getPeerSwapPeriod();
+		if(swapPeriod > 0) {
+			timeouts.add(geoWeb.getTimer().scheduleAtFixedRate(new Runnable() {
+
+				@Override
+				public void run() {
+					geoWeb.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							swapSlowestPeer();
+						}
+						
+					});
+				}
+				
+			}, swapPeriod, swapPeriod, TimeUnit.MILLISECONDS));
+		}
+		
+		if(store != null) {
+			shutdownHook = new Thread(new Runnable() {//save peers on program exit
+	
+				@Override
+				public void run() {
+					store.close();
+				}
+				
+			});
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+		
+	}
+	
+	/**
+	 * Start trying to contact peers
+	 */
+	void start() {
+		timeouts.add(geoWeb.getTimer().scheduleAtFixedRate(new Runnable() {
 
 			@Override
 			public void run() {
-				savePeers();
+				//attempts wait for the watchdog lock, keep them off the timer thread
+				geoWeb.execute(attempt);
 			}
 			
-		}));
+		}, 0, 1000, TimeUnit.MILLISECONDS));
+	}
+	
+	/**
+	 * Stop trying to contact peers and save known ones, called on GeoWeb shutdown
+	 */
+	void stop() {
+		stopped = true;
+		
+		for(HashedWheelTimer.Timeout timeout : timeouts)
+			timeout.cancel();
 		
+		cancelDials();
+		
+		if(shutdownHook == null)
+			return;
+		
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		}catch(IllegalStateException e) {
+			//already exiting, hook saves peers
+			return;
+		}
+		
+		store.close();
 	}
 	
-	@Override
-	public void run() {
+	/**
+	 * Connect to next possible peers until as many attempts as allowed are in progress,
+	 * or cancel remaining ones if peers count target is reached
+	 */
+	private synchronized void attemptConnections() {
+		
+		if(stopped)
+			return;
 		
-		ArrayList<String> peersByScore = getPeersByScore();
-		int currentIndex = 0;
+		if(targetReached()) {
+			cancelDials();
+			return;
+		}
 		
-		while(!Thread.currentThread().isInterrupted()) {
-			try {
+		while(dials.size() < geoWeb.getMaxParallelConnections()) {
+			
+			AddressBook.Entry next = cursor == null ? possiblePeers.first() : possiblePeers.next(cursor);
+			
+			if(next == null) {
 				
-				if(peersByScore.size() <= 0) {
-					peersByScore = getPeersByScore();
-					Thread.sleep(1000);
-					continue;
-				}
-					
+				//wait for attempts in progress, then a while before trying the same addresses again
+				if(!dials.isEmpty())
+					return;
 				
-				if(GeoWeb.getInstance().peers.size() >= GeoWeb.getInstance().getPeerCountTarget()) {
-					Thread.sleep(1000);
-					continue;
-				}
+				if(passEndTime == 0)
+					passEndTime = System.currentTimeMillis();
 				
-				String[] addressArray = peersByScore.get(currentIndex).split(":");
-
-				try {
-					if(GeoWeb.getInstance().connectTo(addressArray[0], Integer.parseInt(addressArray[1])))
-						updatePeerScore(peersByScore.get(currentIndex), 1);
-					else
-						updatePeerScore(peersByScore.get(currentIndex), -1);
-					
-				}catch(NumberFormatException e) {
-					if(GeoWeb.getInstance().debugEnabled())
-						e.printStackTrace();
-					possiblePeers.remove(peersByScore.get(currentIndex));
-				}
+				if(cursor != null && System.currentTimeMillis() - passEndTime < PASS_INTERVAL)
+					return;
 				
-				currentIndex++;
+				passEndTime = 0;
 				
-				if(currentIndex >= peersByScore.size()) {
-					currentIndex = 0;
-					peersByScore = getPeersByScore();
-					Thread.sleep(10000);
-				}
+				if(cursor == null)
+					return;
 				
-			}catch(InterruptedException e){
-		        Thread.currentThread().interrupt(); // propagate interrupt
-		    }
+				cursor = null;
+				continue;
+			}
+			
+			cursor = next;
+			dial(next.getAddress());
 		}
 	}
 	
-	private void loadPeers() {
+	/**
+	 * Start connecting to given possible peer, it's score is updated once attempt is over
+	 */
+	private void dial(String address) {
+		String[] addressArray = address.split(":");
+		int port;
 		
-		try {//create file if don't exist (createNewFile method already checks for existence)
-			possiblePeersFile.createNewFile();
-		} catch (IOException e) {
-			System.out.println("Error: can't write peers.json file, please check for permissions or free disk space");
-			e.printStackTrace();
+		try {
+			port = Integer.parseInt(addressArray[1]);
+		}catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			if(geoWeb.debugEnabled())
+				e.printStackTrace();
+			possiblePeers.remove(address);
+			return;
 		}
 		
-		if(possiblePeersFile.exists()) {
-			
-			String peersString = Miscellaneous.fileToString("peers.json");
-			
-			try {
-				JSONArray peersArray = new JSONArray(peersString);
-				
-				for(int i = 0; i < peersArray.length(); i++) {
-					
-					try {
-						JSONObject possiblePeer = peersArray.getJSONObject(i);
-						addPossiblePeer(possiblePeer.getString("host"), possiblePeer.getInt("score"));
-					}catch(JSONException e) {
-						if(GeoWeb.getInstance().debugEnabled())
-							e.printStackTrace();
-						//re-catch JSONException so we continue reading through array and maybe get valid peers
-					}
+		if(dials.containsKey(address))
+			return;
+		
+		geoWeb.metrics.connectionAttempts.increment();
+		
+		CompletableFuture<Boolean> dial = geoWeb.connectToAsync(addressArray[0], port);
+		dials.put(address, dial);
+		
+		dial.whenComplete(new BiConsumer<Boolean, Throwable>() {
 
-					
+			@Override
+			public void accept(Boolean connected, Throwable error) {
+				dials.remove(address, dial);
+				
+				if(dial.isCancelled())
+					return;
+				
+				if(connected != null && connected) {
+					updatePeerScore(address, 1);
+				}else {
+					geoWeb.metrics.connectionFailures.increment();
+					updatePeerScore(address, -1);
 				}
 				
-			}catch(JSONException e) {
-				if(GeoWeb.getInstance().debugEnabled())
-					e.printStackTrace();
-				//we'll save peers in a valid format on shutdown
+				//may run on an event loop, continue from the message thread pool
+				geoWeb.execute(attempt);
 			}
 			
-		}
-		
+		});
+	}
+	
+	/**
+	 * @return true if connected and connecting peers reach peers count target
+	 */
+	private boolean targetReached() {
+		return geoWeb.peers.size() + geoWeb.pendingPeers.size() >= geoWeb.getPeerCountTarget();
 	}
 	
 	/**
-	 * Save current possible peers list to peers.json
-	 * Overrides current file value
+	 * Abort connection attempts in progress
 	 */
-	private void savePeers() {
-		JSONArray peersArray = new JSONArray();
+	private void cancelDials() {
+		for(CompletableFuture<Boolean> dial : dials.values())
+			dial.cancel(true);
+	}
+	
+	/**
+	 * Replace the slowest connected peer by the fastest known address not connected yet,
+	 * if peers count target is reached and that address has less than half the slowest peer's round trip time
+	 * The slowest peer is only ended once the new one has handshaked
+	 */
+	private void swapSlowestPeer() {
+		if(swapping || geoWeb.peers.size() < geoWeb.getPeerCountTarget())
+			return;
 		
-		for(String key : possiblePeers.keySet()) {
-			
-			JSONObject possiblePeer = new JSONObject();
-			possiblePeer.put("host", key);
-			possiblePeer.put("score", possiblePeers.get(key));
+		Peer slowest = null;
+		double slowestRtt = -1;
+		HashSet<String> connected = new HashSet<String>();
+		
+		for(Peer peer : geoWeb.peers.values()) {
+			connected.add(peer.getAddress());
 			
-			peersArray.put(possiblePeer);
+			double rtt = peer.getRtt();
+			if(rtt > slowestRtt) {
+				slowest = peer;
+				slowestRtt = rtt;
+			}
+		}
+		
+		if(slowest == null)
+			return;
+		
+		String candidate = null;
+		double candidateRtt = slowestRtt * SWAP_RTT_RATIO;
+		
+		for(AddressBook.Entry entry : possiblePeers.byScore()) {
+			double rtt = entry.getRtt();
+			if(rtt >= 0 && rtt < candidateRtt && !connected.contains(entry.getAddress())) {
+				candidate = entry.getAddress();
+				candidateRtt = rtt;
+			}
 		}
 		
+		if(candidate == null)
+			return;
+		
+		String[] addressArray = candidate.split(":");
+		int port;
+		
 		try {
-			FileWriter writer = new FileWriter(possiblePeersFile, false);
-			writer.write(peersArray.toString());
-			writer.close();
-		} catch (IOException e) {
-			System.out.println("Couldn't write peers.json: " + e.getMessage());
+			port = Integer.parseInt(addressArray[1]);
+		}catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			possiblePeers.remove(candidate);
+			return;
+		}
+		
+		swapping = true;
+		
+		Peer replaced = slowest;
+		String replacement = candidate;
+		String message = "replacing " + slowest.getAddress() + " (" + slowestRtt + "ms) by " + candidate + " (" + candidateRtt + "ms)";
+		
+		geoWeb.connectToAsync(addressArray[0], port).whenComplete(new BiConsumer<Boolean, Throwable>() {
+
+			@Override
+			public void accept(Boolean connected, Throwable error) {
+				if(connected != null && connected) {
+					awaitHandshake(replaced, replacement, message, System.currentTimeMillis() + geoWeb.getSocketConnectionTimeout());
+				}else {
+					//don't try it again until we measure it again
+					possiblePeers.updateRtt(replacement, Double.MAX_VALUE);
+					swapping = false;
+				}
+			}
+			
+		});
+	}
+	
+	/**
+	 * End the replaced peer once the replacement address has handshaked, checking again every {@link #SWAP_CHECK_PERIOD}ms until deadline
+	 */
+	private void awaitHandshake(Peer replaced, String replacement, String message, long deadline) {
+		if(stopped) {
+			swapping = false;
+			return;
+		}
+		
+		for(Peer peer : geoWeb.peers.values()) {
+			if(replacement.equals(peer.getAddress()) || replacement.equals(peer.getEffectiveAddress())) {
+				if(geoWeb.debugEnabled())
+					System.out.println(message);
+				
+				geoWeb.metrics.peerSwaps.increment();
+				replaced.end();
+				swapping = false;
+				return;
+			}
 		}
 		
+		if(System.currentTimeMillis() >= deadline) {
+			//connected but never handshaked, keep the slowest peer
+			possiblePeers.updateRtt(replacement, Double.MAX_VALUE);
+			swapping = false;
+			return;
+		}
+		
+		geoWeb.getTimer().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				//may run on the timer or an event loop, continue from the message thread pool
+				geoWeb.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						awaitHandshake(replaced, replacement, message, deadline);
+					}
+					
+				});
+			}
+			
+		}, SWAP_CHECK_PERIOD, TimeUnit.MILLISECONDS);
 	}
 	
 	/**
-	 * Add an address to the possible peers list
+	 * Add an address to the possible peers list, or mark it as seen now if already known
 	 * @param address the address of the possible peer
 	 * @param baseScore it's base score
 	 */
 	public void addPossiblePeer(String address, int baseScore) {
-		if(AddressUtils.isValidHostnameAndPort(address) && !possiblePeers.containsKey(address))
-			updatePeerScore(address, baseScore);
+		if(AddressUtils.isValidHostnameAndPort(address))
+			possiblePeers.add(address, baseScore);
 	}
 	
 	/**
@@ -197,43 +441,42 @@ class PeersCountWatchdog implements Runnable {
 	 * @param modifier The score modifier
 	 */
 	public void updatePeerScore(String address, int modifier) {
-		if(peersLastScoreUpdate.getOrDefault(address, 0l) > System.currentTimeMillis()-6000000)//limit update rate to 10min
-			return;
-			
-		int newScore = possiblePeers.getOrDefault(address, 0)+modifier;
-		possiblePeers.put(address, newScore);
-		peersLastScoreUpdate.put(address, System.currentTimeMillis());
+		possiblePeers.updateScore(address, modifier);
 	}
 
 	/**
-	 * @return A list of known possible peers, sorted by their descending score
+	 * Record the smoothed round trip time of a possible peer, used to prefer low latency addresses
+	 * @param address the possible peer's address
+	 * @param rtt the round trip time in milliseconds
 	 */
-	public ArrayList<String> getPeersByScore() {
-		List<Integer> values = new ArrayList<Integer>(possiblePeers.values());
-		Collections.sort(values, Collections.reverseOrder());
-		
-		List<String> keys = new ArrayList<String>(possiblePeers.keySet());
-		
-		Iterator<Integer> valuesIterator = values.iterator();
-		
-		ArrayList<String> sortedPeers = new ArrayList<String>();
+	public void updatePeerRtt(String address, double rtt) {
+		possiblePeers.updateRtt(address, rtt);
+	}
+	
+	/**
+	 * @return the number of known possible peers
+	 */
+	public int getPossiblePeersCount() {
+		return possiblePeers.size();
+	}
+	
+	/**
+	 * @return the last known round trip time to given address in milliseconds, -1 if unknown
+	 */
+	public double getPeerRtt(String address) {
+		AddressBook.Entry entry = possiblePeers.get(address);
 		
-		while(valuesIterator.hasNext()) {
-			Iterator<String> keysIterator = keys.iterator();
-			int score = valuesIterator.next();
-			
-			while(keysIterator.hasNext()) {
-				String possiblePeer = keysIterator.next();
-				
-				if(score == possiblePeers.get(possiblePeer)) {
-					sortedPeers.add(possiblePeer);
-					keys.remove(possiblePeer);
-					break;
-				}
-				
-			}
-			
-		}
+		return entry != null ? entry.getRtt() : -1;
+	}
+	
+	/**
+	 * @return A list of known possible peers, sorted by their descending score, then by ascending round trip time
+	 * Addresses with unknown round trip time come last among addresses of same score
+	 */
+	public ArrayList<String> getPeersByScore() {
+		ArrayList<String> sortedPeers = new ArrayList<String>(possiblePeers.size());
+		for(AddressBook.Entry entry : possiblePeers.byScore())
+			sortedPeers.add(entry.getAddress());
 		
 		return sortedPeers;
 	}
@@ -10,6 +10,7 @@ public enum ResponseCode {
 	BAD_REQUEST(400, "Bad request"),
 	NOT_FOUND(404, "Not found"),
 	REQUEST_TIMEOUT(408, "Request timeout"),
+	TOO_MANY_REQUESTS(429, "Too many requests"),
 	ERROR(500, "Error"),
 	UNKNOWN_CODE(0, "Unknown code");
 	
@@ -46,6 +47,8 @@ public enum ResponseCode {
 			return NOT_FOUND;
 		case 408:
 			return REQUEST_TIMEOUT;
+		case 429:
+			return TOO_MANY_REQUESTS;
 		case 500:
 			return ERROR;
 			default:
@@ -0,0 +1,61 @@
+package io.virgo.geoWeb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded set of recently seen gossip message ids, ids are forgotten after a given time
+ * or when room is needed for new ones, oldest first
+ */
+class SeenMessageCache {
+
+	private LinkedHashMap<String, Long> seen = new LinkedHashMap<String, Long>();
+	private int capacity;
+	private long ttl;
+
+	/**
+	 * @param capacity the maximum number of ids remembered
+	 * @param ttl how long an id is remembered, in milliseconds
+	 */
+	SeenMessageCache(int capacity, long ttl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Remember given id
+	 *
+	 * @return true if id wasn't already known
+	 */
+	synchronized boolean markSeen(String id) {
+		long now = System.currentTimeMillis();
+
+		//ids are kept in insertion order, so expired ones are at the head
+		Iterator<Map.Entry<String, Long>> iterator = seen.entrySet().iterator();
+		while(iterator.hasNext()) {
+			if(iterator.next().getValue() > now - ttl)
+				break;
+
+			iterator.remove();
+		}
+
+		if(seen.containsKey(id))
+			return false;
+
+		seen.put(id, now);
+
+		if(seen.size() > capacity) {
+			iterator = seen.entrySet().iterator();
+			iterator.next();
+			iterator.remove();
+		}
+
+		return true;
+	}
+
+	synchronized int size() {
+		return seen.size();
+	}
+
+}
@@ -0,0 +1,55 @@
+package io.virgo.geoWeb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable frame encoded once and sent to many peers, each one writing it through it's own {@link OutboundFrame} view
+ *
+ * Reference counted: the creator holds one reference and every view another one,
+ * the pooled header is given back once all of them have been released
+ */
+class SharedFrame {
+
+	private ByteBuffer header;
+	private ByteBuffer body;
+	private AtomicInteger references = new AtomicInteger(1);
+
+	private SharedFrame(ByteBuffer header, ByteBuffer body) {
+		this.header = header;
+		this.body = body;
+	}
+
+	/**
+	 * Frame a message body
+	 *
+	 * @param messageType the type byte of the codec body has been encoded with
+	 */
+	static SharedFrame message(byte messageType, byte[] body) {
+		ByteBuffer header = OutboundFrame.headerPool.acquire();
+		header.put(messageType);
+		header.putInt(body.length);
+		header.flip();
+
+		return new SharedFrame(header, ByteBuffer.wrap(body).asReadOnlyBuffer());
+	}
+
+	/**
+	 * @return a new view to enqueue on a peer, holding a reference to this frame until it is released
+	 */
+	OutboundFrame newView() {
+		if(references.getAndIncrement() <= 0)
+			throw new IllegalStateException("frame already released");
+
+		return new OutboundFrame(this, header.asReadOnlyBuffer(), body.duplicate());
+	}
+
+	/**
+	 * Drop a reference, giving header back to the pool once none are left
+	 */
+	void release() {
+		if(references.decrementAndGet() == 0)
+			OutboundFrame.headerPool.release(header);
+	}
+
+}
@@ -0,0 +1,71 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Blocking TCP connection, the socket must be backed by a channel so peers can use gathering writes
+ */
+class SocketConnection extends StreamConnection {
+
+	private Socket socket;
+	private InputStream in;
+
+	SocketConnection(Socket socket) {
+		this.socket = socket;
+	}
+
+	@Override
+	String getRemoteAddress() {
+		return socket.getInetAddress().getHostAddress();
+	}
+
+	@Override
+	String getRemoteHostname() {
+		return socket.getInetAddress().getHostName();
+	}
+
+	@Override
+	int getRemotePort() {
+		return socket.getPort();
+	}
+
+	@Override
+	void configure(GeoWeb geoWeb) {
+		geoWeb.configureSocket(socket);
+	}
+
+	@Override
+	int read(ByteBuffer buffer) throws IOException {
+		if(in == null)
+			in = socket.getInputStream();
+
+		int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+		if(read > 0)
+			buffer.position(buffer.position() + read);
+
+		return read;
+	}
+
+	@Override
+	GatheringByteChannel getOutput() {
+		return socket.getChannel();
+	}
+
+	@Override
+	boolean isClosed() {
+		return socket.isClosed();
+	}
+
+	@Override
+	void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {}
+	}
+
+}
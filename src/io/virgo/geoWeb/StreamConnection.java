@@ -0,0 +1,24 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Connection read and written with blocking calls by the peer's own threads
+ */
+abstract class StreamConnection extends Connection {
+
+	/**
+	 * Read available bytes into given buffer, waiting for at least one
+	 *
+	 * @return the number of bytes read, -1 once connection is closed
+	 */
+	abstract int read(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * @return the blocking channel the peer's writer sends frames to
+	 */
+	abstract GatheringByteChannel getOutput() throws IOException;
+
+}
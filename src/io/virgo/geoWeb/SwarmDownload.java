@@ -0,0 +1,789 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.json.JSONObject;
+
+import io.virgo.geoWeb.data.ContentCache;
+import io.virgo.geoWeb.data.DataManifest;
+import io.virgo.geoWeb.data.DataSink;
+import io.virgo.geoWeb.data.MemoryDataSink;
+import io.virgo.geoWeb.utils.HashedWheelTimer;
+import io.virgo.virgoCryptoLib.Converter;
+import io.virgo.virgoCryptoLib.Sha256Hash;
+
+/**
+ * Download of a data from many peers at once
+ *
+ * The data's manifest is asked to a few of the candidate peers, then it's pieces are requested as ranges from all of them,
+ * each peer having a few pieces in flight. Pieces are verified against the manifest as they arrive: a peer sending
+ * a bad piece is dropped, pieces of a peer failing or too slow are requested again from others. Once no piece is left
+ * to request, idle peers also request pieces still in flight on slower ones, first to arrive wins
+ *
+ * Verified pieces are written to the sink in order, those arriving early are held in memory so pieces are only
+ * requested up to {@link #MAX_PIECES_AHEAD} past the first missing one. The whole data is checked against it's hash
+ * at the end, as the manifest comes from a peer
+ */
+public class SwarmDownload {
+
+	//pieces requested at once from a peer
+	static final int PIPELINE_DEPTH = 2;
+	static final int MAX_PIECES_AHEAD = 64;
+	//failed or timed out pieces before a peer is dropped
+	static final int MAX_FAILURES = 3;
+	//peers asked for the manifest at once
+	static final int MANIFEST_PEERS = 3;
+
+	private Sha256Hash hash;
+	private DataSink sink;
+	private GeoWeb geoWeb;
+	private long pieceTimeout = 15000L;
+	private ArrayList<Source> sources = new ArrayList<Source>();
+
+	private int manifestSources = 0;
+	//manifest requests not answered yet, and those among them not considered slow
+	private int manifestPending = 0;
+	private int manifestRequests = 0;
+	private DataManifest manifest;
+	private Piece[] pieces;
+	//first piece not written to sink yet
+	private int nextToWrite = 0;
+	private MessageDigest digest;
+	private long downloaded = 0;
+	private int piecesDone = 0;
+	//a thread is writing pieces to sink
+	private boolean writing = false;
+
+	private ResponseCode status = ResponseCode.UNKNOWN_CODE;
+	private boolean started = false;
+	private boolean finished = false;
+	private CompletableFuture<ResponseCode> future = new CompletableFuture<ResponseCode>();
+
+	/**
+	 * Download data to be kept in memory
+	 *
+	 * @param hash the hash of the data requested
+	 * @param peers the peers to download it from
+	 */
+	public SwarmDownload(Sha256Hash hash, Collection<Peer> peers) {
+		this(hash, peers, new MemoryDataSink());
+	}
+
+	/**
+	 * @param hash the hash of the data requested
+	 * @param peers the peers to download it from
+	 * @param sink where to write data, in order
+	 */
+	public SwarmDownload(Sha256Hash hash, Collection<Peer> peers, DataSink sink) {
+		if(peers.isEmpty())
+			throw new IllegalArgumentException("no peer to download from");
+
+		this.hash = hash;
+		this.sink = sink;
+
+		for(Peer peer : peers)
+			sources.add(new Source(peer));
+
+		this.geoWeb = sources.get(0).peer.getGeoWeb();
+	}
+
+	/**
+	 * @param pieceTimeout how long a peer has to send a piece before it's asked to others, in milliseconds, must be >= 100
+	 */
+	public synchronized SwarmDownload setPieceTimeout(long pieceTimeout) {
+		if(pieceTimeout < 100)
+			throw new IllegalArgumentException("pieceTimeout must be >= 100");
+
+		this.pieceTimeout = pieceTimeout;
+
+		return this;
+	}
+
+	/**
+	 * Start downloading
+	 *
+	 * @return a future completed with {@link ResponseCode#OK} once data has been downloaded and verified,
+	 * {@link ResponseCode#NOT_FOUND} if no peer could give it's manifest, {@link ResponseCode#ERROR} otherwise
+	 */
+	public CompletableFuture<ResponseCode> start() {
+		synchronized(this) {
+			if(started)
+				throw new IllegalStateException("download already started");
+
+			started = true;
+		}
+
+		requestManifests();
+
+		return future;
+	}
+
+	/**
+	 * Ask the manifest to peers not asked yet, if none is left and all answered or timed out fail
+	 */
+	private void requestManifests() {
+		ArrayList<Source> asked = new ArrayList<Source>();
+		boolean noSource;
+
+		synchronized(this) {
+			if(finished || manifest != null)
+				return;
+
+			while(manifestRequests < MANIFEST_PEERS && manifestSources < sources.size()) {
+				Source source = sources.get(manifestSources++);
+				if(source.peer.isClosed())
+					continue;
+
+				asked.add(source);
+				source.manifestPending = true;
+				manifestPending++;
+				manifestRequests++;
+			}
+
+			noSource = manifestPending == 0;
+		}
+
+		if(noSource) {
+			fail(ResponseCode.NOT_FOUND);
+			return;
+		}
+
+		for(final Source source : asked) {
+			JSONObject request = new JSONObject();
+			request.put("command", "requestManifest");
+			request.put("hash", Converter.bytesToHex(hash.toBytes()));
+
+			source.peer.sendAsyncRequest(request).whenComplete(new BiConsumer<SyncMessageResponse, Throwable>() {
+
+				@Override
+				public void accept(SyncMessageResponse response, Throwable error) {
+					manifestReceived(source, response);
+				}
+
+			});
+
+			//peers not having the data may not answer, don't wait for the sync message timeout to ask others
+			geoWeb.getTimer().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					geoWeb.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							manifestSlow(source);
+						}
+
+					});
+				}
+
+			}, pieceTimeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * A peer didn't answer it's manifest request in time, ask another one in it's place
+	 * while still waiting for it's answer
+	 */
+	private void manifestSlow(Source source) {
+		synchronized(this) {
+			if(!source.manifestPending || source.manifestSlow)
+				return;
+
+			source.manifestSlow = true;
+			manifestRequests--;
+		}
+
+		requestManifests();
+	}
+
+	private void manifestReceived(Source source, SyncMessageResponse response) {
+		DataManifest received = null;
+
+		synchronized(this) {
+			//peer told it doesn't have the data, don't ask it for pieces
+			if(response != null && response.getResponseCode() == ResponseCode.NOT_FOUND)
+				source.dropped = true;
+
+			if(finished || manifest != null)
+				return;
+
+			if(source.manifestPending) {
+				source.manifestPending = false;
+				manifestPending--;
+				if(!source.manifestSlow)
+					manifestRequests--;
+			}
+
+			if(response != null && response.getResponseCode() == ResponseCode.OK) {
+				try {
+					received = DataManifest.fromJson(response.getResponse());
+				}catch(RuntimeException e) {
+					//malformed manifest, try another peer
+				}
+			}
+
+			if(received != null)
+				prepare(received);
+		}
+
+		if(received == null)
+			requestManifests();
+		else
+			begin();
+	}
+
+	/**
+	 * Prepare pieces from manifest, called holding the lock
+	 */
+	private void prepare(DataManifest manifest) {
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 unavailable", e);
+		}
+
+		pieces = new Piece[manifest.getPieceCount()];
+		for(int i = 0; i < pieces.length; i++)
+			pieces[i] = new Piece(i);
+
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Open sink then start requesting pieces
+	 */
+	private void begin() {
+		try {
+			sink.open(manifest.getSize());
+		} catch (IOException e) {
+			fail(ResponseCode.ERROR);
+			return;
+		}
+
+		synchronized(this) {
+			if(finished)
+				return;
+
+			status = ResponseCode.ACCEPTED;
+			//nothing to download, completing is up to the writer
+			writing = pieces.length == 0;
+		}
+
+		onDownloadStarted();
+
+		if(pieces.length == 0)
+			writePieces();
+		else
+			requestPieces();
+	}
+
+	/**
+	 * Request pieces to peers having room for more, then send requests outside of the lock
+	 */
+	private void requestPieces() {
+		ArrayList<Attempt> attempts = new ArrayList<Attempt>();
+		boolean stalled;
+
+		synchronized(this) {
+			if(finished)
+				return;
+
+			for(Source source : sources) {
+				if(source.dropped || source.peer.isClosed())
+					continue;
+
+				while(source.inFlight < PIPELINE_DEPTH) {
+					Piece piece = nextPiece(source);
+					if(piece == null)
+						break;
+
+					Attempt attempt = new Attempt(piece, source);
+					piece.attempts.add(attempt);
+					source.inFlight++;
+					attempts.add(attempt);
+				}
+			}
+
+			//no peer left to ask and nothing in flight while pieces are missing
+			stalled = attempts.isEmpty() && !hasAttempts() && piecesDone < pieces.length;
+		}
+
+		if(stalled) {
+			fail(ResponseCode.ERROR);
+			return;
+		}
+
+		for(Attempt attempt : attempts)
+			attempt.send();
+	}
+
+	/**
+	 * @return the first piece no one is downloading, or if none is left and given source is idle the piece
+	 * in flight for the longest time on another one, null if there is none
+	 */
+	private Piece nextPiece(Source source) {
+		int limit = Math.min(pieces.length, nextToWrite + MAX_PIECES_AHEAD);
+
+		for(int i = nextToWrite; i < limit; i++) {
+			Piece piece = pieces[i];
+			if(!piece.done && piece.attempts.isEmpty() && !source.peer.requestedData.containsKey(manifest.getPieceHash(i)))
+				return piece;
+		}
+
+		if(source.inFlight > 0)
+			return null;
+
+		Piece oldest = null;
+		for(int i = nextToWrite; i < limit; i++) {
+			Piece piece = pieces[i];
+			if(piece.done || piece.attempts.size() != 1 || piece.attempts.get(0).source == source
+					|| source.peer.requestedData.containsKey(manifest.getPieceHash(i)))
+				continue;
+
+			if(oldest == null || piece.attempts.get(0).started < oldest.attempts.get(0).started)
+				oldest = piece;
+		}
+
+		return oldest;
+	}
+
+	private boolean hasAttempts() {
+		for(Source source : sources)
+			if(source.inFlight > 0)
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * A piece has been received and verified against manifest
+	 */
+	private void pieceReceived(Attempt attempt, byte[] data) {
+		long progress;
+		boolean write;
+
+		synchronized(this) {
+			end(attempt);
+
+			Piece piece = attempt.piece;
+			if(finished || piece.done || !attempt.counts)
+				return;
+
+			piece.done = true;
+			piece.data = data;
+			piecesDone++;
+			downloaded += data.length;
+			progress = downloaded;
+
+			//slower peers downloading the same piece can stop
+			for(Attempt other : new ArrayList<Attempt>(piece.attempts))
+				cancel(other);
+
+			write = !writing && piece.index == nextToWrite;
+			if(write)
+				writing = true;
+		}
+
+		onDownloadProgress(progress, manifest.getSize());
+
+		if(write)
+			writePieces();
+
+		requestPieces();
+	}
+
+	/**
+	 * A piece failed to download: bad data, not found, timeout or disconnection
+	 *
+	 * @param drop true if peer mustn't be asked for pieces anymore
+	 * @param timedOut true if peer didn't answer yet, it's request is then withdrawn
+	 */
+	private void pieceFailed(Attempt attempt, boolean drop, boolean timedOut) {
+		synchronized(this) {
+			if(!attempt.active)
+				return;
+
+			if(timedOut)
+				cancel(attempt);
+			else
+				end(attempt);
+
+			Source source = attempt.source;
+			source.failures++;
+			if(drop || source.failures >= MAX_FAILURES)
+				source.dropped = true;
+		}
+
+		requestPieces();
+	}
+
+	/**
+	 * Write received pieces following last written one, then complete download once all are written
+	 * Only the thread that set writing uses the sink, never while holding the lock
+	 */
+	private void writePieces() {
+		while(true) {
+			ArrayList<byte[]> ready = new ArrayList<byte[]>();
+			boolean aborted;
+			boolean last;
+
+			synchronized(this) {
+				aborted = finished;
+
+				while(!aborted && nextToWrite < pieces.length && pieces[nextToWrite].done) {
+					ready.add(pieces[nextToWrite].data);
+					pieces[nextToWrite].data = null;
+					nextToWrite++;
+				}
+
+				last = nextToWrite == pieces.length;
+
+				if(!aborted && ready.isEmpty() && !last) {
+					writing = false;
+					return;
+				}
+			}
+
+			//download failed meanwhile, sink was left to us to close
+			if(aborted) {
+				try {
+					sink.close(false);
+				} catch (IOException e) {}
+				return;
+			}
+
+			try {
+				for(byte[] data : ready) {
+					digest.update(data);
+					sink.write(ByteBuffer.wrap(data));
+				}
+			} catch (IOException e) {
+				synchronized(this) {
+					writing = false;
+				}
+
+				fail(ResponseCode.ERROR);
+				return;
+			}
+
+			if(last) {
+				complete();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Check written data against it's hash and close sink, called by the writer once all pieces are written
+	 */
+	private void complete() {
+		boolean success = new Sha256Hash(digest.digest()).equals(hash);
+
+		synchronized(this) {
+			if(finished)
+				success = false;
+		}
+
+		try {
+			sink.close(success);
+		} catch (IOException e) {
+			success = false;
+		}
+
+		byte[] data = null;
+
+		synchronized(this) {
+			if(finished)
+				return;
+
+			//otherwise a peer gave a manifest not matching data's hash
+			finish(success ? ResponseCode.OK : ResponseCode.ERROR);
+		}
+
+		if(success) {
+			if(sink instanceof MemoryDataSink) {
+				data = ((MemoryDataSink) sink).getData();
+
+				ContentCache cache = geoWeb.getContentCache();
+				//cached apart from the array given to onDownloadFinished, which may modify it
+				if(cache != null)
+					cache.put(hash, data.clone());
+			}
+
+			onDownloadFinished(data);
+			future.complete(ResponseCode.OK);
+		}else {
+			onDownloadError();
+			future.complete(ResponseCode.ERROR);
+		}
+	}
+
+	/**
+	 * Fail download, closing sink unless the writer is using it, it then closes it itself
+	 */
+	private void fail(ResponseCode code) {
+		boolean closeSink;
+
+		synchronized(this) {
+			if(finished)
+				return;
+
+			closeSink = manifest != null && !writing;
+			finish(code);
+		}
+
+		if(closeSink) {
+			try {
+				sink.close(false);
+			} catch (IOException e) {}
+		}
+
+		onDownloadError();
+		future.complete(code);
+	}
+
+	/**
+	 * Mark download as finished and withdraw attempts in flight, called holding the lock
+	 */
+	private void finish(ResponseCode code) {
+		finished = true;
+		status = code;
+
+		if(pieces != null) {
+			for(Piece piece : pieces) {
+				piece.data = null;
+				for(Attempt attempt : new ArrayList<Attempt>(piece.attempts))
+					cancel(attempt);
+			}
+		}
+	}
+
+	/**
+	 * Stop waiting for an attempt and withdraw it from it's peer, data still sent is discarded
+	 */
+	private void cancel(Attempt attempt) {
+		if(!attempt.active)
+			return;
+
+		end(attempt);
+		attempt.counts = false;
+		attempt.source.peer.cancelDataRequest(attempt);
+	}
+
+	private void end(Attempt attempt) {
+		if(!attempt.active)
+			return;
+
+		attempt.active = false;
+		attempt.piece.attempts.remove(attempt);
+		attempt.source.inFlight--;
+
+		if(attempt.timeout != null)
+			attempt.timeout.cancel();
+	}
+
+	/**
+	 * @return Download status, {@link ResponseCode#ACCEPTED} while downloading
+	 */
+	public synchronized ResponseCode getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the sink data is written to
+	 */
+	public DataSink getSink() {
+		return sink;
+	}
+
+	/**
+	 * @return the size of the data, -1 until it's manifest is received
+	 */
+	public synchronized long getDataSize() {
+		return manifest == null ? -1 : manifest.getSize();
+	}
+
+	/**
+	 * @return downloaded and verified data size in bytes
+	 */
+	public synchronized long getDownloadedSize() {
+		return downloaded;
+	}
+
+	/**
+	 * @return the number of peers still downloading
+	 */
+	public synchronized int getActivePeers() {
+		int active = 0;
+		for(Source source : sources)
+			if(!source.dropped && !source.peer.isClosed())
+				active++;
+
+		return active;
+	}
+
+	/**
+	 * Overridable event called once manifest has been received
+	 */
+	public void onDownloadStarted() {
+
+	}
+
+	/**
+	 * Overridable event called each time a piece has been received and verified
+	 * @param downloaded the number of bytes received so far
+	 * @param total the size of the data
+	 */
+	public void onDownloadProgress(long downloaded, long total) {
+
+	}
+
+	/**
+	 * Overridable event called when download finished
+	 * @param data the requested data, or null if it has not been kept in memory
+	 */
+	public void onDownloadFinished(byte[] data) {
+
+	}
+
+	/**
+	 * Overridable event called when download failed
+	 */
+	public void onDownloadError() {
+
+	}
+
+	/**
+	 * A candidate peer
+	 */
+	private static class Source {
+
+		private Peer peer;
+		private int inFlight = 0;
+		private int failures = 0;
+		private boolean dropped = false;
+		//asked for the manifest and not answered yet, slow once it's request took longer than piece timeout
+		private boolean manifestPending = false;
+		private boolean manifestSlow = false;
+
+		private Source(Peer peer) {
+			this.peer = peer;
+		}
+
+	}
+
+	private static class Piece {
+
+		private int index;
+		private boolean done = false;
+		//verified data waiting for previous pieces to be written
+		private byte[] data;
+		private ArrayList<Attempt> attempts = new ArrayList<Attempt>(2);
+
+		private Piece(int index) {
+			this.index = index;
+		}
+
+	}
+
+	/**
+	 * A piece requested to a peer, received in memory
+	 * Callbacks come from the thread reading the peer, they are handled on GeoWeb's executor so it never waits
+	 * on the sink or on requests to other peers
+	 */
+	private class Attempt extends DataRequest {
+
+		private Piece piece;
+		private Source source;
+		private long started = System.nanoTime();
+		private boolean active = true;
+		//false once withdrawn, data still arriving is ignored
+		private boolean counts = true;
+		private HashedWheelTimer.Timeout timeout;
+
+		private Attempt(Piece piece, Source source) {
+			super(manifest.getPieceHash(piece.index), new MemoryDataSink());
+
+			this.piece = piece;
+			this.source = source;
+		}
+
+		private void send() {
+			synchronized(SwarmDownload.this) {
+				if(!active)
+					return;
+
+				timeout = geoWeb.getTimer().schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						geoWeb.execute(new Runnable() {
+
+							@Override
+							public void run() {
+								pieceFailed(Attempt.this, false, true);
+							}
+
+						});
+					}
+
+				}, pieceTimeout, TimeUnit.MILLISECONDS);
+			}
+
+			source.peer.requestData(this, hash, manifest.getPieceOffset(piece.index), manifest.getPieceLength(piece.index));
+
+			//withdrawn while being sent, remove it now it's registered
+			synchronized(SwarmDownload.this) {
+				if(!counts)
+					source.peer.cancelDataRequest(this);
+			}
+		}
+
+		@Override
+		void finish(ContentCache cache) {
+			//pieces aren't worth caching on their own
+			super.finish(null);
+		}
+
+		@Override
+		public byte[] onDownloadFinished(final byte[] data) {
+			geoWeb.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					pieceReceived(Attempt.this, data);
+				}
+
+			});
+
+			return data;
+		}
+
+		@Override
+		public void onDownloadError() {
+			//peer doesn't have the data, or whole piece received but not matching it's hash
+			final boolean drop = getStatus() == ResponseCode.NOT_FOUND
+					|| (getDownloadedSize() == getDataSize() && !source.peer.isClosed());
+
+			geoWeb.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					pieceFailed(Attempt.this, drop, false);
+				}
+
+			});
+		}
+
+	}
+
+}
@@ -0,0 +1,150 @@
+package io.virgo.geoWeb;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import io.virgo.geoWeb.utils.HashedWheelTimer;
+
+/**
+ * Bounded table correlating sent sync messages with their responses
+ *
+ * Each entry is a future completed by the message handler when a matching respUid arrives,
+ * or with {@link ResponseCode#REQUEST_TIMEOUT} by a timeout scheduled on the shared timer
+ * Timeouts and failures are completed on the message thread pool, so dependents never run on the timer thread
+ */
+class SyncRequestTable {
+
+	private ConcurrentHashMap<String, PendingRequest> pending = new ConcurrentHashMap<String, PendingRequest>();
+	private int capacity;
+	private HashedWheelTimer timer;
+	private Executor executor;
+	private GeoWebMetrics metrics;
+
+	SyncRequestTable(int capacity, HashedWheelTimer timer, Executor executor, GeoWebMetrics metrics) {
+		this.capacity = capacity;
+		this.timer = timer;
+		this.executor = executor;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Register a new request waiting for it's response
+	 *
+	 * @param reqUid the request unique id
+	 * @param timeout time in milliseconds after which the request expires
+	 * @return a future completed with the response, or with {@link ResponseCode#TOO_MANY_REQUESTS} if table is full
+	 */
+	CompletableFuture<SyncMessageResponse> register(String reqUid, long timeout) {
+		CompletableFuture<SyncMessageResponse> future = new CompletableFuture<SyncMessageResponse>();
+
+		if(pending.size() >= capacity) {
+			metrics.syncRejected.increment();
+			future.complete(new SyncMessageResponse(ResponseCode.TOO_MANY_REQUESTS));
+			return future;
+		}
+
+		metrics.syncRequests.increment();
+		
+		PendingRequest request = new PendingRequest(future);
+		pending.put(reqUid, request);
+
+		request.timeout = timer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				if(pending.remove(reqUid, request)) {
+					metrics.syncTimeouts.increment();
+					completeLater(future, new SyncMessageResponse(ResponseCode.REQUEST_TIMEOUT));
+				}
+			}
+
+		}, timeout, TimeUnit.MILLISECONDS);
+
+		return future;
+	}
+
+	/**
+	 * Complete the request corresponding to given response, if any
+	 *
+	 * @return true if a request was waiting for this response
+	 */
+	boolean complete(String respUid, JSONObject response) {
+		PendingRequest request = pending.remove(respUid);
+
+		if(request == null)
+			return false;
+
+		request.cancelTimeout();
+
+		if(response.has("reqRespCode"))
+			request.future.complete(new SyncMessageResponse(ResponseCode.fromCode(response.getInt("reqRespCode")), response));
+		else
+			request.future.complete(new SyncMessageResponse(ResponseCode.UNKNOWN_CODE, response));
+
+		return true;
+	}
+
+	/**
+	 * Complete all pending requests with given code, used when connection is lost
+	 */
+	void failAll(ResponseCode code) {
+		Iterator<PendingRequest> iterator = pending.values().iterator();
+
+		while(iterator.hasNext()) {
+			PendingRequest request = iterator.next();
+			iterator.remove();
+			request.cancelTimeout();
+			completeLater(request.future, new SyncMessageResponse(code));
+		}
+	}
+
+	/**
+	 * Complete given future on the message thread pool, or right away if it's shut down
+	 */
+	private void completeLater(CompletableFuture<SyncMessageResponse> future, SyncMessageResponse response) {
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					future.complete(response);
+				}
+
+			});
+		}catch(RejectedExecutionException e) {
+			future.complete(response);
+		}
+	}
+
+	/**
+	 * @return number of requests waiting for a response
+	 */
+	int size() {
+		return pending.size();
+	}
+
+	private static class PendingRequest {
+
+		private CompletableFuture<SyncMessageResponse> future;
+		private volatile HashedWheelTimer.Timeout timeout;
+
+		private PendingRequest(CompletableFuture<SyncMessageResponse> future) {
+			this.future = future;
+		}
+
+		private void cancelTimeout() {
+			//timeout may not be set yet if response came right away, it will then find the request gone
+			HashedWheelTimer.Timeout timeout = this.timeout;
+			if(timeout != null)
+				timeout.cancel();
+		}
+
+	}
+
+}
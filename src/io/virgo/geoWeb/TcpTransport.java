@@ -0,0 +1,227 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import io.virgo.geoWeb.utils.HashedWheelTimer;
+
+/**
+ * Default transport, connecting to peers over TCP
+ *
+ * Peers are handled by two threads each, or by the shared event loops if non blocking IO is enabled
+ */
+public class TcpTransport extends Transport {
+
+	//resolved hostnames remembered
+	private static final int DNS_CACHE_SIZE = 1024;
+	//lookups running at once, others wait for a thread
+	private static final int DNS_THREADS = 4;
+
+	private ServerSocket server;
+	private DnsResolver resolver;
+	private ThreadPoolExecutor dnsThreadPool;
+	private NioEventLoop[] eventLoops;
+	private Thread connectionRequestsThread;
+
+	@Override
+	void listen(GeoWeb geoWeb) throws IOException {
+		if(server != null)
+			throw new IllegalStateException("Transport is already used by another instance");
+
+		//lookups may block as long as name servers take, they get their own threads so message handling doesn't wait
+		dnsThreadPool = new ThreadPoolExecutor(DNS_THREADS, DNS_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		dnsThreadPool.allowCoreThreadTimeOut(true);
+		resolver = new DnsResolver(DNS_CACHE_SIZE, geoWeb.getDnsCacheTtl(), geoWeb.getDnsNegativeCacheTtl(), dnsThreadPool);
+
+		//socket is backed by a channel so peers can use gathering writes
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		server = serverChannel.socket();
+		geoWeb.configureServerSocket(server);
+		serverChannel.bind(new InetSocketAddress(geoWeb.getPort()));
+
+		if(geoWeb.nonBlockingIOEnabled()) {
+			//Event loops handle connection requests and all peers IO, instances sharing them accept on different loops
+			eventLoops = geoWeb.getThreads().getEventLoops();
+
+			eventLoops[0].next().listen(serverChannel, geoWeb);
+		}else {
+			//Initialize a thread that will handle connection requests
+			connectionRequestsThread = geoWeb.newConnectionThread(new ConnectionRequestHandler(geoWeb));
+			connectionRequestsThread.start();
+		}
+	}
+
+	@Override
+	CompletableFuture<String> resolve(String hostname) {
+		return resolver.resolve(hostname);
+	}
+
+	@Override
+	CompletableFuture<Boolean> connect(GeoWeb geoWeb, String address, int port) {
+		CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+		SocketChannel channel = null;
+
+		try {
+			channel = SocketChannel.open();
+			closeOnCancel(future, channel);
+
+			if(geoWeb.getSocketReceiveBufferSize() > 0)
+				channel.socket().setReceiveBufferSize(geoWeb.getSocketReceiveBufferSize());
+
+			if(geoWeb.nonBlockingIOEnabled())
+				connectNonBlocking(geoWeb, channel, new InetSocketAddress(address, port), future);
+			else
+				connectBlocking(geoWeb, channel, new InetSocketAddress(address, port), future);
+
+		}catch(IOException e) {
+			if(channel != null)
+				close(channel);
+
+			future.complete(false);
+		}
+
+		return future;
+	}
+
+	/**
+	 * Connect from an event loop, which then handles the peer
+	 */
+	private void connectNonBlocking(GeoWeb geoWeb, SocketChannel channel, InetSocketAddress address, CompletableFuture<Boolean> future) throws IOException {
+		NioEventLoop loop = eventLoops[0].next();
+
+		channel.configureBlocking(false);
+
+		HashedWheelTimer.Timeout timeout = geoWeb.getTimer().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				if(future.complete(false))
+					close(channel);
+			}
+
+		}, geoWeb.getSocketConnectionTimeout(), TimeUnit.MILLISECONDS);
+
+		Runnable finishConnect = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if(!channel.finishConnect()) {
+						loop.connect(channel, this);
+						return;
+					}
+				}catch(IOException e) {
+					timeout.cancel();
+					close(channel);
+					future.complete(false);
+					return;
+				}
+
+				timeout.cancel();
+
+				//timed out or cancelled meanwhile
+				if(future.isDone()) {
+					close(channel);
+					return;
+				}
+
+				try {
+					new Peer(geoWeb, new NioConnection(geoWeb, channel, loop), true);
+					future.complete(true);
+				}catch(IOException e) {
+					close(channel);
+					future.complete(false);
+				}
+			}
+
+		};
+
+		if(channel.connect(address))
+			loop.execute(finishConnect);
+		else
+			loop.connect(channel, finishConnect);
+	}
+
+	/**
+	 * Connect from a new thread, that then reads from the peer
+	 */
+	private void connectBlocking(GeoWeb geoWeb, SocketChannel channel, InetSocketAddress address, CompletableFuture<Boolean> future) {
+		geoWeb.newConnectionThread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					channel.socket().connect(address, geoWeb.getSocketConnectionTimeout());
+				}catch(IOException e) {
+					close(channel);
+					future.complete(false);
+					return;
+				}
+
+				//cancelled meanwhile
+				if(future.isDone()) {
+					close(channel);
+					return;
+				}
+
+				Peer peer = new Peer(geoWeb, channel.socket(), true);
+				future.complete(true);
+
+				peer.run();
+			}
+
+		}).start();
+	}
+
+	/**
+	 * Abort connection attempt when given future is cancelled
+	 */
+	private static void closeOnCancel(CompletableFuture<Boolean> future, SocketChannel channel) {
+		future.whenComplete(new BiConsumer<Boolean, Throwable>() {
+
+			@Override
+			public void accept(Boolean connected, Throwable error) {
+				if(future.isCancelled())
+					close(channel);
+			}
+
+		});
+	}
+
+	private static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {}
+	}
+
+	@Override
+	void close() {
+		if(connectionRequestsThread != null)
+			connectionRequestsThread.interrupt();
+
+		if(dnsThreadPool != null)
+			dnsThreadPool.shutdown();
+
+		try {
+			server.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the socket accepting connections
+	 */
+	ServerSocket getServer() {
+		return server;
+	}
+
+}
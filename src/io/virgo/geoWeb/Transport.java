@@ -0,0 +1,51 @@
+package io.virgo.geoWeb;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * How connections to peers are established and carried
+ *
+ * A transport serves a single GeoWeb instance, given with {@link GeoWeb.Builder#transport(Transport)}.
+ * Default is {@link TcpTransport}, {@link MemoryTransport} runs the same protocol between nodes of a process
+ * to simulate large networks without opening sockets
+ */
+public abstract class Transport {
+
+	Transport() {}
+
+	/**
+	 * Start accepting connections to given instance's port
+	 */
+	abstract void listen(GeoWeb geoWeb) throws IOException;
+
+	/**
+	 * Find the address connecting to given hostname reaches, so we don't connect twice to the same peer.
+	 * Must not block, lookups run elsewhere
+	 *
+	 * @return a future completed with the address, or exceptionally if hostname couldn't be resolved
+	 */
+	abstract CompletableFuture<String> resolve(String hostname);
+
+	/**
+	 * Start connecting to given address, then create the corresponding peer and send it our handshake
+	 *
+	 * @param address a resolved address, as returned by {@link #resolve(String)}
+	 * @return a future completed with true once connected, false if connection failed or took more than
+	 * {@link GeoWeb#getSocketConnectionTimeout()}, cancelling it aborts the attempt
+	 */
+	abstract CompletableFuture<Boolean> connect(GeoWeb geoWeb, String address, int port);
+
+	/**
+	 * Stop accepting connections
+	 */
+	abstract void close();
+
+	/**
+	 * @return the host this transport accepts connections on, null if all of the machine's
+	 */
+	String getLocalHost() {
+		return null;
+	}
+
+}
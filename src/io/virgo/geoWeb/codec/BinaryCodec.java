@@ -0,0 +1,294 @@
+package io.virgo.geoWeb.codec;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Compact binary codec
+ *
+ * A message starts with it's command id, 0 meaning the command is not a known one and follows as a string,
+ * then comes the number of remaining fields and each field as a length prefixed key and a tagged value.
+ * Integers are zigzag varints and every string, array or object is prefixed by it's varint length
+ */
+public class BinaryCodec implements MessageCodec {
+
+	public static final String NAME = "binary";
+	public static final byte MESSAGE_TYPE = 0x06;
+
+	//ids of known commands, only append to keep compatibility between versions
+	private static final String[] COMMANDS = new String[] {
+			null,
+			"handshake",
+			"ping",
+			"pong",
+			"getaddr",
+			"addr",
+			"acceptBroadcast",
+			"requestData"
+	};
+
+	private static final HashMap<String, Integer> COMMAND_IDS = new HashMap<String, Integer>();
+
+	static {
+		for(int i = 1; i < COMMANDS.length; i++)
+			COMMAND_IDS.put(COMMANDS[i], i);
+	}
+
+	private static final byte TAG_NULL = 0;
+	private static final byte TAG_FALSE = 1;
+	private static final byte TAG_TRUE = 2;
+	private static final byte TAG_INTEGER = 3;
+	private static final byte TAG_DOUBLE = 4;
+	private static final byte TAG_STRING = 5;
+	private static final byte TAG_ARRAY = 6;
+	private static final byte TAG_OBJECT = 7;
+	private static final byte TAG_DECIMAL = 8;
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public byte getMessageType() {
+		return MESSAGE_TYPE;
+	}
+
+	@Override
+	public byte[] encode(JSONObject message) {
+		Writer writer = new Writer();
+
+		Object command = message.opt("command");
+		Integer commandId = command instanceof String ? COMMAND_IDS.get(command) : null;
+
+		int fieldsCount = message.length();
+
+		if(commandId != null) {
+			writer.writeByte(commandId);
+			fieldsCount--;
+		}else {
+			writer.writeByte(0);
+		}
+
+		writer.writeVarint(fieldsCount);
+
+		for(String key : message.keySet()) {
+			if(commandId != null && key.equals("command"))
+				continue;
+
+			writer.writeString(key);
+			writeValue(writer, message.get(key));
+		}
+
+		return writer.toByteArray();
+	}
+
+	@Override
+	public JSONObject decode(byte[] body) {
+		try {
+			Reader reader = new Reader(body);
+
+			int commandId = reader.readByte();
+
+			if(commandId < 0 || commandId >= COMMANDS.length)
+				throw new IllegalArgumentException("unknown command id " + commandId);
+
+			JSONObject message = readObject(reader);
+
+			if(commandId != 0)
+				message.put("command", COMMANDS[commandId]);
+
+			if(reader.position != body.length)
+				throw new IllegalArgumentException("trailing bytes in message");
+
+			return message;
+		}catch(ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("truncated message");
+		}
+	}
+
+	private void writeValue(Writer writer, Object value) {
+
+		if(value == null || value == JSONObject.NULL) {
+			writer.writeByte(TAG_NULL);
+		}else if(value instanceof Boolean) {
+			writer.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+		}else if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			writer.writeByte(TAG_INTEGER);
+			long number = ((Number) value).longValue();
+			writer.writeVarint((number << 1) ^ (number >> 63));
+		}else if(value instanceof Double || value instanceof Float) {
+			writer.writeByte(TAG_DOUBLE);
+			writer.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+		}else if(value instanceof BigInteger || value instanceof BigDecimal) {
+			writer.writeByte(TAG_DECIMAL);
+			writer.writeString(value.toString());
+		}else if(value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			writer.writeByte(TAG_ARRAY);
+			writer.writeVarint(array.length());
+			for(int i = 0; i < array.length(); i++)
+				writeValue(writer, array.get(i));
+		}else if(value instanceof JSONObject) {
+			JSONObject object = (JSONObject) value;
+			writer.writeByte(TAG_OBJECT);
+			writer.writeVarint(object.length());
+			for(String key : object.keySet()) {
+				writer.writeString(key);
+				writeValue(writer, object.get(key));
+			}
+		}else {
+			writer.writeByte(TAG_STRING);
+			writer.writeString(value.toString());
+		}
+
+	}
+
+	private Object readValue(Reader reader) {
+		byte tag = reader.readByte();
+
+		switch(tag) {
+		case TAG_NULL:
+			return JSONObject.NULL;
+		case TAG_FALSE:
+			return false;
+		case TAG_TRUE:
+			return true;
+		case TAG_INTEGER:
+			long zigzag = reader.readVarint();
+			long number = (zigzag >>> 1) ^ -(zigzag & 1);
+			if(number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE)
+				return (int) number;
+			return number;
+		case TAG_DOUBLE:
+			return Double.longBitsToDouble(reader.readLong());
+		case TAG_STRING:
+			return reader.readString();
+		case TAG_ARRAY:
+			int length = reader.readLength();
+			JSONArray array = new JSONArray();
+			for(int i = 0; i < length; i++)
+				array.put(readValue(reader));
+			return array;
+		case TAG_OBJECT:
+			return readObject(reader);
+		case TAG_DECIMAL:
+			return new BigDecimal(reader.readString());
+		default:
+			throw new IllegalArgumentException("unknown value tag " + tag);
+		}
+	}
+
+	private JSONObject readObject(Reader reader) {
+		int fieldsCount = reader.readLength();
+		JSONObject object = new JSONObject();
+
+		for(int i = 0; i < fieldsCount; i++) {
+			String key = reader.readString();
+			object.put(key, readValue(reader));
+		}
+
+		return object;
+	}
+
+	private static class Writer {
+
+		private byte[] buffer = new byte[128];
+		private int position = 0;
+
+		private void ensureCapacity(int length) {
+			if(position + length > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+		}
+
+		private void writeByte(int value) {
+			ensureCapacity(1);
+			buffer[position++] = (byte) value;
+		}
+
+		private void writeVarint(long value) {
+			ensureCapacity(10);
+			while((value & ~0x7FL) != 0) {
+				buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[position++] = (byte) value;
+		}
+
+		private void writeLong(long value) {
+			ensureCapacity(8);
+			for(int i = 7; i >= 0; i--)
+				buffer[position++] = (byte) (value >>> (i * 8));
+		}
+
+		private void writeString(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarint(bytes.length);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+		}
+
+		private byte[] toByteArray() {
+			return Arrays.copyOf(buffer, position);
+		}
+
+	}
+
+	private static class Reader {
+
+		private byte[] buffer;
+		private int position = 0;
+
+		private Reader(byte[] buffer) {
+			this.buffer = buffer;
+		}
+
+		private byte readByte() {
+			return buffer[position++];
+		}
+
+		private long readVarint() {
+			long value = 0;
+			for(int shift = 0; shift < 64; shift += 7) {
+				byte b = buffer[position++];
+				value |= (long) (b & 0x7F) << shift;
+				if((b & 0x80) == 0)
+					return value;
+			}
+			throw new IllegalArgumentException("malformed varint");
+		}
+
+		/**
+		 * Read a length, checking it can't exceed what is left to read
+		 */
+		private int readLength() {
+			long length = readVarint();
+			if(length < 0 || length > buffer.length - position)
+				throw new IllegalArgumentException("invalid length " + length);
+			return (int) length;
+		}
+
+		private long readLong() {
+			long value = 0;
+			for(int i = 0; i < 8; i++)
+				value = (value << 8) | (buffer[position++] & 0xFF);
+			return value;
+		}
+
+		private String readString() {
+			int length = readLength();
+			String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+
+	}
+
+}
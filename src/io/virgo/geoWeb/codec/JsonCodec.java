@@ -0,0 +1,37 @@
+package io.virgo.geoWeb.codec;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+/**
+ * Textual JSON codec, used for handshakes and with peers not supporting any other codec
+ */
+public class JsonCodec implements MessageCodec {
+
+	public static final String NAME = "json";
+	public static final byte MESSAGE_TYPE = 0x05;
+
+	public static final JsonCodec INSTANCE = new JsonCodec();
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public byte getMessageType() {
+		return MESSAGE_TYPE;
+	}
+
+	@Override
+	public byte[] encode(JSONObject message) {
+		return message.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public JSONObject decode(byte[] body) {
+		return new JSONObject(new String(body, StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,40 @@
+package io.virgo.geoWeb.codec;
+
+import org.json.JSONObject;
+
+/**
+ * Serialization format of control messages, negotiated with each peer during handshake
+ *
+ * Every codec is identified on the wire by it's own message type byte, so a peer always knows how to decode
+ * a message whatever the codec the remote chose. JSON is always supported and used as fallback
+ */
+public interface MessageCodec {
+
+	/**
+	 * @return the name advertised in handshakes, must be unique
+	 */
+	String getName();
+
+	/**
+	 * @return the message type byte identifying this codec on the wire, must be unique
+	 */
+	byte getMessageType();
+
+	/**
+	 * Serialize a message
+	 *
+	 * @param message the message to serialize
+	 * @return the message body
+	 */
+	byte[] encode(JSONObject message);
+
+	/**
+	 * Parse a message body
+	 *
+	 * @param body the body received
+	 * @return the corresponding message
+	 * @throws IllegalArgumentException or {@link org.json.JSONException} if body is malformed
+	 */
+	JSONObject decode(byte[] body);
+
+}
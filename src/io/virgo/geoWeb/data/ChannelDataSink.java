@@ -0,0 +1,39 @@
+package io.virgo.geoWeb.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Sink forwarding data to a channel, a file or a socket for example
+ */
+public class ChannelDataSink implements DataSink {
+
+	private WritableByteChannel channel;
+	private boolean closeChannel;
+
+	/**
+	 * @param channel the channel to write data to
+	 * @param closeChannel true to close the channel once download is over
+	 */
+	public ChannelDataSink(WritableByteChannel channel, boolean closeChannel) {
+		this.channel = channel;
+		this.closeChannel = closeChannel;
+	}
+
+	@Override
+	public void open(long size) {}
+
+	@Override
+	public void write(ByteBuffer data) throws IOException {
+		while(data.hasRemaining())
+			channel.write(data);
+	}
+
+	@Override
+	public void close(boolean success) throws IOException {
+		if(closeChannel)
+			channel.close();
+	}
+
+}
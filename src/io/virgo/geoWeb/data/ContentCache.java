@@ -0,0 +1,137 @@
+package io.virgo.geoWeb.data;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.virgo.virgoCryptoLib.Sha256Hash;
+
+/**
+ * Content addressed in memory cache of data, bounded by the total size of the data it holds
+ * Least recently used data is evicted first
+ */
+public class ContentCache {
+
+	private LinkedHashMap<Sha256Hash, byte[]> entries = new LinkedHashMap<Sha256Hash, byte[]>(16, 0.75f, true);
+	private long maxSize;
+	private long size = 0;
+
+	private LongAdder hits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+	private LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxSize the maximum total size of cached data, in bytes
+	 */
+	public ContentCache(long maxSize) {
+		if(maxSize < 1)
+			throw new IllegalArgumentException("cache size must be > 0");
+
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param hash the hash of the wanted data
+	 * @return the data, or null if not cached. It's the cached array, it mustn't be modified
+	 */
+	public byte[] get(Sha256Hash hash) {
+		byte[] data;
+
+		synchronized(this) {
+			data = entries.get(hash);
+		}
+
+		if(data == null)
+			misses.increment();
+		else
+			hits.increment();
+
+		return data;
+	}
+
+	/**
+	 * Add data to the cache, evicting least recently used data if needed
+	 * Data bigger than the cache is ignored
+	 *
+	 * @param hash the hash of the data, which is trusted to be correct
+	 * @param data the data to cache, mustn't be modified afterward
+	 */
+	public void put(Sha256Hash hash, byte[] data) {
+		if(data.length > maxSize)
+			return;
+
+		synchronized(this) {
+			byte[] previous = entries.put(hash, data);
+			if(previous != null)
+				size -= previous.length;
+
+			size += data.length;
+
+			Iterator<Map.Entry<Sha256Hash, byte[]>> iterator = entries.entrySet().iterator();
+			while(size > maxSize && iterator.hasNext()) {
+				Map.Entry<Sha256Hash, byte[]> eldest = iterator.next();
+				if(eldest.getKey().equals(hash))
+					continue;
+
+				size -= eldest.getValue().length;
+				iterator.remove();
+				evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Remove data from the cache
+	 */
+	public synchronized void remove(Sha256Hash hash) {
+		byte[] previous = entries.remove(hash);
+		if(previous != null)
+			size -= previous.length;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return the number of cached items
+	 */
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the total size of cached data, in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of lookups that found data
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of lookups that didn't find data
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of items evicted to make room for new ones
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+}
@@ -0,0 +1,173 @@
+package io.virgo.geoWeb.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import io.virgo.virgoCryptoLib.Converter;
+import io.virgo.virgoCryptoLib.Sha256Hash;
+
+/**
+ * Size of a data and hashes of the fixed size pieces it is made of, so pieces can be downloaded from
+ * different peers and verified on their own. The last piece may be shorter
+ *
+ * A manifest given by a peer isn't proven to match the data's hash until all pieces have been put together
+ */
+public class DataManifest {
+
+	public static final int DEFAULT_PIECE_SIZE = 262144;
+	public static final int MIN_PIECE_SIZE = 4096;
+	public static final int MAX_PIECE_SIZE = 16777216;
+
+	private long size;
+	private int pieceSize;
+	private Sha256Hash[] pieces;
+
+	private DataManifest(long size, int pieceSize, Sha256Hash[] pieces) {
+		this.size = size;
+		this.pieceSize = pieceSize;
+		this.pieces = pieces;
+	}
+
+	/**
+	 * Hash pieces of given data
+	 */
+	public static DataManifest of(byte[] data, int pieceSize) {
+		MessageDigest digest = newDigest();
+		Sha256Hash[] pieces = new Sha256Hash[pieceCount(data.length, pieceSize)];
+
+		for(int i = 0; i < pieces.length; i++) {
+			int offset = i * pieceSize;
+			digest.update(data, offset, Math.min(pieceSize, data.length - offset));
+			pieces[i] = new Sha256Hash(digest.digest());
+		}
+
+		return new DataManifest(data.length, pieceSize, pieces);
+	}
+
+	/**
+	 * Hash pieces of a file, reading it from the start without moving it's position
+	 */
+	public static DataManifest of(FileChannel file, int pieceSize) throws IOException {
+		long size = file.size();
+		MessageDigest digest = newDigest();
+		Sha256Hash[] pieces = new Sha256Hash[pieceCount(size, pieceSize)];
+		ByteBuffer buffer = ByteBuffer.allocate(Math.min(pieceSize, 65536));
+
+		for(int i = 0; i < pieces.length; i++) {
+			long position = (long) i * pieceSize;
+			long end = Math.min(position + pieceSize, size);
+
+			while(position < end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+				int read = file.read(buffer, position);
+				if(read < 0)
+					throw new IOException("file shrunk while being hashed");
+
+				buffer.flip();
+				digest.update(buffer);
+				position += read;
+			}
+
+			pieces[i] = new Sha256Hash(digest.digest());
+		}
+
+		return new DataManifest(size, pieceSize, pieces);
+	}
+
+	/**
+	 * Read a manifest received from a peer
+	 *
+	 * @throws JSONException if it is malformed or inconsistent
+	 */
+	public static DataManifest fromJson(JSONObject json) {
+		long size = json.getLong("size");
+		int pieceSize = json.getInt("pieceSize");
+		JSONArray piecesArray = json.getJSONArray("pieces");
+
+		if(size < 0 || pieceSize < MIN_PIECE_SIZE || pieceSize > MAX_PIECE_SIZE || piecesArray.length() != pieceCount(size, pieceSize))
+			throw new JSONException("inconsistent manifest");
+
+		Sha256Hash[] pieces = new Sha256Hash[piecesArray.length()];
+		for(int i = 0; i < pieces.length; i++) {
+			byte[] hash = Converter.hexToBytes(piecesArray.getString(i));
+			if(hash.length != 32)
+				throw new JSONException("invalid piece hash");
+
+			pieces[i] = new Sha256Hash(hash);
+		}
+
+		return new DataManifest(size, pieceSize, pieces);
+	}
+
+	public JSONObject toJson() {
+		JSONArray piecesArray = new JSONArray();
+		for(Sha256Hash piece : pieces)
+			piecesArray.put(Converter.bytesToHex(piece.toBytes()));
+
+		JSONObject json = new JSONObject();
+		json.put("size", size);
+		json.put("pieceSize", pieceSize);
+		json.put("pieces", piecesArray);
+
+		return json;
+	}
+
+	/**
+	 * @return the size of the data, in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	public int getPieceSize() {
+		return pieceSize;
+	}
+
+	public int getPieceCount() {
+		return pieces.length;
+	}
+
+	/**
+	 * @return the position of given piece in the data
+	 */
+	public long getPieceOffset(int piece) {
+		return (long) piece * pieceSize;
+	}
+
+	/**
+	 * @return the size of given piece, in bytes
+	 */
+	public int getPieceLength(int piece) {
+		return (int) Math.min(pieceSize, size - getPieceOffset(piece));
+	}
+
+	public Sha256Hash getPieceHash(int piece) {
+		return pieces[piece];
+	}
+
+	private static int pieceCount(long size, int pieceSize) {
+		long count = (size + pieceSize - 1) / pieceSize;
+		if(count > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("data has too many pieces");
+
+		return (int) count;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 unavailable", e);
+		}
+	}
+
+}
@@ -0,0 +1,32 @@
+package io.virgo.geoWeb.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination of requested data, written incrementally as bytes arrive from the peer
+ */
+public interface DataSink {
+
+	/**
+	 * Called once when the peer starts sending data
+	 * 
+	 * @param size the total size of the data, in bytes
+	 * @throws IOException if sink can't receive that much data
+	 */
+	void open(long size) throws IOException;
+
+	/**
+	 * Consume all remaining bytes of given buffer
+	 * The buffer is reused once this method returns, so it mustn't be kept
+	 */
+	void write(ByteBuffer data) throws IOException;
+
+	/**
+	 * Called once after the last write or when download failed
+	 * 
+	 * @param success true if data has been fully received and matches the requested hash
+	 */
+	void close(boolean success) throws IOException;
+
+}
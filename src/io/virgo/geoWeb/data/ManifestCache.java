@@ -0,0 +1,51 @@
+package io.virgo.geoWeb.data;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import io.virgo.virgoCryptoLib.Sha256Hash;
+
+/**
+ * Manifests of recently served data, so data isn't hashed again for each peer asking for it
+ * Least recently used manifests are evicted first
+ */
+public class ManifestCache {
+
+	private LinkedHashMap<Sha256Hash, DataManifest> entries = new LinkedHashMap<Sha256Hash, DataManifest>(16, 0.75f, true);
+	private int capacity;
+
+	/**
+	 * @param capacity the maximum number of manifests kept
+	 */
+	public ManifestCache(int capacity) {
+		if(capacity < 1)
+			throw new IllegalArgumentException("capacity must be > 0");
+
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the manifest of given data, or null if not cached
+	 */
+	public synchronized DataManifest get(Sha256Hash hash) {
+		return entries.get(hash);
+	}
+
+	/**
+	 * @param hash the hash of the data, which is trusted to match the manifest
+	 */
+	public synchronized void put(Sha256Hash hash, DataManifest manifest) {
+		entries.put(hash, manifest);
+
+		if(entries.size() > capacity) {
+			Iterator<Sha256Hash> iterator = entries.keySet().iterator();
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+}
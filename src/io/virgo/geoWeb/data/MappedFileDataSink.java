@@ -0,0 +1,93 @@
+package io.virgo.geoWeb.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sink writing data to a memory mapped file, mapped by regions so data can exceed 2GB
+ * The file is deleted if download fails
+ */
+public class MappedFileDataSink implements DataSink {
+
+	private static final long REGION_SIZE = 64L * 1024 * 1024;
+
+	private Path path;
+	private FileChannel file;
+	private MappedByteBuffer region;
+	private long regionStart = 0;
+	private long size;
+
+	/**
+	 * @param path the file to write data to, replaced if it already exists
+	 */
+	public MappedFileDataSink(Path path) {
+		this.path = path;
+	}
+
+	@Override
+	public void open(long size) throws IOException {
+		this.size = size;
+
+		file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		if(size > 0)
+			mapRegion(0);
+	}
+
+	@Override
+	public void write(ByteBuffer data) throws IOException {
+
+		while(data.hasRemaining()) {
+
+			if(region == null || !region.hasRemaining()) {
+				if(region != null)
+					regionStart += region.capacity();
+
+				if(regionStart >= size)
+					throw new IOException("received more data than announced");
+
+				mapRegion(regionStart);
+			}
+
+			int length = Math.min(data.remaining(), region.remaining());
+			ByteBuffer slice = data.duplicate();
+			slice.limit(slice.position() + length);
+			region.put(slice);
+			data.position(data.position() + length);
+		}
+
+	}
+
+	private void mapRegion(long start) throws IOException {
+		regionStart = start;
+		region = file.map(FileChannel.MapMode.READ_WRITE, start, Math.min(REGION_SIZE, size - start));
+	}
+
+	@Override
+	public void close(boolean success) throws IOException {
+		if(region != null)
+			region.force();
+
+		region = null;
+
+		if(file != null)
+			file.close();
+
+		if(!success)
+			Files.deleteIfExists(path);
+	}
+
+	/**
+	 * @return the file data is written to
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+}
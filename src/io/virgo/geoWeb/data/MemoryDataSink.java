@@ -0,0 +1,60 @@
+package io.virgo.geoWeb.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Sink keeping data in a byte array, limited to data smaller than 2GB
+ *
+ * Array grows as data is received rather than being allocated at the announced size,
+ * so memory isn't taken before remote actually sends data
+ */
+public class MemoryDataSink implements DataSink {
+
+	private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+	private static final int INITIAL_CAPACITY = 65536;
+
+	private byte[] data = new byte[0];
+	private int position = 0;
+	private int size = 0;
+
+	@Override
+	public void open(long size) throws IOException {
+		if(size > MAX_SIZE)
+			throw new IOException("data of " + size + " bytes is too big to be kept in memory");
+
+		this.size = (int) size;
+		data = new byte[Math.min(this.size, INITIAL_CAPACITY)];
+		position = 0;
+	}
+
+	@Override
+	public void write(ByteBuffer buffer) throws IOException {
+		int length = buffer.remaining();
+
+		if(length > size - position)
+			throw new IOException("received more data than announced");
+
+		//double capacity up to the announced size, which is reached exactly once all data is received
+		if(length > data.length - position)
+			data = Arrays.copyOf(data, (int) Math.min(size, Math.max((long) data.length * 2, (long) position + length)));
+
+		buffer.get(data, position, length);
+		position += length;
+	}
+
+	@Override
+	public void close(boolean success) {}
+
+	/**
+	 * @return the received data
+	 */
+	public byte[] getData() {
+		if(data.length != position)
+			data = Arrays.copyOf(data, position);
+
+		return data;
+	}
+
+}
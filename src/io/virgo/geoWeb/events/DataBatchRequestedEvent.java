@@ -0,0 +1,76 @@
+package io.virgo.geoWeb.events;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import io.virgo.geoWeb.Peer;
+import io.virgo.geoWeb.data.ContentCache;
+import io.virgo.virgoCryptoLib.Sha256;
+import io.virgo.virgoCryptoLib.Sha256Hash;
+
+/**
+ * Event occurring when a peer is asking for many data at once, those not found in content cache
+ *
+ * Each data can be uploaded as soon as it is available, in any order. Peer only sends a limited number of requests
+ * before getting answers, so data not available should be reported with {@link #notFound(Collection)}
+ * rather than left unanswered
+ */
+public class DataBatchRequestedEvent extends Event {
+
+	private List<Sha256Hash> hashes;
+	private Peer peer;
+
+	public DataBatchRequestedEvent(List<Sha256Hash> hashes, Peer peer) {
+		super(EventType.DATA_BATCH_REQUESTED);
+
+		this.hashes = Collections.unmodifiableList(hashes);
+		this.peer = peer;
+	}
+
+	/**
+	 * Give a requested data to the peer
+	 * Data matching given hash is also kept in GeoWeb's content cache if enabled, so it mustn't be modified afterward
+	 */
+	public void uploadData(Sha256Hash hash, byte[] data) {
+
+		//cached data is served to every later request, only admit it once verified
+		ContentCache cache = peer.getGeoWeb().getContentCache();
+		if(cache != null && Sha256.getHash(data).equals(hash))
+			cache.put(hash, data);
+
+		peer.sendData(data, hash.toBytes());
+	}
+
+	/**
+	 * Stream a requested data from a file to the peer, without loading it in memory
+	 * @param data the file containing the data, closed once sent
+	 */
+	public void uploadData(Sha256Hash hash, FileChannel data) throws IOException {
+		peer.sendData(data, 0, data.size(), hash.toBytes());
+	}
+
+	/**
+	 * Tell the peer given data aren't available, so it can ask others
+	 */
+	public void notFound(Collection<Sha256Hash> hashes) {
+		peer.sendDataNotFound(hashes);
+	}
+
+	/**
+	 * @return The requested data hashes
+	 */
+	public List<Sha256Hash> getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * @return the peer asking for data
+	 */
+	public Peer getPeer() {
+		return peer;
+	}
+
+}
@@ -1,12 +1,24 @@
 package io.virgo.geoWeb.events;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+
+import org.json.JSONObject;
+
 import io.virgo.geoWeb.Peer;
+import io.virgo.geoWeb.ResponseCode;
+import io.virgo.geoWeb.data.ContentCache;
+import io.virgo.geoWeb.data.DataManifest;
 import io.virgo.geoWeb.DataRequest;
 import io.virgo.virgoCryptoLib.Sha256;
 import io.virgo.virgoCryptoLib.Sha256Hash;
 
 /**
  * Event occurring when a peer is asking for data
+ * 
+ * Peer may ask for the whole data, a range of it, or it's manifest to download it from many peers,
+ * uploadData methods answer whichever was asked from the whole data
  */
 public class DataRequestedEvent extends Event {
 
@@ -14,6 +26,12 @@ public class DataRequestedEvent extends Event {
 	Peer peer;
 	Sha256Hash hash;
 	
+	private long offset = 0;
+	private long length = -1;
+	private Sha256Hash rangeHash;
+	private JSONObject manifestRequest;
+	private DataBatchRequestedEvent batch;
+	
 	public DataRequestedEvent(Sha256Hash hash, Peer peer) {
 		super(EventType.DATA_REQUESTED);
 		
@@ -21,15 +39,112 @@ public class DataRequestedEvent extends Event {
 		this.peer = peer;
 		
 	}
+	
+	/**
+	 * Peer is asking for a range of the data
+	 * 
+	 * @param rangeHash the hash of the range's bytes, identifying the answer
+	 */
+	public DataRequestedEvent(Sha256Hash hash, Peer peer, long offset, long length, Sha256Hash rangeHash) {
+		this(hash, peer);
+		
+		this.offset = offset;
+		this.length = length;
+		this.rangeHash = rangeHash;
+	}
+	
+	/**
+	 * Peer is asking for the manifest of the data
+	 * 
+	 * @param manifestRequest the message asking for it, to respond to
+	 */
+	public DataRequestedEvent(Sha256Hash hash, Peer peer, JSONObject manifestRequest) {
+		this(hash, peer);
+		
+		this.manifestRequest = manifestRequest;
+	}
+
+	/**
+	 * Peer asked for the data as part of a batch
+	 */
+	DataRequestedEvent(Sha256Hash hash, Peer peer, DataBatchRequestedEvent batch) {
+		this(hash, peer);
+		
+		this.batch = batch;
+	}
 
 	/**
 	 * Give the requested data to the peer
-	 * @param data
+	 * Data matching the requested hash is also kept in GeoWeb's content cache if enabled, so it mustn't be modified afterward
+	 * @param data the whole data, even if only a range of it is asked
 	 */
 	public void uploadData(byte[] data) {
 		
-		peer.sendData(data,
-				hash.toBytes());
+		//cached data is served to every later request, only admit it once verified
+		ContentCache cache = peer.getGeoWeb().getContentCache();
+		if(cache != null && Sha256.getHash(data).equals(hash))
+			cache.put(hash, data);
+		
+		if(manifestRequest != null) {
+			uploadManifest(DataManifest.of(data, DataManifest.DEFAULT_PIECE_SIZE));
+		}else if(rangeHash != null) {
+			if(offset <= data.length && length <= data.length - offset)
+				peer.sendData(data, (int) offset, (int) length, rangeHash.toBytes());
+			else
+				notFound();
+		}else {
+			peer.sendData(data,
+					hash.toBytes());
+		}
+	}
+
+	/**
+	 * Stream the requested data from a file to the peer, without loading it in memory
+	 * @param data the file containing the whole data, even if only a range of it is asked, closed once sent
+	 */
+	public void uploadData(FileChannel data) throws IOException {
+		
+		if(manifestRequest != null) {
+			try {
+				uploadManifest(DataManifest.of(data, DataManifest.DEFAULT_PIECE_SIZE));
+			} finally {
+				data.close();
+			}
+		}else if(rangeHash != null) {
+			if(offset <= data.size() && length <= data.size() - offset) {
+				peer.sendData(data, offset, length, rangeHash.toBytes());
+			}else {
+				data.close();
+				notFound();
+			}
+		}else {
+			peer.sendData(data, 0, data.size(),
+					hash.toBytes());
+		}
+	}
+	
+	/**
+	 * Tell the peer data isn't available, so it can ask someone else right away
+	 * Only peers asking for a manifest, a range or a batch of data expect an answer
+	 */
+	public void notFound() {
+		if(manifestRequest != null) {
+			JSONObject response = new JSONObject();
+			response.put("command", "manifest");
+			peer.respondToMessage(response, manifestRequest, ResponseCode.NOT_FOUND);
+		}else if(rangeHash != null) {
+			peer.sendDataNotFound(Collections.singletonList(rangeHash));
+		}else if(batch != null) {
+			batch.notFound(Collections.singletonList(hash));
+		}
+	}
+	
+	private void uploadManifest(DataManifest manifest) {
+		peer.getGeoWeb().getManifestCache().put(hash, manifest);
+		
+		JSONObject response = manifest.toJson();
+		response.put("command", "manifest");
+		peer.respondToMessage(response, manifestRequest, ResponseCode.OK);
 	}
 
 	/**
@@ -39,4 +154,32 @@ public class DataRequestedEvent extends Event {
 		return hash;
 	}
 	
+	/**
+	 * @return true if peer is asking for a range of the data only
+	 */
+	public boolean isRangeRequest() {
+		return rangeHash != null;
+	}
+	
+	/**
+	 * @return true if peer is asking for the manifest of the data
+	 */
+	public boolean isManifestRequest() {
+		return manifestRequest != null;
+	}
+	
+	/**
+	 * @return the position of the requested range in the data, 0 if the whole data is asked
+	 */
+	public long getOffset() {
+		return offset;
+	}
+	
+	/**
+	 * @return the size of the requested range, -1 if the whole data is asked
+	 */
+	public long getLength() {
+		return length;
+	}
+	
 }
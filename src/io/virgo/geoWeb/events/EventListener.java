@@ -2,6 +2,8 @@ package io.virgo.geoWeb.events;
 
 import java.util.concurrent.LinkedBlockingQueue;
 
+import io.virgo.virgoCryptoLib.Sha256Hash;
+
 /**
  * Runnable executing code binded to an event
  *
@@ -17,12 +19,29 @@ public class EventListener implements Runnable {
 		queue.add(event);
 	}
 	
+	/**
+	 * @return the number of events waiting to be handled
+	 */
+	public int getBacklog() {
+		return queue.size();
+	}
+	
 	//Overridable methods ran when an event occur
 	public void onSetupComplete(SetupCompleteEvent event) {}
 	public void onPeerConnection(PeerConnectionEvent event) {}
 	public void onPeerDisconnection(PeerDisconnectionEvent event) {}
 	public void onPeerHandshaked(PeerHandshakedEvent event) {}
 	public void onDataRequested(DataRequestedEvent event) {}
+	public void onPeerWritabilityChanged(PeerWritabilityChangedEvent event) {}
+	
+	/**
+	 * Handle each data of the batch with {@link #onDataRequested(DataRequestedEvent)} by default,
+	 * override to look them up all at once
+	 */
+	public void onDataBatchRequested(DataBatchRequestedEvent event) {
+		for(Sha256Hash hash : event.getHashes())
+			onDataRequested(new DataRequestedEvent(hash, event.getPeer(), event));
+	}
 
 	@Override
 	public void run() {
@@ -54,6 +73,14 @@ public class EventListener implements Runnable {
 					onDataRequested((DataRequestedEvent) event);
 					break;
 					
+				case DATA_BATCH_REQUESTED:
+					onDataBatchRequested((DataBatchRequestedEvent) event);
+					break;
+					
+				case PEER_WRITABILITY_CHANGED:
+					onPeerWritabilityChanged((PeerWritabilityChangedEvent) event);
+					break;
+					
 				}
 				
 			} catch (InterruptedException e) {
@@ -8,5 +8,7 @@ public enum EventType {
 	PEER_CONNECTION,
 	PEER_DISCONNECTION,
 	PEER_HANDSHAKED,
-	DATA_REQUESTED
+	DATA_REQUESTED,
+	DATA_BATCH_REQUESTED,
+	PEER_WRITABILITY_CHANGED
 }
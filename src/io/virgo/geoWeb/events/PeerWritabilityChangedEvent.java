@@ -0,0 +1,34 @@
+package io.virgo.geoWeb.events;
+
+import io.virgo.geoWeb.Peer;
+
+/**
+ * Event occurring when a peer's outbound queue fills up to it's high watermark, or drains back to it's low watermark
+ */
+public class PeerWritabilityChangedEvent extends Event {
+	
+	private Peer peer;
+	private boolean writable;
+	
+	public PeerWritabilityChangedEvent(Peer peer, boolean writable) {
+		super(EventType.PEER_WRITABILITY_CHANGED);
+		
+		this.peer = peer;
+		this.writable = writable;
+	}
+	
+	/**
+	 * @return The peer object representing the connection
+	 */
+	public Peer getPeer() {
+		return peer;
+	}
+	
+	/**
+	 * @return true if peer can take more messages again, false if it stopped
+	 */
+	public boolean isWritable() {
+		return writable;
+	}
+
+}
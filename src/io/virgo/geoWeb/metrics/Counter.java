@@ -0,0 +1,34 @@
+package io.virgo.geoWeb.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter, striped so concurrent increments from many threads don't contend
+ */
+public class Counter {
+
+	private LongAdder value = new LongAdder();
+
+	public void increment() {
+		value.increment();
+	}
+
+	public void add(long amount) {
+		value.add(amount);
+	}
+
+	/**
+	 * Decrement the counter, for counters tracking things in progress
+	 */
+	public void decrement() {
+		value.decrement();
+	}
+
+	/**
+	 * @return the current value, not an atomic snapshot if updated concurrently
+	 */
+	public long get() {
+		return value.sum();
+	}
+
+}
@@ -0,0 +1,13 @@
+package io.virgo.geoWeb.metrics;
+
+/**
+ * Value computed each time metrics are read
+ */
+public interface Gauge {
+
+	/**
+	 * Called from the thread reading metrics, must be thread safe and shouldn't block
+	 */
+	long getValue();
+
+}
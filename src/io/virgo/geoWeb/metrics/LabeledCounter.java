@@ -0,0 +1,55 @@
+package io.virgo.geoWeb.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Family of counters sharing a name and distinguished by a label, like messages per command
+ *
+ * Labels may come from peers, so their number is capped and extra labels are counted under {@link #OTHER}
+ */
+public class LabeledCounter {
+
+	public static final String OTHER = "other";
+
+	private ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private Counter other = new Counter();
+	private int maxLabels;
+
+	/**
+	 * @param maxLabels the maximum number of distinct labels
+	 */
+	public LabeledCounter(int maxLabels) {
+		this.maxLabels = maxLabels;
+	}
+
+	/**
+	 * @return the counter for given label, or the {@link #OTHER} counter if there is too many labels already
+	 */
+	public Counter get(String label) {
+		Counter counter = counters.get(label);
+
+		if(counter != null)
+			return counter;
+
+		if(counters.size() >= maxLabels)
+			return other;
+
+		counter = new Counter();
+		Counter previous = counters.putIfAbsent(label, counter);
+
+		return previous != null ? previous : counter;
+	}
+
+	/**
+	 * Add current values to given map, as prefix.label
+	 */
+	void collect(String prefix, Map<String, Long> values) {
+		for(Map.Entry<String, Counter> entry : counters.entrySet())
+			values.put(prefix + "." + entry.getKey(), entry.getValue().get());
+
+		if(other.get() > 0)
+			values.put(prefix + "." + OTHER, other.get());
+	}
+
+}
@@ -0,0 +1,79 @@
+package io.virgo.geoWeb.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Read only MBean exposing each metric of a registry as a long attribute
+ *
+ * Attributes are listed again on each read since labeled counters can gain labels at runtime
+ */
+public class MetricsMBean implements DynamicMBean {
+
+	private MetricsRegistry registry;
+
+	public MetricsMBean(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = registry.get(attribute);
+
+		if(value == null)
+			throw new AttributeNotFoundException(attribute);
+
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		TreeMap<String, Long> values = registry.snapshot();
+		AttributeList list = new AttributeList();
+
+		for(String attribute : attributes) {
+			Long value = values.get(attribute);
+			if(value != null)
+				list.add(new Attribute(attribute, value));
+		}
+
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("metrics are read only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		TreeMap<String, Long> values = registry.snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+
+		int i = 0;
+		for(Map.Entry<String, Long> entry : values.entrySet())
+			attributes[i++] = new MBeanAttributeInfo(entry.getKey(), "long", entry.getKey(), true, false, false);
+
+		return new MBeanInfo(getClass().getName(), "GeoWeb runtime metrics", attributes, null, null, null);
+	}
+
+}
@@ -0,0 +1,91 @@
+package io.virgo.geoWeb.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named counters and gauges of a GeoWeb instance
+ *
+ * Updating a metric is a single striped increment, values are only aggregated when read
+ */
+public class MetricsRegistry {
+
+	private ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private ConcurrentHashMap<String, LabeledCounter> labeledCounters = new ConcurrentHashMap<String, LabeledCounter>();
+	private ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+	/**
+	 * @return the counter with given name, created if needed
+	 */
+	public Counter counter(String name) {
+		Counter counter = counters.get(name);
+
+		if(counter == null) {
+			counter = new Counter();
+			Counter previous = counters.putIfAbsent(name, counter);
+			if(previous != null)
+				counter = previous;
+		}
+
+		return counter;
+	}
+
+	/**
+	 * @param maxLabels the maximum number of labels if the family is created
+	 * @return the family of counters with given name, created if needed
+	 */
+	public LabeledCounter labeledCounter(String name, int maxLabels) {
+		LabeledCounter counter = labeledCounters.get(name);
+
+		if(counter == null) {
+			counter = new LabeledCounter(maxLabels);
+			LabeledCounter previous = labeledCounters.putIfAbsent(name, counter);
+			if(previous != null)
+				counter = previous;
+		}
+
+		return counter;
+	}
+
+	/**
+	 * Register a gauge, replacing any gauge with the same name
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * @return the current value of the metric with given name, or null if there is none
+	 */
+	public Long get(String name) {
+		Counter counter = counters.get(name);
+		if(counter != null)
+			return counter.get();
+
+		Gauge gauge = gauges.get(name);
+		if(gauge != null)
+			return gauge.getValue();
+
+		return snapshot().get(name);
+	}
+
+	/**
+	 * @return current values of all metrics, sorted by name
+	 */
+	public TreeMap<String, Long> snapshot() {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+
+		for(Map.Entry<String, Counter> entry : counters.entrySet())
+			values.put(entry.getKey(), entry.getValue().get());
+
+		for(Map.Entry<String, LabeledCounter> entry : labeledCounters.entrySet())
+			entry.getValue().collect(entry.getKey(), values);
+
+		for(Map.Entry<String, Gauge> entry : gauges.entrySet())
+			values.put(entry.getKey(), entry.getValue().getValue());
+
+		return values;
+	}
+
+}
@@ -0,0 +1,62 @@
+package io.virgo.geoWeb.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe pool of fixed size direct buffers, avoiding an allocation each time a small buffer is needed
+ */
+public class BufferPool {
+
+	private ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private AtomicInteger pooled = new AtomicInteger();
+
+	private int bufferSize;
+	private int maxPooled;
+
+	/**
+	 * @param bufferSize the capacity of each buffer
+	 * @param maxPooled the maximum number of buffers kept for reuse, extra released buffers are left to the GC
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return a cleared buffer, taken from the pool if one is available
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+
+		if(buffer == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+
+		pooled.decrementAndGet();
+		buffer.clear();
+
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back to the pool, it must not be used anymore by the caller
+	 */
+	public void release(ByteBuffer buffer) {
+		//not allocated by this pool
+		if(buffer.capacity() != bufferSize)
+			return;
+
+		if(pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+
+		buffers.add(buffer);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+}
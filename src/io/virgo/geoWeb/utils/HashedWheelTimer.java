@@ -0,0 +1,281 @@
+package io.virgo.geoWeb.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scheduler running all timeouts of a GeoWeb instance from a single thread
+ *
+ * Timeouts are hashed into a ring of buckets by deadline, scheduling and cancelling are O(1)
+ * and each tick only looks at one bucket. Deadlines are rounded up to the tick duration.
+ *
+ * Tasks run on the timer thread, so they must be short and never block,
+ * blocking work should be handed to an executor
+ */
+public class HashedWheelTimer implements Runnable {
+
+	private Bucket[] wheel;
+	private int mask;
+	private long tickDuration;
+
+	private ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+	private ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	private long startTime = System.nanoTime();
+	private long tick = 0;
+
+	/**
+	 * @param tickDuration the precision of the timer, in milliseconds
+	 * @param ticksPerWheel the number of buckets, rounded up to a power of 2
+	 */
+	public HashedWheelTimer(long tickDuration, int ticksPerWheel) {
+		if(tickDuration < 1)
+			throw new IllegalArgumentException("tickDuration must be > 0");
+
+		if(ticksPerWheel < 1 || ticksPerWheel > 1 << 30)
+			throw new IllegalArgumentException("ticksPerWheel must be between 1 and 2^30");
+
+		int size = Integer.highestOneBit(ticksPerWheel);
+		if(size < ticksPerWheel)
+			size <<= 1;
+
+		wheel = new Bucket[size];
+		for(int i = 0; i < size; i++)
+			wheel[i] = new Bucket();
+
+		mask = size - 1;
+		this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+	}
+
+	/**
+	 * Run given task once after given delay
+	 *
+	 * @return a handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+		scheduled.add(timeout);
+
+		return timeout;
+	}
+
+	/**
+	 * Run given task every period, starting after given delay
+	 * A run that takes longer than the period delays the next ones
+	 *
+	 * @return a handle to stop the task
+	 */
+	public Timeout scheduleAtFixedRate(Runnable task, long delay, long period, TimeUnit unit) {
+		if(period <= 0)
+			throw new IllegalArgumentException("period must be > 0");
+
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+		timeout.period = unit.toNanos(period);
+		scheduled.add(timeout);
+
+		return timeout;
+	}
+
+	/**
+	 * @return the number of timeouts waiting to be run, approximate
+	 */
+	public int pendingCount() {
+		int count = scheduled.size();
+
+		for(Bucket bucket : wheel)
+			count += bucket.size;
+
+		return count;
+	}
+
+	@Override
+	public void run() {
+		while(!Thread.currentThread().isInterrupted()) {
+			long deadline = (tick + 1) * tickDuration;
+			long sleepTime = deadline - (System.nanoTime() - startTime);
+
+			if(sleepTime > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepTime);
+				}catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+
+			removeCancelled();
+			addScheduled();
+
+			wheel[(int) (tick & mask)].expire(deadline);
+			tick++;
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while((timeout = cancelled.poll()) != null)
+			if(timeout.bucket != null)
+				timeout.bucket.remove(timeout);
+	}
+
+	/**
+	 * Put newly scheduled timeouts in the bucket of their deadline
+	 */
+	private void addScheduled() {
+		//bounded so a flood of timeouts can't stall the wheel
+		for(int i = 0; i < 100000; i++) {
+			Timeout timeout = scheduled.poll();
+			if(timeout == null)
+				break;
+
+			if(timeout.state.get() != Timeout.PENDING)
+				continue;
+
+			place(timeout);
+		}
+	}
+
+	private void place(Timeout timeout) {
+		long ticks = timeout.deadline / tickDuration;
+
+		//deadlines already passed are run on current tick
+		long targetTick = Math.max(ticks, tick);
+		timeout.remainingRounds = (ticks - tick) / wheel.length;
+
+		wheel[(int) (targetTick & mask)].add(timeout);
+	}
+
+	/**
+	 * Handle on a scheduled task
+	 */
+	public class Timeout {
+
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private Runnable task;
+		private long deadline;
+		private long period = 0;
+		private long remainingRounds;
+		private AtomicInteger state = new AtomicInteger(PENDING);
+
+		private Bucket bucket;
+		private Timeout previous;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Prevent the task from running, or from running again if periodic
+		 *
+		 * @return false if the task already ran or was cancelled
+		 */
+		public boolean cancel() {
+			if(!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+
+			cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * @return true if the task ran, always false for a periodic task
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if(period == 0 ? !state.compareAndSet(PENDING, EXPIRED) : state.get() != PENDING)
+				return;
+
+			try {
+				task.run();
+			}catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+
+			if(period > 0 && state.get() == PENDING) {
+				deadline += period;
+				place(this);
+			}
+		}
+
+	}
+
+	/**
+	 * Doubly linked list of timeouts, only accessed from the timer thread
+	 */
+	private class Bucket {
+
+		private Timeout head;
+		private Timeout tail;
+		private int size = 0;
+
+		private void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.previous = tail;
+			timeout.next = null;
+
+			if(tail == null)
+				head = timeout;
+			else
+				tail.next = timeout;
+
+			tail = timeout;
+			size++;
+		}
+
+		private void remove(Timeout timeout) {
+			if(timeout.previous == null)
+				head = timeout.next;
+			else
+				timeout.previous.next = timeout.next;
+
+			if(timeout.next == null)
+				tail = timeout.previous;
+			else
+				timeout.next.previous = timeout.previous;
+
+			timeout.bucket = null;
+			timeout.previous = null;
+			timeout.next = null;
+			size--;
+		}
+
+		/**
+		 * Run timeouts due by given deadline, others are one more round closer to it
+		 */
+		private void expire(long deadline) {
+			Timeout timeout = head;
+
+			while(timeout != null) {
+				Timeout next = timeout.next;
+
+				if(timeout.remainingRounds <= 0) {
+					remove(timeout);
+
+					if(timeout.deadline <= deadline)
+						timeout.expire();
+					else
+						place(timeout);
+				}else {
+					timeout.remainingRounds--;
+				}
+
+				timeout = next;
+			}
+		}
+
+	}
+
+}
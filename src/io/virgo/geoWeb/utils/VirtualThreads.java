@@ -0,0 +1,62 @@
+package io.virgo.geoWeb.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to Java 21 virtual threads while still targeting Java 8,
+ * resolved by reflection so the library runs unchanged on older runtimes
+ */
+public class VirtualThreads {
+
+	private static ThreadFactory factory = null;
+	private static Method newVirtualThreadPerTaskExecutor = null;
+
+	static {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factoryMethod = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			factory = (ThreadFactory) factoryMethod.invoke(builder);
+
+			newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			factory = null;
+		}
+	}
+
+	/**
+	 * @return true if current runtime supports virtual threads
+	 */
+	public static boolean isSupported() {
+		return factory != null;
+	}
+
+	/**
+	 * @return a factory creating unstarted virtual threads
+	 * @throws UnsupportedOperationException if runtime doesn't support virtual threads
+	 */
+	public static ThreadFactory factory() {
+		if(!isSupported())
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+
+		return factory;
+	}
+
+	/**
+	 * @return an executor starting a new virtual thread for each task
+	 * @throws UnsupportedOperationException if runtime doesn't support virtual threads
+	 */
+	public static ExecutorService newThreadPerTaskExecutor() {
+		if(!isSupported())
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+
+		try {
+			return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or newer", e);
+		}
+	}
+
+}